@@ -0,0 +1,12 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Runs a script of operations, one per line, without the menu
+# Example: ./batch.sh ops.txt                  each operation commits on its own
+#          COMMIT_EVERY=100 ./batch.sh ops.txt  commits every 100 operations
+#          ./batch.sh < ops.jsonl               reads standard input
+java -Dticketmaster.batch.commitEvery=${COMMIT_EVERY:-1} -cp lib/*:bin/ BatchRunner $dbname $PGPORT $(logname) ${1:--}
@@ -0,0 +1,15 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Builds the JMH benchmarks and runs them against the local database,
+# writing JSON results to bench/results/
+# Example: ./bench.sh            all operations
+#          ./bench.sh AddBooking operations matching a regular expression
+mvn -q -f bench/pom.xml package || exit 1
+mkdir -p bench/results
+java -Dbench.db=$dbname -Dbench.port=$PGPORT -Dbench.user=$(logname) \
+	-Dbench.results=bench/results -jar bench/target/benchmarks.jar "$@"
@@ -0,0 +1,60 @@
+package bench;
+
+import java.io.File;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs OperationBenchmarks twice: single-threaded, sampling the latency
+ * of every invocation, and with bench.threads threads, measuring
+ * throughput. Both runs attach the GC profiler for allocation rates and
+ * write their results as JSON to bench.results, one file per run, named
+ * by start time so runs can be compared.
+ *
+ * Any JMH command line option, such as a benchmark regular expression or
+ * -f/-wi/-i, overrides the defaults of both runs.
+ */
+public final class BenchmarkMain{
+	private static final String[] FORWARDED = { "bench.db", "bench.port", "bench.user" };
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions cli = new CommandLineOptions(args);
+		String stamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+		File results = new File(System.getProperty("bench.results", "results"));
+		results.mkdirs();
+		int threads = Integer.getInteger("bench.threads", Runtime.getRuntime().availableProcessors());
+
+		new Runner(options(cli)
+			.mode(Mode.SampleTime)
+			.threads(1)
+			.result(new File(results, "latency-" + stamp + ".json").getPath())
+			.build()).run();
+		new Runner(options(cli)
+			.mode(Mode.Throughput)
+			.threads(threads)
+			.result(new File(results, "throughput-" + stamp + ".json").getPath())
+			.build()).run();
+	}
+
+	private static ChainedOptionsBuilder options(CommandLineOptions cli){
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(cli)
+			.addProfiler(GCProfiler.class)
+			.resultFormat(ResultFormatType.JSON);
+		if(cli.getIncludes().isEmpty()) options.include(OperationBenchmarks.class.getSimpleName());
+		//the forked benchmark JVMs connect to the same database
+		for(String property : FORWARDED){
+			if(System.getProperty(property) != null){
+				options.jvmArgsAppend("-D" + property + "=" + System.getProperty(property));
+			}
+		}
+		return options;
+	}
+}
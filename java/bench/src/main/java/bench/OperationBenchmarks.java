@@ -0,0 +1,185 @@
+package bench;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The data path of each of the 14 menu operations: the TicketmasterService
+ * calls the operation makes once its input has been read, in the same
+ * order. Operations that write run in a transaction that is rolled back,
+ * so every invocation sees the same data.
+ *
+ * IDs are taken from the database at setup, so the benchmarks run against
+ * the sample data as well as a generated dataset.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class OperationBenchmarks{
+	//the date of the show op03 adds, after any generated show
+	static final String NEW_SHOW_DATE = "2030-01-01";
+
+	private TicketmasterHandle tm;
+	//one booking that holds seats, with its show, user, movie, theater and cinema
+	private long bid;
+	private String email;
+	private long mvid;
+	private String sdate;
+	private String sttime;
+	private long tid;
+	private long cid;
+	private int sno;
+	//the show with the most free seats
+	private long freeSid;
+
+	/**
+	 * Puts the caches back before each op03 call: the movie and the show it
+	 * added were rolled back but stay in the catalog and the schedule.
+	 */
+	@State(Scope.Benchmark)
+	public static class FreshCaches{
+		@Setup(Level.Invocation)
+		public void reset(OperationBenchmarks b) throws SQLException {
+			b.tm.reloadMovies();
+			b.tm.invalidateSchedule(NEW_SHOW_DATE);
+			b.tm.call("showTimes", b.tid, NEW_SHOW_DATE);
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		tm = new TicketmasterHandle(System.getProperty("bench.db"), System.getProperty("bench.port"), System.getProperty("bench.user"));
+		List<List<String>> row = tm.rows("SELECT B.bid, B.email, S.mvid, S.sdate, S.sttime, P.tid, T.cid, C.sno "
+			+ "FROM bookings B, shows S, plays P, theaters T, showseats X, cinemaseats C "
+			+ "WHERE B.sid = S.sid AND P.sid = S.sid AND P.tid = T.tid AND X.bid = B.bid AND X.csid = C.csid LIMIT 1");
+		if(row.isEmpty()) throw new IllegalStateException("The database has no booking with seats to benchmark against");
+		List<String> r = row.get(0);
+		bid = Long.parseLong(r.get(0));
+		email = r.get(1);
+		mvid = Long.parseLong(r.get(2));
+		sdate = r.get(3);
+		sttime = r.get(4);
+		tid = Long.parseLong(r.get(5));
+		cid = Long.parseLong(r.get(6));
+		sno = Integer.parseInt(r.get(7));
+		freeSid = Long.parseLong(tm.rows("SELECT sid FROM showsales GROUP BY sid ORDER BY sum(free_seats) DESC LIMIT 1").get(0).get(0));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws SQLException {
+		tm.cleanup();
+	}
+
+	@Benchmark
+	public Object op01AddUser() throws SQLException {
+		return tm.rolledBack(() -> {
+			String email = "bench-" + Thread.currentThread().getId() + "@example.com";
+			tm.call("userExists", email);
+			return tm.call("addUser", tm.record("NewUser", email, "Mark", "Bench", "5555555555", "x"));
+		});
+	}
+
+	@Benchmark
+	public long op02AddBooking() throws SQLException {
+		long sum = (Boolean) tm.call("userExists", email) ? 1 : 0;
+		sum += ((List<?>) tm.call("movies")).size();
+		sum += tm.call("movie", mvid).hashCode();
+		sum += ((List<?>) tm.call("showsOfMovie", mvid)).size();
+		sum += (Integer) tm.call("freeSeatCount", freeSid);
+		return sum + tm.bookRolledBack(email, freeSid, 2);
+	}
+
+	@Benchmark
+	public Object op03AddMovieShowingToTheater(FreshCaches caches) throws SQLException {
+		return tm.rolledBack(() -> {
+			String title = "Benchmark movie";
+			tm.call("movieExists", title);
+			tm.call("theaters");
+			tm.call("showsOfTheater", tid);
+			tm.call("showTimes", tid, NEW_SHOW_DATE);
+			Object movie = tm.record("NewMovie", title, "2019-01-01", "USA", "", 5400, "en", "Drama");
+			return tm.call("addMovieShowing", tm.record("MovieShowing", movie, tid, NEW_SHOW_DATE, "10:00:00"));
+		});
+	}
+
+	@Benchmark
+	public Object op04CancelPendingBookings() throws SQLException {
+		return tm.rolledBack(() -> tm.call("cancelPendingBookings"));
+	}
+
+	@Benchmark
+	public Object op05ChangeSeatsForBooking() throws SQLException {
+		return tm.rolledBack(() -> {
+			tm.call("seatNumbersOfBooking", bid);
+			List<?> avail = (List<?>) tm.call("replacementSeats", bid, sno);
+			if(avail.isEmpty()) return avail;
+			Object seat = avail.get(0);
+			return tm.call("changeSeat", bid, sno, seat.getClass().getMethod("sno").invoke(seat));
+		});
+	}
+
+	@Benchmark
+	public Object op06RemovePayment() throws SQLException {
+		return tm.rolledBack(() -> tm.call("removePayment", bid));
+	}
+
+	@Benchmark
+	public Object op07ClearCancelledBookings() throws SQLException {
+		return tm.rolledBack(() -> tm.call("clearCancelledBookings"));
+	}
+
+	@Benchmark
+	public Object op08RemoveShowsOnDate() throws SQLException {
+		return tm.rolledBack(() -> {
+			tm.call("cinemas");
+			return tm.call("removeShowsOnDate", cid, sdate);
+		});
+	}
+
+	@Benchmark
+	public long op09ListTheatersPlayingShow() throws SQLException {
+		return ((List<?>) tm.call("cinemas")).size() + ((List<?>) tm.call("movies")).size()
+			+ tm.stream("theatersPlayingShow", cid, mvid);
+	}
+
+	@Benchmark
+	public long op10ListShowsStartingOnTimeAndDate() throws SQLException {
+		return tm.stream("showsStartingAt", sdate, sttime);
+	}
+
+	@Benchmark
+	public long op11ListMovieTitlesContainingLove() throws SQLException {
+		return tm.stream("moviesTitled", "love", "2010-01-01");
+	}
+
+	@Benchmark
+	public long op12ListUsersWithPendingBooking() throws SQLException {
+		return tm.stream("usersWithPendingBooking");
+	}
+
+	@Benchmark
+	public long op13ListMovieAndShowInfoAtCinemaInDateRange() throws SQLException {
+		return ((List<?>) tm.call("movies")).size() + ((List<?>) tm.call("cinemas")).size()
+			+ tm.stream("movieShowsAtCinema", mvid, cid, sdate, sdate);
+	}
+
+	@Benchmark
+	public long op14ListBookingInfoForUser() throws SQLException {
+		long sum = tm.stream("bookingsOfUser", email);
+		return sum + ((List<?>) tm.call("seatNumbersOfUserBooking", email, bid)).size();
+	}
+}
@@ -0,0 +1,236 @@
+package bench;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
+
+/**
+ * Calls into the application classes, which live in the default package
+ * and so cannot be imported by the benchmarks; JMH refuses benchmarks in
+ * the default package. Every method goes through a Method looked up once.
+ *
+ * The operations are called on TicketmasterService, the data path the menu
+ * and the HTTP API share, so the benchmarks measure its SQL as it changes
+ * rather than a copy of it.
+ */
+public final class TicketmasterHandle{
+	/**
+	 * Thrown inside rolledBack() to roll the transaction back.
+	 */
+	private static final class Rollback extends RuntimeException{
+		final Object result;
+
+		Rollback(Object result){
+			super(null, null, false, false);
+			this.result = result;
+		}
+	}
+
+	private final Object esql;
+	private final Class<?> transactionWork;
+	private final Method rows;
+	private final Method inTransaction;
+	private final Method cleanup;
+	private final Object service;
+	//the methods of the service by name and parameter count, such as book/1
+	private final Map<String, Method> operations = new HashMap<String, Method>();
+	//the records of the service by simple name, such as NewUser
+	private final Map<String, Constructor<?>> records = new HashMap<String, Constructor<?>>();
+	private final Object seats;
+	private final Method showSeats;
+	private final Method indexOfSno;
+	private final Method ssid;
+	private final Method markFree;
+	private final Method invalidateSeats;
+	private final Object catalog;
+	private final Method movies;
+	private final Method invalidateMovies;
+	private final Object titleIndex;
+	private final Method searchTitles;
+	private final Method invalidateTitles;
+	private final Object schedule;
+	private final Method invalidateScheduleDate;
+
+	public TicketmasterHandle(String dbname, String port, String user) throws ReflectiveOperationException {
+		ClassLoader loader = TicketmasterHandle.class.getClassLoader();
+		Class<?> ticketmaster = Class.forName("Ticketmaster", true, loader);
+		this.transactionWork = Class.forName("TransactionWork", true, loader);
+		this.esql = ticketmaster.getConstructor(String.class, String.class, String.class, String.class)
+			.newInstance(dbname, port, user, "");
+
+		this.rows = ticketmaster.getMethod("executeQueryAndReturnResult", String.class, Object[].class);
+		this.inTransaction = ticketmaster.getMethod("executeInTransaction", transactionWork);
+		this.cleanup = ticketmaster.getMethod("cleanup");
+
+		this.service = ticketmaster.getMethod("getService").invoke(esql);
+		for(Method m : service.getClass().getMethods()){
+			if(m.getDeclaringClass() == service.getClass() && !Modifier.isStatic(m.getModifiers())){
+				operations.put(m.getName() + "/" + m.getParameterCount(), m);
+			}
+		}
+		for(Class<?> nested : service.getClass().getClasses()){
+			if(nested.isRecord()) records.put(nested.getSimpleName(), nested.getDeclaredConstructors()[0]);
+		}
+
+		this.seats = ticketmaster.getMethod("getSeatInventory").invoke(esql);
+		this.showSeats = seats.getClass().getMethod("get", long.class);
+		this.indexOfSno = showSeats.getReturnType().getMethod("indexOfSno", int.class);
+		this.ssid = showSeats.getReturnType().getMethod("ssid", int.class);
+		this.markFree = seats.getClass().getMethod("markFree", long.class, Collection.class);
+		this.invalidateSeats = seats.getClass().getMethod("invalidate", long.class);
+		this.catalog = ticketmaster.getMethod("getCatalog").invoke(esql);
+		this.movies = catalog.getClass().getMethod("movies");
+		this.invalidateMovies = catalog.getClass().getMethod("invalidateMovies");
+		this.titleIndex = ticketmaster.getMethod("getTitleIndex").invoke(esql);
+		this.searchTitles = titleIndex.getClass().getMethod("search", String.class, String.class, String.class, String.class, int.class);
+		this.invalidateTitles = titleIndex.getClass().getMethod("invalidate");
+		this.schedule = ticketmaster.getMethod("getShowSchedule").invoke(esql);
+		this.invalidateScheduleDate = schedule.getClass().getMethod("invalidateDate", String.class);
+		Object emailFilter = ticketmaster.getMethod("getEmailFilter").invoke(esql);
+		emailFilter.getClass().getMethod("build").invoke(emailFilter);
+	}
+
+	/**
+	 * Method to call an operation of TicketmasterService.
+	 *
+	 * @param name the method name, such as bookingsOfUser
+	 * @param args its arguments, whose count picks the overload
+	 * @return what it returned
+	 */
+	public Object call(String name, Object... args) throws SQLException {
+		Method m = operations.get(name + "/" + args.length);
+		if(m == null) throw new IllegalArgumentException("TicketmasterService has no " + name + " of " + args.length + " argument(s)");
+		return call(m, service, args);
+	}
+
+	/**
+	 * Method to call the streaming variant of a listing operation, the way
+	 * the menu prints it.
+	 *
+	 * @param name the method name, such as bookingsOfUser
+	 * @param args its arguments before the row consumer
+	 * @return a checksum of every row, for the benchmark to consume
+	 */
+	public long stream(String name, Object... args) throws SQLException {
+		final long[] sum = new long[1];
+		Consumer<Object> each = row -> sum[0] = 31 * sum[0] + row.hashCode();
+		Object[] withConsumer = new Object[args.length + 1];
+		System.arraycopy(args, 0, withConsumer, 0, args.length);
+		withConsumer[args.length] = each;
+		call(name, withConsumer);
+		return sum[0];
+	}
+
+	/**
+	 * @return a new record of TicketmasterService, such as a NewUser
+	 */
+	public Object record(String name, Object... components){
+		try{
+			return records.get(name).newInstance(components);
+		}catch(ReflectiveOperationException e){
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public List<List<String>> rows(String sql, Object... params) throws SQLException {
+		return (List<List<String>>) call(rows, esql, sql, params);
+	}
+
+	/**
+	 * Method to run work in one transaction and roll it back, so a write
+	 * operation can be measured repeatedly against the same data.
+	 *
+	 * @return what the work returned
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T rolledBack(Callable<T> work) throws SQLException {
+		Object tx = Proxy.newProxyInstance(transactionWork.getClassLoader(), new Class<?>[]{ transactionWork }, (proxy, method, args) -> {
+			if(!method.getName().equals("run")) return method.invoke(this, args);
+			throw new Rollback(work.call());
+		});
+		try{
+			call(inTransaction, esql, tx);
+		}catch(Rollback r){
+			return (T) r.result;
+		}
+		throw new IllegalStateException("Transaction was not rolled back");
+	}
+
+	/**
+	 * Method to book the best seats with TicketmasterService.book() in a
+	 * transaction that is rolled back, then put the seats back into the
+	 * seat inventory.
+	 *
+	 * @return the number of seats that were claimed
+	 */
+	public int bookRolledBack(String email, long sid, int count) throws SQLException {
+		Object request = record("BookingRequest", email, sid, "Pending", count, null, null, null);
+		Object booking = rolledBack(() -> call("book", request));
+		try{
+			Object show = call(showSeats, seats, sid);
+			List<String> ssids = new ArrayList<String>();
+			for(Object sno : (List<?>) booking.getClass().getMethod("seats").invoke(booking)){
+				ssids.add(call(ssid, show, call(indexOfSno, show, sno)).toString());
+			}
+			call(markFree, seats, sid, ssids);
+			return ssids.size();
+		}catch(ReflectiveOperationException e){
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public void invalidateSeats(long sid) throws SQLException {
+		call(invalidateSeats, seats, sid);
+	}
+
+	/**
+	 * Method to load the movie catalog and the title index again, without
+	 * the movies a rolled back operation added to them.
+	 */
+	public void reloadMovies() throws SQLException {
+		call(invalidateMovies, catalog);
+		call(invalidateTitles, titleIndex);
+		call(movies, catalog);
+		call(searchTitles, titleIndex, "", null, null, null, 1);
+	}
+
+	/**
+	 * Method to drop the cached schedule of a date, with the shows a rolled
+	 * back operation added to it.
+	 */
+	public void invalidateSchedule(String sdate) throws SQLException {
+		call(invalidateScheduleDate, schedule, sdate);
+	}
+
+	public void cleanup() throws SQLException {
+		call(cleanup, esql);
+	}
+
+	/**
+	 * Invokes a method and rethrows what it threw.
+	 */
+	private static Object call(Method method, Object target, Object... args) throws SQLException {
+		try{
+			return method.invoke(target, args);
+		}catch(InvocationTargetException e){
+			Throwable cause = e.getCause();
+			if(cause instanceof SQLException) throw (SQLException) cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if(cause instanceof Error) throw (Error) cause;
+			throw new IllegalStateException(cause);
+		}catch(IllegalAccessException e){
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,10 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+
+cd $root/java
+
+# Writes a synthetic dataset in the layout of data/*.csv
+# Example: ./generate.sh /tmp/data 10      scale factor 10, default seed
+#          ./generate.sh /tmp/data 10 42   scale factor 10, seed 42
+java -cp lib/*:bin/ DatasetGenerator "$@"
@@ -0,0 +1,11 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Replaces the data of every table with the CSV files of a directory
+# Example: ./load.sh            loads data/
+#          ./load.sh /tmp/data  loads a generated dataset
+java -cp lib/*:bin/ BulkLoader $dbname $PGPORT $(logname) ${1:-$root/data}
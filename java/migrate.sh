@@ -0,0 +1,10 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Applies the scripts in sql/migrations that have not been applied yet
+# Example: ./migrate.sh
+java -cp lib/*:bin/ SchemaMigrator $dbname $PGPORT $(logname) $root/sql/migrations
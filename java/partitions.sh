@@ -0,0 +1,10 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Creates the coming days' partitions of the show tables and removes expired days
+# Example: ./partitions.sh
+java -cp lib/*:bin/ PartitionMaintenance $dbname $PGPORT $(logname)
@@ -0,0 +1,10 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Fails when a menu operation plans a sequential scan of a large table
+# Example: ./plancheck.sh
+java -cp lib/*:bin/ PlanCheck $dbname $PGPORT $(logname)
@@ -0,0 +1,10 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Archives the cancelled bookings made before a cutoff; run it again to resume
+# Example: ./purge.sh 2024-01-01
+java -cp lib/*:bin/ BookingPurge $dbname $PGPORT $(logname) "$1"
@@ -0,0 +1,10 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Fails when the statements of a menu operation grow with its input
+# Example: ./roundtrips.sh
+java -cp lib/*:bin/ RoundTripCheck $dbname $PGPORT $(logname)
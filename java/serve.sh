@@ -0,0 +1,11 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Serves the menu operations as JSON over HTTP
+# Example: ./serve.sh         listens on port 8080
+#          ./serve.sh 9000    listens on port 9000
+java -cp lib/*:bin/ ApiServer $dbname $PGPORT $(logname) ${1:-8080}
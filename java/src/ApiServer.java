@@ -0,0 +1,312 @@
+/*
+ * HTTP/JSON front end for the Ticketmaster operations
+ * ====================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class serves the operations of TicketmasterService as JSON over
+ * HTTP with the server built into the JDK. Every request runs on its own
+ * virtual thread when the JVM has them (Java 21 and later) and on a fixed
+ * pool of platform threads otherwise; either way the number of queries
+ * in flight is bounded by the connection pool, which makes the rest wait.
+ *
+ * Request bodies are the service's request records as JSON objects and
+ * responses are its result records. Errors are {"error": message} with
+ * status 400 for a malformed request, 404 for something that does not
+ * exist, 409 when the seats or the show time are taken and 500 for a
+ * database failure.
+ *
+ *   POST   /users                               NewUser
+ *   GET    /users/pending
+ *   GET    /users/{email}/bookings
+ *   GET    /users/{email}/bookings/{bid}/seats
+ *   GET    /movies                              ?word=love&since=2010-01-01&genre=&lang=&limit= to search titles
+ *   GET    /movies/{mvid}
+ *   POST   /movies                              NewMovie
+ *   GET    /movies/{mvid}/shows
+ *   POST   /showings                            MovieShowing
+ *   GET    /shows                               ?date=&time=
+ *   GET    /shows/{sid}/seats
+ *   GET    /shows/{sid}/sales
+ *   GET    /theaters
+ *   GET    /theaters/{tid}/shows                ?date= for the show times of one day
+ *   POST   /theaters/{tid}/shows                {"mvid", "sdate", "sttime"}
+ *   GET    /theaters/{tid}/free                 ?date=&duration=
+ *   GET    /theaters/{tid}/seats
+ *   GET    /cinemas
+ *   GET    /cinemas/{cid}/theaters
+ *   GET    /cinemas/{cid}/shows                 ?mvid=&from=&to=, or ?mvid= for every theater playing it
+ *   DELETE /cinemas/{cid}/shows                 ?date=
+ *   POST   /bookings                            BookingRequest
+ *   POST   /bookings/cancel-pending
+ *   DELETE /bookings/cancelled
+ *   GET    /bookings/{bid}/seats
+ *   GET    /bookings/{bid}/seats/{sno}/replacements
+ *   PUT    /bookings/{bid}/seats/{sno}          {"to": sno}
+ *   DELETE /bookings/{bid}/payment
+ */
+public class ApiServer{
+	//request threads when virtual threads are not available, set with -Dticketmaster.api.threads
+	static final int THREADS = Integer.getInteger("ticketmaster.api.threads", 64);
+	//largest request body accepted, in bytes
+	static final int MAX_BODY = 1 << 20;
+
+	/**
+	 * One operation of the API. The path groups of the route are in path.
+	 */
+	interface Endpoint{
+		Object handle(Matcher path, Map<String, String> query, String body) throws Exception;
+	}
+
+	//operation is the name the route's metrics are kept under
+	record Route(String method, Pattern path, Endpoint endpoint, String operation){}
+
+	//marks a successful create, answered with 201 and no body
+	private static final Object CREATED = new Object();
+
+	private final List<Route> routes = new ArrayList<Route>();
+	private final Metrics metrics;
+	private HttpServer server;
+	private ExecutorService executor;
+
+	public ApiServer(TicketmasterService service, Metrics metrics){
+		this.metrics = metrics;
+		route("POST", "/users", (p, q, b) -> {
+			service.addUser(Json.parse(b, TicketmasterService.NewUser.class));
+			return CREATED;
+		});
+		route("GET", "/users/pending", (p, q, b) -> service.usersWithPendingBooking());
+		route("GET", "/users/([^/]+)/bookings", (p, q, b) -> service.bookingsOfUser(p.group(1)));
+		route("GET", "/users/([^/]+)/bookings/(\\d+)/seats", (p, q, b) -> service.seatNumbersOfUserBooking(p.group(1), id(p, 2)));
+
+		route("GET", "/movies", (p, q, b) -> q.containsKey("word")
+			? service.searchMovies(q.get("word"), q.get("since"), q.get("genre"), q.get("lang"), Integer.parseInt(q.getOrDefault("limit", "50"))) : service.movies());
+		route("GET", "/movies/(\\d+)", (p, q, b) -> service.movie(id(p, 1)));
+		route("POST", "/movies", (p, q, b) -> Map.of("mvid", service.addMovie(Json.parse(b, TicketmasterService.NewMovie.class))));
+		route("GET", "/movies/(\\d+)/shows", (p, q, b) -> service.showsOfMovie(id(p, 1)));
+		route("POST", "/showings", (p, q, b) -> service.addMovieShowing(Json.parse(b, TicketmasterService.MovieShowing.class)));
+
+		route("GET", "/shows", (p, q, b) -> service.showsStartingAt(q.get("date"), q.get("time")));
+		route("GET", "/shows/(\\d+)/seats", (p, q, b) -> service.seats(id(p, 1)));
+		route("GET", "/shows/(\\d+)/sales", (p, q, b) -> service.showSales(id(p, 1)));
+
+		route("GET", "/theaters", (p, q, b) -> service.theaters());
+		route("GET", "/theaters/(\\d+)/shows", (p, q, b) -> q.containsKey("date")
+			? service.showTimes(id(p, 1), q.get("date")) : service.showsOfTheater(id(p, 1)));
+		route("POST", "/theaters/(\\d+)/shows", (p, q, b) -> {
+			Map<?, ?> show = object(b);
+			return Map.of("sid", service.addShowing(number(show, "mvid"), id(p, 1), (String) show.get("sdate"), (String) show.get("sttime")));
+		});
+		route("GET", "/theaters/(\\d+)/free", (p, q, b) -> service.freeStartTimes(id(p, 1), q.get("date"), Integer.parseInt(q.get("duration"))));
+		route("GET", "/theaters/(\\d+)/seats", (p, q, b) -> service.seatsOfTheater(id(p, 1)));
+
+		route("GET", "/cinemas", (p, q, b) -> service.cinemas());
+		route("GET", "/cinemas/(\\d+)/theaters", (p, q, b) -> service.theatersOfCinema(id(p, 1)));
+		route("GET", "/cinemas/(\\d+)/shows", (p, q, b) -> q.containsKey("from")
+			? service.movieShowsAtCinema(Long.parseLong(q.get("mvid")), id(p, 1), q.get("from"), q.get("to"))
+			: service.theatersPlayingShow(id(p, 1), Long.parseLong(q.get("mvid"))));
+		route("DELETE", "/cinemas/(\\d+)/shows", (p, q, b) -> Map.of("removed", service.removeShowsOnDate(id(p, 1), q.get("date"))));
+
+		route("POST", "/bookings", (p, q, b) -> service.book(Json.parse(b, TicketmasterService.BookingRequest.class)));
+		route("POST", "/bookings/cancel-pending", (p, q, b) -> Map.of("cancelled", service.cancelPendingBookings()));
+		route("DELETE", "/bookings/cancelled", (p, q, b) -> Map.of("deleted", service.clearCancelledBookings()));
+		route("GET", "/bookings/(\\d+)/seats", (p, q, b) -> service.seatNumbersOfBooking(id(p, 1)));
+		route("GET", "/bookings/(\\d+)/seats/(\\d+)/replacements", (p, q, b) -> service.replacementSeats(id(p, 1), (int) id(p, 2)));
+		route("PUT", "/bookings/(\\d+)/seats/(\\d+)", (p, q, b) -> service.changeSeat(id(p, 1), (int) id(p, 2), (int) number(object(b), "to")));
+		route("DELETE", "/bookings/(\\d+)/payment", (p, q, b) -> {
+			service.removePayment(id(p, 1));
+			return null;
+		});
+	}
+
+	private void route(String method, String path, Endpoint endpoint){
+		routes.add(new Route(method, Pattern.compile(path), endpoint, method + " " + path));
+	}
+
+	/**
+	 * Method to start serving on a port.
+	 *
+	 * @throws java.io.IOException when the port cannot be bound
+	 */
+	public void start(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/", this::dispatch);
+		executor = requestExecutor();
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * Method to stop accepting requests and wait up to the given number of
+	 * seconds for those in progress.
+	 */
+	public void stop(int delaySeconds){
+		if(server != null) server.stop(delaySeconds);
+		if(executor != null) executor.shutdown();
+	}
+
+	/**
+	 * @return a virtual thread per task executor when the JVM has one, else a fixed pool
+	 */
+	static ExecutorService requestExecutor(){
+		try{
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}catch(ReflectiveOperationException e){
+			return Executors.newFixedThreadPool(THREADS);
+		}
+	}
+
+	private void dispatch(HttpExchange exchange) throws IOException {
+		int status;
+		Object result;
+		try{
+			String path = exchange.getRequestURI().getPath();
+			Route found = null;
+			Matcher match = null;
+			boolean pathKnown = false;
+			for(Route r : routes){
+				Matcher m = r.path().matcher(path);
+				if(!m.matches()) continue;
+				pathKnown = true;
+				if(r.method().equals(exchange.getRequestMethod())){
+					found = r;
+					match = m;
+					break;
+				}
+			}
+			if(found == null){
+				status = pathKnown ? 405 : 404;
+				result = error(pathKnown ? "Method not allowed" : "No such resource");
+			}else{
+				long started = metrics.begin(found.operation());
+				boolean failed = true;
+				try{
+					result = found.endpoint().handle(match, query(exchange.getRequestURI().getRawQuery()), body(exchange));
+					failed = false;
+				}finally{
+					metrics.end(found.operation(), started, failed);
+				}
+				status = result == CREATED ? 201 : result == null ? 204 : 200;
+				if(result == CREATED) result = null;
+			}
+		}catch(TicketmasterService.NotFoundException e){
+			status = 404;
+			result = error(e.getMessage());
+		}catch(TicketmasterService.InvalidRequestException | IllegalArgumentException e){
+			//NumberFormatException is an IllegalArgumentException
+			status = 400;
+			result = error(e.getMessage());
+		}catch(BookingEngine.SeatsUnavailableException | ShowSchedule.ScheduleConflictException e){
+			status = 409;
+			result = error(e.getMessage());
+		}catch(Exception e){
+			status = 500;
+			result = error(e instanceof SQLException ? "Database error: " + e.getMessage() : e.toString());
+		}
+		byte[] response = result == null ? new byte[0] : Json.encode(result).getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, response.length == 0 ? -1 : response.length);
+		try(OutputStream out = exchange.getResponseBody()){
+			out.write(response);
+		}
+	}
+
+	private static Map<String, Object> error(String message){
+		Map<String, Object> error = new LinkedHashMap<String, Object>();
+		error.put("error", message);
+		return error;
+	}
+
+	private static long id(Matcher path, int group){
+		return Long.parseLong(path.group(group));
+	}
+
+	private static Map<?, ?> object(String body){
+		Object value = Json.parse(body);
+		if(!(value instanceof Map)) throw new IllegalArgumentException("Expected a JSON object");
+		return (Map<?, ?>) value;
+	}
+
+	private static long number(Map<?, ?> object, String member){
+		Object value = object.get(member);
+		if(!(value instanceof Number)) throw new IllegalArgumentException("Expected a number for " + member);
+		try{
+			return Json.toLong(value);
+		}catch(IllegalArgumentException e){
+			throw new IllegalArgumentException(e.getMessage() + " for " + member);
+		}
+	}
+
+	private static Map<String, String> query(String raw){
+		Map<String, String> params = new HashMap<String, String>();
+		if(raw == null || raw.isEmpty()) return params;
+		for(String pair : raw.split("&")){
+			int eq = pair.indexOf('=');
+			String name = eq < 0 ? pair : pair.substring(0, eq);
+			String value = eq < 0 ? "" : pair.substring(eq + 1);
+			params.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+		}
+		return params;
+	}
+
+	private static String body(HttpExchange exchange) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(InputStream in = exchange.getRequestBody()){
+			byte[] buffer = new byte[8192];
+			for(int n; (n = in.read(buffer)) > 0; ){
+				bytes.write(buffer, 0, n);
+				if(bytes.size() > MAX_BODY) throw new IllegalArgumentException("Request body is too large");
+			}
+		}
+		return bytes.toString(StandardCharsets.UTF_8);
+	}
+
+	public static void main (String[] args) {
+		if (args.length != 4) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + ApiServer.class.getName () +
+				" <dbname> <port> <user> <http port>");
+			return;
+		}//end if
+
+		try{
+			final Ticketmaster esql = new Ticketmaster (args[0], args[1], args[2], "");
+			final ApiServer api = new ApiServer(esql.getService(), esql.getMetrics());
+			esql.getHoldExpiry().start();
+			esql.getEmailFilter().start();
+			api.start(Integer.parseInt(args[3]));
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				api.stop(5);
+				esql.cleanup();
+			}));
+			System.out.println("Serving on port " + args[3]);
+		}catch(Exception e){
+			System.err.println (e.getMessage ());
+			System.exit(1);
+		}
+	}
+}//end ApiServer
@@ -0,0 +1,437 @@
+/*
+ * Non-interactive batch runner for the Ticketmaster operations
+ * =============================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class replays a script of operations against TicketmasterService
+ * without the menu, for bulk administration and as a workload driver.
+ * Each line of the script is one operation, either as text:
+ *
+ *   addShowing mvid=12 tid=3 sdate=2024-05-01 sttime=18:30:00
+ *   book email=a@b.com sid=40 status=Pending count=2
+ *   moviesTitled word=love since=2010-01-01
+ *
+ * or as a JSON object with the operation in "op":
+ *
+ *   {"op": "book", "email": "a@b.com", "sid": 40, "status": "Paid", "seats": [5, 6]}
+ *
+ * A text value is quoted when it has blanks and is read as JSON when it
+ * starts with [ or {. Blank lines and lines starting with # are skipped.
+ * The arguments of an operation that takes a request record are the
+ * members of that record.
+ *
+ * Operations are committed in groups of ticketmaster.batch.commitEvery
+ * (1 by default), which saves a commit round trip and a WAL flush for all
+ * but the last operation of a group. Consecutive addUser or addMovie
+ * lines of a group are sent as one JDBC batch, and consecutive addShowing
+ * lines are scheduled with one insert per table. The other writes return
+ * rows the caches are updated from, so they stay one statement each. A
+ * group runs without savepoints, which would cost two more round trips per
+ * operation; when any operation of it fails the whole group is rolled back
+ * and run again one operation per transaction, so only the operations that
+ * fail on their own are reported as failed and the others are committed.
+ *
+ * A line is printed for each operation once its group has committed:
+ * line number, operation, OK or ERROR, milliseconds and the result or the
+ * error. A table of counts and timings per operation follows at the end.
+ * The operation is recorded in the Metrics at the same time, once, with
+ * the time of the run that counted; the statements of a rolled back run
+ * are recorded too, since they did reach the database.
+ */
+public class BatchRunner{
+	//operations per transaction, set with -Dticketmaster.batch.commitEvery
+	static final int COMMIT_EVERY = Math.max(1, Integer.getInteger("ticketmaster.batch.commitEvery", 1));
+	//stop after the first group with a failed operation, set with -Dticketmaster.batch.stopOnError
+	static final boolean STOP_ON_ERROR = Boolean.getBoolean("ticketmaster.batch.stopOnError");
+
+	/**
+	 * One operation of a script, run with the arguments of its line.
+	 */
+	interface Operation{
+		Object run(Map<String, Object> args) throws SQLException;
+	}
+
+	/**
+	 * An operation that runs consecutive lines of it together, returning
+	 * the result of each line in order.
+	 */
+	interface BatchOperation{
+		List<?> run(List<Map<String, Object>> args) throws SQLException;
+	}
+
+	/**
+	 * A script line: parsed into an operation, then run and timed.
+	 */
+	static class Entry{
+		final int line;
+		String op;
+		Map<String, Object> args;
+		//whether the line parsed, so it is run
+		boolean parsed;
+		Object result;
+		Exception error;
+		long nanos;
+
+		Entry(int line){
+			this.line = line;
+		}
+	}
+
+	/**
+	 * Totals of one operation over the whole script.
+	 */
+	static class Totals{
+		int count;
+		int errors;
+		long nanos;
+		long maxNanos;
+	}
+
+	private final Ticketmaster esql;
+	private final PrintStream out;
+	private final Map<String, Operation> operations = new LinkedHashMap<String, Operation>();
+	private final Map<String, BatchOperation> batches = new LinkedHashMap<String, BatchOperation>();
+	private final Map<String, Totals> totals = new TreeMap<String, Totals>();
+
+	public BatchRunner(Ticketmaster esql, PrintStream out){
+		this.esql = esql;
+		this.out = out;
+		TicketmasterService s = esql.getService();
+
+		operation("addUser", a -> {
+			s.addUser(Json.toRecord(a, TicketmasterService.NewUser.class));
+			return null;
+		});
+		batches.put("addUser", args -> {
+			s.addUsers(records(args, TicketmasterService.NewUser.class));
+			return Collections.nCopies(args.size(), null);
+		});
+		operation("book", a -> s.book(Json.toRecord(a, TicketmasterService.BookingRequest.class)));
+		operation("addMovie", a -> s.addMovie(Json.toRecord(a, TicketmasterService.NewMovie.class)));
+		batches.put("addMovie", args -> s.addMovies(records(args, TicketmasterService.NewMovie.class)));
+		operation("addShowing", a -> s.addShowing(number(a, "mvid"), number(a, "tid"), text(a, "sdate"), text(a, "sttime")));
+		batches.put("addShowing", args -> {
+			List<TicketmasterService.NewShowing> shows = new ArrayList<TicketmasterService.NewShowing>(args.size());
+			for(Map<String, Object> a : args){
+				shows.add(new TicketmasterService.NewShowing(number(a, "mvid"), number(a, "tid"), text(a, "sdate"), text(a, "sttime")));
+			}
+			return s.addShowings(shows);
+		});
+		operation("addMovieShowing", a -> s.addMovieShowing(Json.toRecord(a, TicketmasterService.MovieShowing.class)));
+		operation("cancelPendingBookings", a -> s.cancelPendingBookings());
+		operation("changeSeat", a -> s.changeSeat(number(a, "bid"), (int) number(a, "from"), (int) number(a, "to")));
+		operation("removePayment", a -> {
+			s.removePayment(number(a, "bid"));
+			return null;
+		});
+		operation("clearCancelledBookings", a -> s.clearCancelledBookings());
+		operation("removeShowsOnDate", a -> s.removeShowsOnDate(number(a, "cid"), text(a, "date")));
+		operation("theatersPlayingShow", a -> s.theatersPlayingShow(number(a, "cid"), number(a, "mvid")));
+		operation("showsStartingAt", a -> s.showsStartingAt(text(a, "date"), text(a, "time")));
+		operation("moviesTitled", a -> s.moviesTitled(text(a, "word"), text(a, "since")));
+		operation("usersWithPendingBooking", a -> s.usersWithPendingBooking());
+		operation("movieShowsAtCinema", a -> s.movieShowsAtCinema(number(a, "mvid"), number(a, "cid"), text(a, "from"), text(a, "to")));
+		operation("bookingsOfUser", a -> s.bookingsOfUser(text(a, "email")));
+		operation("seatNumbersOfBooking", a -> s.seatNumbersOfBooking(number(a, "bid")));
+		operation("seatNumbersOfUserBooking", a -> s.seatNumbersOfUserBooking(text(a, "email"), number(a, "bid")));
+		operation("showsOfMovie", a -> s.showsOfMovie(number(a, "mvid")));
+		operation("seats", a -> s.seats(number(a, "sid")));
+	}
+
+	private void operation(String name, Operation op){
+		operations.put(name, op);
+	}
+
+	private static <T extends Record> List<T> records(List<Map<String, Object>> args, Class<T> type){
+		List<T> records = new ArrayList<T>(args.size());
+		for(Map<String, Object> a : args) records.add(Json.toRecord(a, type));
+		return records;
+	}
+
+	/**
+	 * Method to run every operation of a script.
+	 *
+	 * @return the number of operations that failed
+	 * @throws java.io.IOException when the script cannot be read
+	 */
+	public int run(BufferedReader script) throws IOException {
+		long started = System.nanoTime();
+		int failed = 0;
+		int lineNumber = 0;
+		List<Entry> group = new ArrayList<Entry>(COMMIT_EVERY);
+		for(String line; (line = script.readLine()) != null; ){
+			lineNumber++;
+			line = line.trim();
+			if(line.isEmpty() || line.startsWith("#")) continue;
+			Entry e = new Entry(lineNumber);
+			try{
+				parse(e, line);
+			}catch(IllegalArgumentException ex){
+				e.error = ex;
+			}
+			group.add(e);
+			if(group.size() == COMMIT_EVERY){
+				int groupFailures = runGroup(group);
+				failed += groupFailures;
+				group.clear();
+				if(STOP_ON_ERROR && groupFailures > 0) break;
+			}
+		}
+		if(!group.isEmpty()) failed += runGroup(group);
+		printTotals((System.nanoTime() - started) / 1e9);
+		return failed;
+	}
+
+	/**
+	 * Runs one group of operations in one transaction and reports them.
+	 *
+	 * @return the number of operations of the group that failed
+	 */
+	private int runGroup(final List<Entry> group){
+		if(group.size() == 1){
+			//its own transaction, or autocommit; runEntry records a failure
+			try{
+				runEntry(group.get(0));
+			}catch(SQLException ex){
+			}
+		}else{
+			try{
+				esql.executeInTransaction(() -> {
+					int i = 0;
+					while(i < group.size()){
+						Entry e = group.get(i);
+						int end = i + 1;
+						if(e.parsed && batches.containsKey(e.op)){
+							while(end < group.size() && group.get(end).parsed && e.op.equals(group.get(end).op)) end++;
+						}
+						if(end - i > 1) runBatch(group.subList(i, end));
+						else runEntry(e);
+						i = end;
+					}
+					return null;
+				});
+			}catch(SQLException groupFailure){
+				//nothing of the group is in the database, and the caches may have seen its writes
+				invalidateCaches();
+				for(Entry e : group){
+					if(!e.parsed) continue;
+					e.result = null;
+					e.error = null;
+					try{
+						runEntry(e);
+					}catch(SQLException ex){
+						//recorded by runEntry
+					}
+				}
+			}
+		}
+		int failures = 0;
+		for(Entry e : group){
+			if(e.parsed) esql.getMetrics().record(e.op, e.nanos, e.error != null);
+			report(e);
+			if(e.error != null) failures++;
+		}
+		return failures;
+	}
+
+	/**
+	 * Runs one parsed operation and keeps its result or error and time;
+	 * runGroup() records it in the Metrics once the outcome is final.
+	 */
+	private Object runEntry(Entry e) throws SQLException {
+		if(!e.parsed) return null;
+		long started = esql.getMetrics().begin(e.op);
+		try{
+			e.result = operations.get(e.op).run(e.args);
+			return e.result;
+		}catch(SQLException | RuntimeException ex){
+			e.error = ex;
+			if(ex instanceof SQLException) throw (SQLException) ex;
+			throw new SQLException(ex.getMessage(), ex);
+		}finally{
+			e.nanos = System.nanoTime() - started;
+			esql.getMetrics().leave();
+		}
+	}
+
+	/**
+	 * Runs consecutive lines of one operation together. Each line is timed
+	 * at its share of the whole; a failure is not kept, since the group is
+	 * run again line by line.
+	 */
+	private void runBatch(List<Entry> run) throws SQLException {
+		String op = run.get(0).op;
+		long started = esql.getMetrics().begin(op);
+		try{
+			List<Map<String, Object>> args = new ArrayList<Map<String, Object>>(run.size());
+			for(Entry e : run) args.add(e.args);
+			List<?> results = batches.get(op).run(args);
+			for(int i = 0; i < run.size(); i++) run.get(i).result = results.get(i);
+		}catch(RuntimeException ex){
+			throw new SQLException(ex.getMessage(), ex);
+		}finally{
+			long nanos = System.nanoTime() - started;
+			for(Entry e : run) e.nanos = nanos / run.size();
+			esql.getMetrics().leave();
+		}
+	}
+
+	private void invalidateCaches(){
+		esql.getSeatInventory().invalidateAll();
+		esql.getShowSchedule().invalidateAll();
+		esql.getCatalog().invalidateAll();
+		esql.getTitleIndex().invalidate();
+	}
+
+	private void parse(Entry e, String line){
+		Map<String, Object> args;
+		String op;
+		if(line.startsWith("{")){
+			Object value = Json.parse(line);
+			if(!(value instanceof Map)) throw new IllegalArgumentException("Expected a JSON object");
+			args = new LinkedHashMap<String, Object>();
+			for(Map.Entry<?, ?> m : ((Map<?, ?>) value).entrySet()) args.put(m.getKey().toString(), m.getValue());
+			Object name = args.remove("op");
+			op = name == null ? null : name.toString();
+		}else{
+			List<String> words = words(line);
+			op = words.get(0);
+			args = new LinkedHashMap<String, Object>();
+			for(String word : words.subList(1, words.size())){
+				int eq = word.indexOf('=');
+				if(eq <= 0) throw new IllegalArgumentException("Expected name=value, found " + word);
+				String value = word.substring(eq + 1);
+				args.put(word.substring(0, eq), value.startsWith("[") || value.startsWith("{") ? Json.parse(value) : value);
+			}
+		}
+		e.op = op;
+		e.args = args;
+		if(op == null || !operations.containsKey(op)) throw new IllegalArgumentException("Unknown operation " + op);
+		e.parsed = true;
+	}
+
+	/**
+	 * @return the blank separated words of a line, with double quotes grouping words
+	 */
+	static List<String> words(String line){
+		List<String> words = new ArrayList<String>();
+		StringBuilder word = new StringBuilder();
+		boolean quoted = false;
+		boolean any = false;
+		for(int i = 0; i < line.length(); i++){
+			char c = line.charAt(i);
+			if(c == '"'){
+				quoted = !quoted;
+				any = true;
+			}else if(c == '\\' && quoted && i + 1 < line.length()){
+				word.append(line.charAt(++i));
+			}else if(Character.isWhitespace(c) && !quoted){
+				if(any) words.add(word.toString());
+				word.setLength(0);
+				any = false;
+			}else{
+				word.append(c);
+				any = true;
+			}
+		}
+		if(quoted) throw new IllegalArgumentException("Unterminated quote");
+		if(any) words.add(word.toString());
+		return words;
+	}
+
+	private void report(Entry e){
+		String op = e.op == null ? "?" : e.op;
+		Totals t = totals.computeIfAbsent(op, k -> new Totals());
+		t.count++;
+		t.nanos += e.nanos;
+		t.maxNanos = Math.max(t.maxNanos, e.nanos);
+		String detail;
+		if(e.error != null){
+			t.errors++;
+			detail = e.error.getMessage();
+		}else if(e.result instanceof Collection){
+			detail = ((Collection<?>) e.result).size() + " row(s)";
+		}else{
+			detail = e.result == null ? "" : Json.encode(e.result);
+		}
+		out.println(String.format("%d\t%s\t%s\t%.3f\t%s", e.line, op, e.error == null ? "OK" : "ERROR", e.nanos / 1e6, detail));
+	}
+
+	private void printTotals(double seconds){
+		int count = 0;
+		out.println();
+		out.println(String.format("%-26s %8s %8s %10s %10s", "operation", "count", "errors", "mean ms", "max ms"));
+		for(Map.Entry<String, Totals> e : totals.entrySet()){
+			Totals t = e.getValue();
+			count += t.count;
+			out.println(String.format("%-26s %8d %8d %10.3f %10.3f", e.getKey(), t.count, t.errors,
+				t.nanos / 1e6 / Math.max(t.count, 1), t.maxNanos / 1e6));
+		}
+		out.println(String.format("%d operation(s) in %.1fs, %.0f/s, %d per commit", count, seconds, count / Math.max(seconds, 1e-9), COMMIT_EVERY));
+	}
+
+	private static long number(Map<String, Object> args, String name){
+		Object value = args.get(name);
+		if(value == null) throw new IllegalArgumentException("Missing " + name);
+		try{
+			return Json.toLong(value);
+		}catch(IllegalArgumentException e){
+			throw new IllegalArgumentException(e.getMessage() + " for " + name);
+		}
+	}
+
+	private static String text(Map<String, Object> args, String name){
+		Object value = args.get(name);
+		return value == null ? null : value.toString();
+	}
+
+	public static void main (String[] args) {
+		if (args.length < 3 || args.length > 4) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + BatchRunner.class.getName () +
+				" <dbname> <port> <user> [<script file>, standard input when omitted or -]");
+			return;
+		}//end if
+
+		Ticketmaster esql = null;
+		int status = 0;
+		try{
+			esql = new Ticketmaster (args[0], args[1], args[2], "");
+			BufferedReader script = args.length == 3 || args[3].equals("-")
+				? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+				: Files.newBufferedReader(Paths.get(args[3]), StandardCharsets.UTF_8);
+			try{
+				if(new BatchRunner(esql, System.out).run(script) > 0) status = 2;
+			}finally{
+				script.close();
+			}
+		}catch(Exception e){
+			System.err.println (e.getMessage ());
+			status = 1;
+		}finally{
+			if(esql != null) esql.cleanup();
+		}
+		System.exit(status);
+	}
+}//end BatchRunner
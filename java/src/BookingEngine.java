@@ -0,0 +1,162 @@
+/*
+ * Seat claiming for new bookings
+ * ===============================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class creates a booking and claims its seats in a single
+ * transaction. Seats are claimed with a conditional UPDATE that only
+ * matches seats whose bid is still NULL, so two clients racing for the same
+ * seat cannot both win: the loser claims fewer rows than it asked for and
+ * its whole booking is rolled back.
+ */
+public class BookingEngine{
+	//times bookBestSeats picks again after losing a seat to another booker
+	private static final int MAX_ATTEMPTS = 3;
+	//parameters: booking ID, show ID, show date, show seat IDs. The date limits the claim to one ShowSeats partition
+	static final String CLAIM_SEATS = "UPDATE showseats SET bid = ? WHERE sid = ? AND sdate = ?::date AND bid IS NULL "
+		+ "AND ssid = ANY(string_to_array(?, ',')::bigint[]) RETURNING ssid, price";
+
+	private final Ticketmaster esql;
+
+	/**
+	 * Thrown when fewer seats could be claimed than were requested. The
+	 * booking has been rolled back when this is thrown.
+	 */
+	public static class SeatsUnavailableException extends SQLException{
+		private static final long serialVersionUID = 1L;
+		public final int requested;
+		public final int claimed;
+
+		public SeatsUnavailableException(int requested, int claimed){
+			super("Only " + claimed + " of the " + requested + " requested seats are still available");
+			this.requested = requested;
+			this.claimed = claimed;
+		}
+	}
+
+	/**
+	 * A committed booking.
+	 */
+	public static class BookingResult{
+		public final long bid;
+		public final List<String> ssids;
+		public final double total;
+
+		BookingResult(long bid, List<String> ssids, double total){
+			this.bid = bid;
+			this.ssids = Collections.unmodifiableList(ssids);
+			this.total = total;
+		}
+	}
+
+	public BookingEngine(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Method to book specific seats of a show.
+	 *
+	 * @param email the user making the booking
+	 * @param sid the show ID
+	 * @param status Paid or Pending
+	 * @param ssids the show seat IDs to claim
+	 * @return the committed booking with its total price
+	 * @throws SeatsUnavailableException when any of the seats is already taken
+	 * @throws java.sql.SQLException when the booking could not be written
+	 */
+	public BookingResult bookSeats(final String email, final String sid, final String status, final List<String> ssids) throws SQLException {
+		if(ssids.isEmpty()) throw new IllegalArgumentException("No seats requested");
+		final String ssidList = String.join(",", ssids);
+		String sdate = esql.getSeatInventory().get(Long.parseLong(sid)).sdate;
+		if(sdate == null) throw new SeatsUnavailableException(ssids.size(), 0);
+		return book(email, sid, status, ssids.size(), CLAIM_SEATS, sdate, ssidList);
+	}
+
+	/**
+	 * Method to book the best free seats of a show: the best block of
+	 * adjacent seats found by SeatSelector, or the best separate seats when
+	 * the party does not fit in one block. The seats are chosen from the
+	 * seat inventory and claimed with bookSeats(); when another booker wins
+	 * one of them the show is reloaded and the choice is made again.
+	 *
+	 * @param email the user making the booking
+	 * @param sid the show ID
+	 * @param status Paid or Pending
+	 * @param count the number of seats to claim
+	 * @param maxPrice the highest acceptable price per seat, or SeatSelector.ANY_PRICE
+	 * @param stype the seat type wanted, or null for any type
+	 * @return the committed booking with its total price
+	 * @throws SeatsUnavailableException when fewer than count matching seats are free
+	 * @throws java.sql.SQLException when the booking could not be written
+	 */
+	public BookingResult bookBestSeats(String email, String sid, String status, int count, float maxPrice, String stype) throws SQLException {
+		if(count < 1) throw new IllegalArgumentException("No seats requested");
+		long show = Long.parseLong(sid);
+		SeatsUnavailableException lastFailure = null;
+		for(int attempt = 0; attempt < MAX_ATTEMPTS; attempt++){
+			SeatInventory.ShowSeats seats = esql.getSeatInventory().get(show);
+			int[] chosen = SeatSelector.findBestBlock(seats, count, maxPrice, stype);
+			if(chosen == null) chosen = SeatSelector.findBestSeats(seats, count, maxPrice, stype);
+			if(chosen == null) throw new SeatsUnavailableException(count, 0);
+
+			List<String> ssids = new ArrayList<String>();
+			for(int i : chosen) ssids.add(Long.toString(seats.ssid(i)));
+			try{
+				return bookSeats(email, sid, status, ssids);
+			}catch(SeatsUnavailableException e){
+				//bookSeats invalidated the show, so the next attempt sees fresh availability
+				lastFailure = e;
+			}
+		}
+		throw lastFailure;
+	}
+
+	public BookingResult bookBestSeats(String email, String sid, String status, int count) throws SQLException {
+		return bookBestSeats(email, sid, status, count, SeatSelector.ANY_PRICE, null);
+	}
+
+	/**
+	 * Inserts the booking, runs the seat claim and verifies the claimed count,
+	 * all in one transaction. The claim statement binds the booking ID, the
+	 * show ID, the show date and then its own argument.
+	 */
+	private BookingResult book(final String email, final String sid, final String status, final int count,
+			final String claim, final String sdate, final Object claimArg) throws SQLException {
+		if(!status.equals("Paid") && !status.equals("Pending")) throw new IllegalArgumentException("Invalid status " + status);
+		final long bid = esql.nextId(IdAllocator.BOOKING_ID);
+		final long show = Long.parseLong(sid);
+		BookingResult result;
+		try{
+			result = esql.executeInTransaction(() -> {
+				esql.executeUpdate("INSERT into bookings(bid,status,bdatetime,seats,sid,email,sdate) VALUES (?,?,now(),?,?,?,?::date)",
+					bid, status, count, show, email, sdate);
+				List<List<String>> claimed = esql.executeQueryAndReturnResult(claim, bid, show, sdate, claimArg);
+				if(claimed.size() != count) throw new SeatsUnavailableException(count, claimed.size());
+
+				List<String> ssids = new ArrayList<String>();
+				double total = 0;
+				for(List<String> seat : claimed){
+					ssids.add(seat.get(0));
+					total += Double.parseDouble(seat.get(1));
+				}
+				return new BookingResult(bid, ssids, total);
+			});
+		}catch(SeatsUnavailableException e){
+			//our view of the show was stale, reload it on next use
+			esql.getSeatInventory().invalidate(show);
+			throw e;
+		}
+		esql.getSeatInventory().markBooked(show, result.ssids);
+		return result;
+	}
+}//end BookingEngine
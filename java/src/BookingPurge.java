@@ -0,0 +1,172 @@
+/*
+ * Chunked purge of cancelled bookings into the archive
+ * =====================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class moves cancelled bookings made before a cutoff, with their
+ * payments, from Bookings and Payments to BookingsArchive and
+ * PaymentsArchive (sql/migrations/V003). Deleting them all in one
+ * statement wrote the whole purge as one transaction, cascading into
+ * Payments and ShowSeats, and held its locks until the end.
+ *
+ * The bookings are moved oldest first in batches of
+ * ticketmaster.purge.batch, each batch one statement and so one short
+ * transaction. Each batch locks its bookings with FOR UPDATE SKIP LOCKED,
+ * so a booking in use elsewhere is left for a later purge rather than
+ * waited on. The same statement records the keyset position reached in
+ * PurgeProgress, so a purge that is interrupted resumes where it stopped
+ * when it is run again. With ticketmaster.purge.maxRowsPerSec set, the
+ * batches are spaced to stay under that rate.
+ */
+public class BookingPurge{
+	//bookings moved per statement, set with -Dticketmaster.purge.batch
+	static final int BATCH = Integer.getInteger("ticketmaster.purge.batch", 500);
+	//bookings moved per second at most, 0 for no limit, set with -Dticketmaster.purge.maxRowsPerSec
+	static final int MAX_ROWS_PER_SEC = Integer.getInteger("ticketmaster.purge.maxRowsPerSec", 0);
+	//nanoseconds between progress lines
+	private static final long PROGRESS_NANOS = TimeUnit.SECONDS.toNanos(5);
+	//the PurgeProgress row of this purge
+	static final String JOB = "cancelled-bookings";
+
+	//parameters: cutoff, the last bdatetime and bid of the previous batch, the batch size, the job.
+	//One row per booking moved, in keyset order
+	static final String PURGE_BATCH = "WITH batch AS (SELECT bid, sdate FROM bookings WHERE status = 'Cancelled' AND bdatetime < ?::timestamptz "
+		+ "AND (bdatetime, bid) > (?::timestamptz, ?::bigint) ORDER BY bdatetime, bid LIMIT ? FOR UPDATE SKIP LOCKED), "
+		+ "moved AS (DELETE FROM bookings B USING batch WHERE B.bid = batch.bid RETURNING B.bid, B.status, B.bdatetime, B.seats, B.sid, B.email), "
+		+ "freed AS (UPDATE showseats S SET bid = NULL FROM batch WHERE S.bid = batch.bid AND S.sdate = batch.sdate), "
+		+ "archived AS (INSERT INTO bookingsarchive(bid, status, bdatetime, seats, sid, email) SELECT * FROM moved), "
+		+ "paid AS (INSERT INTO paymentsarchive(pid, bid, pmethod, pdatetime, amount, trid) "
+		+ "SELECT P.pid, P.bid, P.pmethod, P.pdatetime, P.amount, P.trid FROM payments P, moved M WHERE P.bid = M.bid), "
+		+ "progress AS (UPDATE purgeprogress SET last_bdatetime = L.bdatetime, last_bid = L.bid, moved = purgeprogress.moved + L.n "
+		+ "FROM (SELECT bdatetime, bid, count(*) OVER () AS n FROM moved ORDER BY bdatetime DESC, bid DESC LIMIT 1) L WHERE job = ?) "
+		+ "SELECT bid, bdatetime, sid FROM moved ORDER BY bdatetime, bid";
+
+	/**
+	 * What one run of the purge did.
+	 *
+	 * @param moved bookings archived by this run
+	 * @param total bookings archived by the purge, including runs it resumed
+	 * @param seconds how long this run took
+	 */
+	public record Result(long moved, long total, double seconds){
+		public double rowsPerSecond(){
+			return seconds > 0 ? moved / seconds : 0;
+		}
+	}
+
+	private final Ticketmaster esql;
+
+	public BookingPurge(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Method to archive the cancelled bookings made before a cutoff,
+	 * resuming a purge that was interrupted.
+	 *
+	 * @param cutoff a timestamp or date, or "now" for every cancelled booking
+	 * @param progress where to report progress, or null
+	 * @return the bookings moved and the rate
+	 * @throws java.sql.SQLException when a batch fails; the batches before it stay archived
+	 */
+	public Result purge(String cutoff, PrintStream progress) throws SQLException {
+		esql.executeUpdate("INSERT INTO purgeprogress(job, cutoff, last_bdatetime, last_bid, moved, started) "
+			+ "VALUES (?, ?::timestamptz, '-infinity', 0, 0, now()) ON CONFLICT (job) DO UPDATE SET cutoff = EXCLUDED.cutoff", JOB, cutoff);
+		List<String> saved = esql.executeQueryAndReturnResult("SELECT last_bdatetime, last_bid, moved FROM purgeprogress WHERE job = ?", JOB).get(0);
+		String lastTime = saved.get(0);
+		long lastBid = Long.parseLong(saved.get(1));
+		long resumed = Long.parseLong(saved.get(2));
+		if(progress != null && resumed > 0) progress.println(String.format("Resuming a purge that archived %,d booking(s)", resumed));
+
+		long started = System.nanoTime();
+		long lastReport = started;
+		long moved = 0;
+		while(true){
+			List<List<String>> rows = esql.executeQueryAndReturnResult(PURGE_BATCH, cutoff, lastTime, lastBid, BATCH, JOB);
+			//the seats of the bookings were freed, if any were still held
+			Set<Long> shows = new HashSet<Long>();
+			for(List<String> row : rows) shows.add(Long.parseLong(row.get(2)));
+			for(Long sid : shows) esql.getSeatInventory().invalidate(sid);
+			moved += rows.size();
+			if(!rows.isEmpty()){
+				List<String> last = rows.get(rows.size() - 1);
+				lastBid = Long.parseLong(last.get(0));
+				lastTime = last.get(1);
+			}
+			long now = System.nanoTime();
+			boolean done = rows.size() < BATCH;
+			if(progress != null && (done || now - lastReport >= PROGRESS_NANOS)){
+				progress.println(report(moved, resumed, now - started));
+				lastReport = now;
+			}
+			if(done) break;
+			throttle(started, moved);
+		}
+		esql.executeUpdate("DELETE FROM purgeprogress WHERE job = ?", JOB);
+		return new Result(moved, resumed + moved, (System.nanoTime() - started) / 1e9);
+	}
+
+	/**
+	 * Waits until moving the given number of rows since the start stays
+	 * under ticketmaster.purge.maxRowsPerSec.
+	 */
+	private static void throttle(long started, long moved) throws SQLException {
+		if(MAX_ROWS_PER_SEC <= 0) return;
+		long due = started + moved * TimeUnit.SECONDS.toNanos(1) / MAX_ROWS_PER_SEC;
+		long wait = due - System.nanoTime();
+		if(wait <= 0) return;
+		try{
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Purge interrupted after " + moved + " booking(s); run it again to resume");
+		}
+	}
+
+	private static String report(long moved, long resumed, long nanos){
+		double seconds = nanos / 1e9;
+		return String.format("%,d booking(s) archived (%,d in all) in %.1f s, %.0f rows/s",
+			moved, resumed + moved, seconds, seconds > 0 ? moved / seconds : 0);
+	}
+
+	public static void main (String[] args) {
+		if (args.length != 4) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + BookingPurge.class.getName () +
+				" <dbname> <port> <user> <cutoff>");
+			return;
+		}//end if
+
+		Ticketmaster esql = null;
+		int status = 0;
+		try{
+			esql = new Ticketmaster (args[0], args[1], args[2], "");
+			long started = esql.getMetrics().begin("PurgeCancelledBookings");
+			Result result = null;
+			try{
+				result = new BookingPurge(esql).purge(args[3], System.out);
+			}finally{
+				esql.getMetrics().end("PurgeCancelledBookings", started, result == null);
+			}
+			System.out.println(String.format("Archived %,d cancelled booking(s) made before %s", result.total(), args[3]));
+		}catch(Exception e){
+			System.err.println (e.getMessage ());
+			status = 1;
+		}finally{
+			if(esql != null) esql.cleanup();
+		}
+		System.exit(status);
+	}
+}//end BookingPurge
@@ -0,0 +1,226 @@
+/*
+ * Parallel bulk loader over the COPY protocol
+ * ============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class reloads every table from the CSV files of a directory, in
+ * the layout of data/*.csv, by streaming each file to the server with
+ * COPY ... FROM STDIN. Unlike the COPY statements in create.sql the files
+ * do not have to be on the database host.
+ *
+ * A table starts loading as soon as the tables its foreign keys point to
+ * are loaded, so independent tables load in parallel on separate
+ * connections. Indexes that do not back a constraint, such as those of
+ * sql/migrations, are dropped first and built again after the load, and
+ * the key sequences are moved past the loaded keys as create.sql does.
+ *
+ * The tables are truncated before loading; this replaces all data.
+ * ShowSales is truncated with them and filled again by its triggers as
+ * ShowSeats is loaded.
+ */
+public class BulkLoader{
+	//tables loaded at once, set with -Dticketmaster.load.threads
+	static final int THREADS = Integer.getInteger("ticketmaster.load.threads", 4);
+
+	/**
+	 * A table, the columns of its CSV file and the tables it references.
+	 * A table with showDate set keeps the date of its show, as the key of
+	 * its partition or of its show, which its CSV file does not have; it
+	 * is taken from Shows.
+	 */
+	record Table(String name, String columns, String nullAs, boolean showDate, String... parents){}
+
+	//in dependency order: every table comes after its parents
+	static final Table[] TABLES = {
+		new Table("Cities", "city_id, city_name, city_state, zip_code", null, false),
+		new Table("Movies", "mvid, title, rdate, country, description, duration, lang, genre", null, false),
+		new Table("Users", "email, lname, fname, phone, pwd", null, false),
+		new Table("Cinemas", "cid, city_id, cname, tnum", null, false, "Cities"),
+		new Table("Theaters", "tid, cid, tname, tseats", null, false, "Cinemas"),
+		new Table("CinemaSeats", "csid, tid, sno, stype", null, false, "Theaters"),
+		new Table("Shows", "sid, mvid, sdate, sttime, edtime", null, false, "Movies"),
+		new Table("Plays", "sid, tid", null, true, "Shows", "Theaters"),
+		new Table("Bookings", "bid, status, bdatetime, seats, sid, email", null, true, "Shows", "Users"),
+		new Table("Payments", "pid, bid, pmethod, pdatetime, amount, trid", null, false, "Bookings"),
+		new Table("ShowSeats", "ssid, sid, csid, bid, price", "", true, "Shows", "CinemaSeats", "Bookings"),
+	};
+
+	private final Ticketmaster esql;
+	private final Path directory;
+
+	public BulkLoader(Ticketmaster esql, Path directory){
+		this.esql = esql;
+		this.directory = directory;
+	}
+
+	/**
+	 * Method to replace the data of every table with the CSV files.
+	 *
+	 * @return the total number of rows loaded
+	 * @throws java.sql.SQLException when a table or index could not be loaded
+	 */
+	public long load() throws SQLException {
+		List<String> names = new ArrayList<String>();
+		for(Table t : TABLES) names.add(t.name());
+		//TRUNCATE fires no delete trigger, so the show counts go with the seats; the
+		//insert of ShowSeats counts them again
+		esql.executeUpdate("TRUNCATE " + String.join(", ", names) + ", ShowSales");
+
+		//indexes that back no constraint, with the statements that recreate them. The
+		//definition of an index of a partitioned table reads ON ONLY, which would build
+		//an invalid index on the parent alone; without ONLY it is built on every partition
+		final List<List<String>> indexes = esql.executeQueryAndReturnResult(
+			"SELECT I.indexrelid::regclass::text, CASE WHEN X.relkind = 'I' "
+			+ "THEN regexp_replace(pg_get_indexdef(I.indexrelid), ' ON ONLY ', ' ON ') ELSE pg_get_indexdef(I.indexrelid) END "
+			+ "FROM pg_index I, pg_class C, pg_class X "
+			+ "WHERE I.indrelid = C.oid AND I.indexrelid = X.oid AND C.relname = ANY(string_to_array(?, ',')) "
+			+ "AND NOT EXISTS (SELECT 1 FROM pg_constraint K WHERE K.conindid = I.indexrelid)",
+			String.join(",", names).toLowerCase());
+		for(List<String> index : indexes) esql.executeUpdate("DROP INDEX " + index.get(0));
+
+		ExecutorService workers = Executors.newFixedThreadPool(THREADS);
+		long rows = 0;
+		try{
+			Map<String, CompletableFuture<Long>> loaded = new LinkedHashMap<String, CompletableFuture<Long>>();
+			for(final Table t : TABLES){
+				CompletableFuture<?>[] parents = new CompletableFuture<?>[t.parents().length];
+				for(int i = 0; i < parents.length; i++) parents[i] = loaded.get(t.parents()[i]);
+				loaded.put(t.name(), CompletableFuture.allOf(parents).thenApplyAsync(ignored -> copy(t), workers));
+			}
+			for(CompletableFuture<Long> table : loaded.values()) rows += join(table);
+		}finally{
+			//build the indexes again even when the load failed
+			long started = System.currentTimeMillis();
+			List<CompletableFuture<Void>> builds = new ArrayList<CompletableFuture<Void>>();
+			for(final List<String> index : indexes){
+				builds.add(CompletableFuture.runAsync(() -> {
+					try{
+						esql.executeUpdate(index.get(1));
+					}catch(SQLException e){
+						throw new CompletionException(e);
+					}
+				}, workers));
+			}
+			for(CompletableFuture<Void> build : builds) join(build);
+			workers.shutdown();
+			if(!indexes.isEmpty()){
+				System.out.println(String.format("Built %d index(es) in %.1fs", indexes.size(), seconds(started)));
+			}
+		}
+
+		esql.executeQuery("SELECT setval('bookings_bid_seq', (SELECT COALESCE(MAX(bid), 0) FROM Bookings))");
+		esql.executeQuery("SELECT setval('movies_mvid_seq', (SELECT COALESCE(MAX(mvid), 0) FROM Movies))");
+		esql.executeQuery("SELECT setval('shows_sid_seq', (SELECT COALESCE(MAX(sid), 0) FROM Shows))");
+		esql.executeUpdate("ANALYZE");
+		return rows;
+	}
+
+	/**
+	 * Streams one CSV file into its table and reports the rate.
+	 */
+	private long copy(Table t){
+		long started = System.currentTimeMillis();
+		try(Reader data = Files.newBufferedReader(directory.resolve(t.name() + ".csv"), StandardCharsets.UTF_8)){
+			long rows = t.showDate() ? copyWithShowDate(t, data) : esql.executeCopyIn(copySql(t, t.name()), data);
+			double elapsed = seconds(started);
+			System.out.println(String.format("%-12s %,12d rows in %8.1fs  %,12.0f rows/s",
+				t.name(), rows, elapsed, rows / Math.max(elapsed, 0.001)));
+			return rows;
+		}catch(SQLException | IOException e){
+			throw new CompletionException(new SQLException("Loading " + t.name() + " failed: " + e.getMessage(), e));
+		}
+	}
+
+	private static String copySql(Table t, String into){
+		return "COPY " + into + " (" + t.columns() + ") FROM STDIN WITH DELIMITER ','"
+			+ (t.nullAs() == null ? "" : " NULL AS '" + t.nullAs() + "'");
+	}
+
+	/**
+	 * Streams a CSV file into a temporary table and inserts its rows with
+	 * the date of their show, in one transaction.
+	 *
+	 * @return the number of rows loaded
+	 */
+	private long copyWithShowDate(final Table t, final Reader data) throws SQLException, IOException {
+		final String staging = t.name() + "_csv";
+		try{
+			return esql.executeInTransaction(() -> {
+				esql.executeUpdate("CREATE TEMP TABLE " + staging + " ON COMMIT DROP AS SELECT " + t.columns() + " FROM " + t.name() + " WITH NO DATA");
+				long copied;
+				try{
+					copied = esql.executeCopyIn(copySql(t, staging), data);
+				}catch(IOException e){
+					throw new CompletionException(e);
+				}
+				long inserted = esql.executeUpdate("INSERT INTO " + t.name() + " (" + t.columns() + ", sdate) SELECT X.*, S.sdate FROM "
+					+ staging + " X JOIN Shows S ON S.sid = X.sid");
+				if(inserted != copied){
+					throw new SQLException((copied - inserted) + " row(s) of " + t.name() + ".csv refer to shows that do not exist");
+				}
+				return inserted;
+			});
+		}catch(CompletionException e){
+			if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw e;
+		}
+	}
+
+	private static <T> T join(CompletableFuture<T> future) throws SQLException {
+		try{
+			return future.join();
+		}catch(CompletionException e){
+			if(e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+			throw e;
+		}
+	}
+
+	private static double seconds(long startedMillis){
+		return (System.currentTimeMillis() - startedMillis) / 1000.0;
+	}
+
+	public static void main (String[] args) {
+		if (args.length != 4) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + BulkLoader.class.getName () +
+				" <dbname> <port> <user> <data directory>");
+			return;
+		}//end if
+
+		Ticketmaster esql = null;
+		int status = 0;
+		try{
+			esql = new Ticketmaster (args[0], args[1], args[2], "");
+			long started = System.currentTimeMillis();
+			long rows = new BulkLoader(esql, Paths.get(args[3])).load();
+			System.out.println(String.format("Loaded %,d rows in %.1fs", rows, seconds(started)));
+		}catch(Exception e){
+			System.err.println (e.getMessage ());
+			status = 1;
+		}finally{
+			if(esql != null) esql.cleanup();
+		}
+		System.exit(status);
+	}
+}//end BulkLoader
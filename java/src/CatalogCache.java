@@ -0,0 +1,311 @@
+/*
+ * Read-through cache of the reference tables
+ * ===========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * This class keeps immutable snapshots of the tables that rarely change:
+ * Movies, Cities, Cinemas, Theaters and CinemaSeats. Each table is loaded
+ * with one query the first time it is read and again once its TTL passes
+ * or a write path invalidates it, so pick lists and lookups by ID, of
+ * movies by title, of the theaters of a cinema and of the seats of a
+ * theater need no round trip. A movie added through TicketmasterService is
+ * added to the snapshot instead of dropping it.
+ *
+ * A table with more than maxRows rows is not kept. Its lookups by ID or
+ * title are then single-row queries on its keys until the TTL passes and
+ * the table is counted again; only its full listing reads every row.
+ * Theater seat lists are loaded per theater and only the most recently
+ * used maxSeatLists of them are kept.
+ */
+public class CatalogCache{
+	//milliseconds a snapshot is trusted, set with -Dticketmaster.catalog.ttlMs
+	static final long TTL_MS = Long.getLong("ticketmaster.catalog.ttlMs", 300000);
+	//largest table kept in memory, set with -Dticketmaster.catalog.maxRows
+	static final int MAX_ROWS = Integer.getInteger("ticketmaster.catalog.maxRows", 100000);
+	//number of theater seat lists kept, set with -Dticketmaster.catalog.maxSeatLists
+	static final int MAX_SEAT_LISTS = Integer.getInteger("ticketmaster.catalog.maxSeatLists", 1000);
+
+	public record Movie(long mvid, String title, String rdate, String country, String description, Integer duration, String lang, String genre){}
+	public record City(long cityId, String name, String state, String zip){}
+	public record Cinema(long cid, long cityId, String name, int tnum){}
+	public record Theater(long tid, long cid, String name, long tseats){}
+	public record CinemaSeat(long csid, long tid, int sno, String stype){}
+
+	static final String THEATERS_OF_CINEMA = "SELECT tid, cid, tname, tseats FROM theaters WHERE cid = ? ORDER BY tid";
+	static final String SEATS_OF_THEATER = "SELECT csid, tid, sno, stype FROM cinemaseats WHERE tid = ? ORDER BY sno";
+
+	/**
+	 * The rows of one table at the time it was loaded.
+	 */
+	static class Snapshot<T>{
+		final long loadedAt;
+		final List<T> rows;
+		final Map<Long, T> byId;
+		//the first row of each name, null for a table without names
+		final Map<String, T> byName;
+
+		Snapshot(List<T> rows, ToLongFunction<T> id, Function<T, String> name, long loadedAt){
+			this.loadedAt = loadedAt;
+			this.rows = Collections.unmodifiableList(rows);
+			Map<Long, T> index = new HashMap<Long, T>();
+			for(T row : rows) index.put(id.applyAsLong(row), row);
+			this.byId = Collections.unmodifiableMap(index);
+			if(name == null){
+				this.byName = null;
+			}else{
+				Map<String, T> names = new HashMap<String, T>();
+				for(T row : rows) names.putIfAbsent(name.apply(row), row);
+				this.byName = Collections.unmodifiableMap(names);
+			}
+		}
+
+		boolean isFresh(){
+			return System.currentTimeMillis() - loadedAt < TTL_MS;
+		}
+	}
+
+	/**
+	 * One cached table: the queries that load it whole and by key, how to
+	 * map and key its rows, and its current snapshot.
+	 */
+	class Table<T>{
+		final String query;
+		final String byIdQuery;
+		final String byNameQuery;
+		final RowMapper<T> mapper;
+		final ToLongFunction<T> id;
+		final Function<T, String> name;
+		volatile Snapshot<T> snapshot;
+		//when the table was last found too large to keep, 0 when it fits
+		volatile long oversizedAt;
+
+		/**
+		 * @param nameColumn the column looked up by name, or null for none
+		 */
+		Table(String table, String columns, String idColumn, String nameColumn, RowMapper<T> mapper, ToLongFunction<T> id, Function<T, String> name){
+			String select = "SELECT " + columns + " FROM " + table;
+			this.query = select + " ORDER BY " + idColumn;
+			this.byIdQuery = select + " WHERE " + idColumn + " = ?";
+			this.byNameQuery = nameColumn == null ? null : select + " WHERE " + nameColumn + " = ? ORDER BY " + idColumn + " LIMIT 1";
+			this.mapper = mapper;
+			this.id = id;
+			this.name = name;
+		}
+
+		Snapshot<T> get() throws SQLException {
+			Snapshot<T> current = snapshot;
+			if(current != null && current.isFresh()) return current;
+			final List<T> rows = new ArrayList<T>();
+			esql.executeQueryAndStream(query, rs -> rows.add(mapper.map(rs)));
+			current = new Snapshot<T>(rows, id, name, System.currentTimeMillis());
+			//too large to keep, the caller still gets this read
+			if(rows.size() <= MAX_ROWS){
+				oversizedAt = 0;
+				snapshot = current;
+			}else{
+				oversizedAt = current.loadedAt;
+				snapshot = null;
+			}
+			return current;
+		}
+
+		/**
+		 * @return the row with the ID, or null
+		 */
+		T byId(long key) throws SQLException {
+			if(isOversized()) return first(byIdQuery, key);
+			return get().byId.get(key);
+		}
+
+		/**
+		 * @return the first row with the name, or null
+		 */
+		T byName(String key) throws SQLException {
+			if(isOversized()) return first(byNameQuery, key);
+			return get().byName.get(key);
+		}
+
+		/**
+		 * Adds a row that was just committed to the snapshot, keeping its
+		 * load time. Without a snapshot the next load reads it.
+		 */
+		synchronized void add(T row){
+			Snapshot<T> current = snapshot;
+			if(current == null) return;
+			List<T> rows = new ArrayList<T>(current.rows);
+			rows.add(row);
+			snapshot = rows.size() <= MAX_ROWS ? new Snapshot<T>(rows, id, name, current.loadedAt) : null;
+		}
+
+		void invalidate(){
+			snapshot = null;
+			oversizedAt = 0;
+		}
+
+		private boolean isOversized(){
+			long at = oversizedAt;
+			return at != 0 && System.currentTimeMillis() - at < TTL_MS;
+		}
+
+		private T first(String sql, Object key) throws SQLException {
+			List<T> rows = esql.executeQueryAndMap(sql, mapper, key);
+			return rows.isEmpty() ? null : rows.get(0);
+		}
+	}
+
+	private final Ticketmaster esql;
+	private final Table<Movie> movies;
+	private final Table<City> cities;
+	private final Table<Cinema> cinemas;
+	private final Table<Theater> theaters;
+	//theaters of each cinema, rebuilt with the theaters snapshot
+	private volatile Snapshot<Theater> groupedFrom = null;
+	private volatile Map<Long, List<Theater>> theatersByCinema = Collections.emptyMap();
+	//seats of the most recently used theaters, guarded by itself
+	private final LinkedHashMap<Long, Snapshot<CinemaSeat>> seatLists;
+
+	public CatalogCache(Ticketmaster esql){
+		this.esql = esql;
+		this.movies = new Table<Movie>("movies", "mvid, title, rdate, country, description, duration, lang, genre", "mvid", "title",
+			rs -> new Movie(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getString(5),
+				(Integer) rs.getObject(6), rs.getString(7), rs.getString(8)),
+			Movie::mvid, Movie::title);
+		this.cities = new Table<City>("cities", "city_id, city_name, city_state, zip_code", "city_id", null,
+			rs -> new City(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getString(4)),
+			City::cityId, null);
+		this.cinemas = new Table<Cinema>("cinemas", "cid, city_id, cname, tnum", "cid", null,
+			rs -> new Cinema(rs.getLong(1), rs.getLong(2), rs.getString(3), rs.getInt(4)),
+			Cinema::cid, null);
+		this.theaters = new Table<Theater>("theaters", "tid, cid, tname, tseats", "tid", null,
+			rs -> new Theater(rs.getLong(1), rs.getLong(2), rs.getString(3), rs.getLong(4)),
+			Theater::tid, null);
+		this.seatLists = new LinkedHashMap<Long, Snapshot<CinemaSeat>>(16, 0.75f, true){
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Snapshot<CinemaSeat>> eldest){
+				return size() > MAX_SEAT_LISTS;
+			}
+		};
+	}
+
+	public List<Movie> movies() throws SQLException {
+		return movies.get().rows;
+	}
+
+	/**
+	 * @param mvid the movie ID
+	 * @return the movie, or null when there is none with that ID
+	 */
+	public Movie movie(long mvid) throws SQLException {
+		return movies.byId(mvid);
+	}
+
+	/**
+	 * @param title a movie title
+	 * @return the first movie with exactly that title, or null
+	 */
+	public Movie movieByTitle(String title) throws SQLException {
+		return movies.byName(title);
+	}
+
+	/**
+	 * Method to add a movie whose insert is committed.
+	 */
+	public void addMovie(Movie movie){
+		movies.add(movie);
+	}
+
+	public List<City> cities() throws SQLException {
+		return cities.get().rows;
+	}
+
+	public City city(long cityId) throws SQLException {
+		return cities.byId(cityId);
+	}
+
+	public List<Cinema> cinemas() throws SQLException {
+		return cinemas.get().rows;
+	}
+
+	public Cinema cinema(long cid) throws SQLException {
+		return cinemas.byId(cid);
+	}
+
+	public List<Theater> theaters() throws SQLException {
+		return theaters.get().rows;
+	}
+
+	public Theater theater(long tid) throws SQLException {
+		return theaters.byId(tid);
+	}
+
+	/**
+	 * @param cid the cinema ID
+	 * @return the theaters of the cinema in theater ID order, empty when there are none
+	 */
+	public List<Theater> theatersOfCinema(long cid) throws SQLException {
+		if(theaters.isOversized()) return esql.executeQueryAndMap(THEATERS_OF_CINEMA, theaters.mapper, cid);
+		Snapshot<Theater> current = theaters.get();
+		if(current != groupedFrom){
+			Map<Long, List<Theater>> grouped = new HashMap<Long, List<Theater>>();
+			for(Theater t : current.rows){
+				grouped.computeIfAbsent(t.cid(), k -> new ArrayList<Theater>()).add(t);
+			}
+			theatersByCinema = grouped;
+			groupedFrom = current;
+		}
+		List<Theater> result = theatersByCinema.get(cid);
+		return result == null ? Collections.<Theater>emptyList() : Collections.unmodifiableList(result);
+	}
+
+	/**
+	 * @param tid the theater ID
+	 * @return the seats of the theater in seat number order
+	 */
+	public List<CinemaSeat> seatsOfTheater(long tid) throws SQLException {
+		Snapshot<CinemaSeat> seats;
+		synchronized(seatLists){
+			seats = seatLists.get(tid);
+		}
+		if(seats != null && seats.isFresh()) return seats.rows;
+		List<CinemaSeat> rows = esql.executeQueryAndMap(SEATS_OF_THEATER,
+			rs -> new CinemaSeat(rs.getLong(1), rs.getLong(2), rs.getInt(3), rs.getString(4)), tid);
+		seats = new Snapshot<CinemaSeat>(rows, CinemaSeat::csid, null, System.currentTimeMillis());
+		synchronized(seatLists){
+			seatLists.put(tid, seats);
+		}
+		return seats.rows;
+	}
+
+	public void invalidateMovies(){
+		movies.invalidate();
+	}
+
+	public void invalidateCinemas(){
+		cities.invalidate();
+		cinemas.invalidate();
+		theaters.invalidate();
+		synchronized(seatLists){
+			seatLists.clear();
+		}
+	}
+
+	public void invalidateAll(){
+		invalidateMovies();
+		invalidateCinemas();
+	}
+}//end CatalogCache
@@ -0,0 +1,400 @@
+/*
+ * Bounded JDBC connection pool used by Ticketmaster
+ * ==================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps a bounded set of physical connections to the database and
+ * hands them out to callers one at a time. Connections are validated when they
+ * are borrowed, closed after they sit idle for too long, and reported when a
+ * caller holds one longer than the leak threshold.
+ *
+ * Callers must give every borrowed connection back with release().
+ */
+public class ConnectionPool{
+	//how long a borrowed connection may be held before it is reported as leaked
+	public static final long DEFAULT_LEAK_THRESHOLD_MS = 60000;
+	//how long a connection may sit unused before it is closed
+	public static final long DEFAULT_IDLE_TIMEOUT_MS = 300000;
+	//how long borrow() waits for a free connection
+	public static final long DEFAULT_BORROW_TIMEOUT_MS = 30000;
+	//number of prepared statements kept per connection
+	public static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+	//seconds given to Connection.isValid() when a connection is borrowed
+	private static final int VALIDATION_TIMEOUT_SEC = 2;
+	//connections used more recently than this are handed out without a validation round trip
+	private static final long VALIDATION_BYPASS_MS = 1000;
+	//record where each connection is borrowed for the leak report, set with -Dticketmaster.pool.leakTrace
+	static final boolean LEAK_TRACE = Boolean.getBoolean("ticketmaster.pool.leakTrace");
+
+	private final String url;
+	private final String user;
+	private final String passwd;
+	private final int maxSize;
+	private final int minIdle;
+	private final long borrowTimeoutMs;
+	private final long idleTimeoutMs;
+	private final long leakThresholdMs;
+	private final int statementCacheSize;
+
+	//guarded by this
+	private final ArrayDeque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+	private final Map<Connection, PooledConnection> leased = new IdentityHashMap<Connection, PooledConnection>();
+	private int total = 0;
+	private int waiting = 0;
+	private boolean closed = false;
+
+	//statistics, guarded by this
+	private long borrowCount = 0;
+	private long waitCount = 0;
+	private long totalWaitNanos = 0;
+	private long maxWaitNanos = 0;
+	private long timeoutCount = 0;
+	private long createdCount = 0;
+	private long evictedCount = 0;
+	private long invalidCount = 0;
+	private long leakCount = 0;
+	private int peakLeased = 0;
+
+	private final ScheduledExecutorService housekeeper;
+
+	/**
+	 * A physical connection together with the bookkeeping the pool needs.
+	 */
+	private static class PooledConnection{
+		final Connection connection;
+		final StatementCache statements;
+		long lastUsed;
+		long borrowedAt;
+		Throwable borrowSite;
+		boolean leakReported;
+
+		PooledConnection(Connection connection, int statementCacheSize){
+			this.connection = connection;
+			this.statements = new StatementCache(connection, statementCacheSize);
+			this.lastUsed = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Creates a pool and starts its housekeeping thread. No connection is
+	 * opened until the first borrow() except for the minIdle connections.
+	 *
+	 * @param url the JDBC connection URL
+	 * @param user the database user
+	 * @param passwd the database password
+	 * @param maxSize the maximum number of physical connections
+	 * @param minIdle the number of idle connections kept open by eviction
+	 * @throws java.sql.SQLException when the first connections cannot be opened
+	 */
+	public ConnectionPool(String url, String user, String passwd, int maxSize, int minIdle) throws SQLException {
+		this(url, user, passwd, maxSize, minIdle, DEFAULT_BORROW_TIMEOUT_MS, DEFAULT_IDLE_TIMEOUT_MS, DEFAULT_LEAK_THRESHOLD_MS, DEFAULT_STATEMENT_CACHE_SIZE);
+	}
+
+	public ConnectionPool(String url, String user, String passwd, int maxSize, int minIdle,
+			long borrowTimeoutMs, long idleTimeoutMs, long leakThresholdMs, int statementCacheSize) throws SQLException {
+		if(maxSize < 1) throw new IllegalArgumentException("maxSize must be at least 1");
+		this.url = url;
+		this.user = user;
+		this.passwd = passwd;
+		this.maxSize = maxSize;
+		this.minIdle = Math.max(0, Math.min(minIdle, maxSize));
+		this.borrowTimeoutMs = borrowTimeoutMs;
+		this.idleTimeoutMs = idleTimeoutMs;
+		this.leakThresholdMs = leakThresholdMs;
+		this.statementCacheSize = statementCacheSize;
+
+		//open the first connection right away so a bad URL fails here
+		for(int i = 0; i < Math.max(1, this.minIdle); i++){
+			PooledConnection pc = new PooledConnection(open(), statementCacheSize);
+			synchronized(this){
+				total++;
+				idle.addLast(pc);
+			}
+		}
+
+		this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "connection-pool-housekeeper");
+			t.setDaemon(true);
+			return t;
+		});
+		long period = Math.max(1000, Math.min(idleTimeoutMs, leakThresholdMs) / 2);
+		this.housekeeper.scheduleWithFixedDelay(this::housekeep, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	private Connection open() throws SQLException {
+		Connection c = DriverManager.getConnection(url, user, passwd);
+		synchronized(this){
+			createdCount++;
+		}
+		return c;
+	}
+
+	/**
+	 * Method to borrow a connection from the pool. Blocks until a connection
+	 * is free or the borrow timeout passes. The connection is validated before
+	 * it is handed out and is replaced if the server dropped it.
+	 *
+	 * @return a connection in autocommit mode
+	 * @throws java.sql.SQLException when no connection could be obtained
+	 */
+	public Connection borrow() throws SQLException {
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMs);
+		boolean waited = false;
+		while(true){
+			PooledConnection pc = null;
+			boolean create = false;
+			synchronized(this){
+				while(!closed && idle.isEmpty() && total >= maxSize){
+					long remaining = deadline - System.nanoTime();
+					if(remaining <= 0){
+						timeoutCount++;
+						throw new SQLException("Timed out after " + borrowTimeoutMs + "ms waiting for a database connection (" + total + " in use)");
+					}
+					waited = true;
+					waiting++;
+					try{
+						TimeUnit.NANOSECONDS.timedWait(this, remaining);
+					}catch(InterruptedException e){
+						Thread.currentThread().interrupt();
+						throw new SQLException("Interrupted while waiting for a database connection");
+					}finally{
+						waiting--;
+					}
+				}
+				if(closed) throw new SQLException("Connection pool is closed");
+				if(!idle.isEmpty()){
+					//most recently used first keeps the rest of the pool idle long enough to be evicted
+					pc = idle.pollLast();
+				}else{
+					total++;
+					create = true;
+				}
+			}
+
+			if(create){
+				try{
+					pc = new PooledConnection(open(), statementCacheSize);
+				}catch(SQLException e){
+					synchronized(this){
+						total--;
+						notifyAll();
+					}
+					throw e;
+				}
+			}else if(System.currentTimeMillis() - pc.lastUsed > VALIDATION_BYPASS_MS && !isValid(pc.connection)){
+				discard(pc);
+				synchronized(this){
+					invalidCount++;
+				}
+				continue;
+			}
+
+			long waitNanos = System.nanoTime() - start;
+			//filling in a stack trace costs microseconds, so it is off by default and never done holding the lock
+			Throwable site = LEAK_TRACE ? new Throwable("Connection borrowed here") : null;
+			synchronized(this){
+				pc.borrowedAt = System.currentTimeMillis();
+				pc.borrowSite = site;
+				pc.leakReported = false;
+				leased.put(pc.connection, pc);
+				borrowCount++;
+				if(waited) waitCount++;
+				totalWaitNanos += waitNanos;
+				if(waitNanos > maxWaitNanos) maxWaitNanos = waitNanos;
+				if(leased.size() > peakLeased) peakLeased = leased.size();
+			}
+			return pc.connection;
+		}
+	}
+
+	/**
+	 * Method to fetch the prepared statement cache of a borrowed connection.
+	 *
+	 * @param connection a connection obtained from borrow()
+	 * @return the statement cache that lives as long as the connection
+	 * @throws java.sql.SQLException when the connection is not borrowed from this pool
+	 */
+	public StatementCache statementCache(Connection connection) throws SQLException {
+		PooledConnection pc;
+		synchronized(this){
+			pc = leased.get(connection);
+		}
+		if(pc == null) throw new SQLException("Connection is not borrowed from this pool");
+		return pc.statements;
+	}
+
+	/**
+	 * Method to give a borrowed connection back to the pool. Any open
+	 * transaction is rolled back so the next borrower starts clean.
+	 *
+	 * @param connection a connection obtained from borrow()
+	 */
+	public void release(Connection connection){
+		if(connection == null) return;
+		PooledConnection pc;
+		synchronized(this){
+			pc = leased.remove(connection);
+		}
+		if(pc == null) return;
+
+		boolean healthy = true;
+		try{
+			if(connection.isClosed()){
+				healthy = false;
+			}else if(!connection.getAutoCommit()){
+				connection.rollback();
+				connection.setAutoCommit(true);
+			}
+		}catch(SQLException e){
+			healthy = false;
+		}
+
+		if(!healthy){
+			discard(pc);
+			return;
+		}
+		boolean closeNow;
+		synchronized(this){
+			closeNow = closed;
+			if(!closeNow){
+				pc.lastUsed = System.currentTimeMillis();
+				pc.borrowSite = null;
+				idle.addLast(pc);
+				notifyAll();
+			}
+		}
+		if(closeNow) discard(pc);
+	}
+
+	private boolean isValid(Connection c){
+		try{
+			return !c.isClosed() && c.isValid(VALIDATION_TIMEOUT_SEC);
+		}catch(SQLException e){
+			return false;
+		}
+	}
+
+	private void discard(PooledConnection pc){
+		pc.statements.close();
+		try{
+			pc.connection.close();
+		}catch(SQLException e){
+			// ignored.
+		}
+		synchronized(this){
+			total--;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Closes connections that have been idle past the idle timeout and
+	 * reports connections held past the leak threshold.
+	 */
+	private void housekeep(){
+		long now = System.currentTimeMillis();
+		List<PooledConnection> expired = new ArrayList<PooledConnection>();
+		List<PooledConnection> leaks = new ArrayList<PooledConnection>();
+		synchronized(this){
+			if(closed) return;
+			//oldest idle connections sit at the head of the deque
+			Iterator<PooledConnection> it = idle.iterator();
+			while(it.hasNext() && idle.size() > minIdle){
+				PooledConnection pc = it.next();
+				if(now - pc.lastUsed < idleTimeoutMs) break;
+				it.remove();
+				expired.add(pc);
+			}
+			evictedCount += expired.size();
+			for(PooledConnection pc : leased.values()){
+				if(!pc.leakReported && now - pc.borrowedAt > leakThresholdMs){
+					pc.leakReported = true;
+					leakCount++;
+					leaks.add(pc);
+				}
+			}
+		}
+		for(PooledConnection pc : expired){
+			discard(pc);
+		}
+		for(PooledConnection pc : leaks){
+			System.err.println("WARNING: database connection held for " + (now - pc.borrowedAt) + "ms without being released");
+			if(pc.borrowSite != null) pc.borrowSite.printStackTrace();
+			else System.err.println("Run with -Dticketmaster.pool.leakTrace=true to see where it was borrowed");
+		}
+	}
+
+	/**
+	 * @return the number of connections currently borrowed
+	 */
+	public synchronized int getActiveCount(){
+		return leased.size();
+	}
+
+	/**
+	 * @return the number of open connections, borrowed or idle
+	 */
+	public synchronized int getTotalCount(){
+		return total;
+	}
+
+	/**
+	 * @return the maximum number of physical connections
+	 */
+	public int getMaxSize(){
+		return maxSize;
+	}
+
+	/**
+	 * Method to describe wait time and utilization so the pool can be sized.
+	 *
+	 * @return a one line summary of the pool statistics
+	 */
+	public synchronized String getStats(){
+		double avgWaitMs = borrowCount == 0 ? 0 : (totalWaitNanos / 1e6) / borrowCount;
+		return String.format(
+			"pool: size=%d/%d active=%d idle=%d waiting=%d peak=%d utilization=%.0f%% | borrows=%d waited=%d timeouts=%d avgWait=%.3fms maxWait=%.3fms | created=%d evicted=%d invalid=%d leaks=%d",
+			total, maxSize, leased.size(), idle.size(), waiting, peakLeased,
+			100.0 * leased.size() / maxSize,
+			borrowCount, waitCount, timeoutCount, avgWaitMs, maxWaitNanos / 1e6,
+			createdCount, evictedCount, invalidCount, leakCount);
+	}
+
+	/**
+	 * Method to close every idle connection and stop housekeeping. Borrowed
+	 * connections are closed as they are released.
+	 */
+	public void close(){
+		List<PooledConnection> toClose;
+		synchronized(this){
+			if(closed) return;
+			closed = true;
+			toClose = new ArrayList<PooledConnection>(idle);
+			idle.clear();
+			notifyAll();
+		}
+		housekeeper.shutdownNow();
+		for(PooledConnection pc : toClose){
+			discard(pc);
+		}
+	}
+}//end ConnectionPool
@@ -0,0 +1,340 @@
+/*
+ * Synthetic dataset generator for load testing
+ * =============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.SplittableRandom;
+
+/**
+ * This class writes Cities.csv through Plays.csv in the layouts of the
+ * files under data/, so create.sql loads them unchanged, at a chosen
+ * scale factor. Scale 1 gives about 1,000 theaters,
+ * 38,000 shows and 4.7 million show seats; the counts grow linearly.
+ *
+ * The data keeps every foreign key, and it is skewed the way real sales
+ * are: a few movies and cities get most of the shows and bookings, and
+ * evening shows of popular movies fill up while matinees stay empty. The
+ * shows of a theater never overlap. The same seed and scale always give
+ * the same files.
+ *
+ * Rows are written as they are generated. Only per-theater, per-movie
+ * and per-user arrays are kept, so memory does not grow with the number
+ * of shows or seats.
+ */
+public class DatasetGenerator{
+	//days of shows, set with -Dticketmaster.gen.days
+	static final int DAYS = Integer.getInteger("ticketmaster.gen.days", 7);
+	//first show date, set with -Dticketmaster.gen.startDate
+	static final LocalDate START_DATE = LocalDate.parse(System.getProperty("ticketmaster.gen.startDate", "2019-01-01"));
+	//no show starts before or ends after these minutes of the day
+	static final int OPENING = 10 * 60;
+	static final int CLOSING = 23 * 60 + 59;
+	//minutes between the end of a show and the start of the next one
+	static final int CLEANING = 15;
+	private static final String[] STATES = { "NY", "CA", "IL", "TX", "AZ", "PA", "FL", "OH", "WA", "GA" };
+	private static final String[] CHAINS = { "Regal Cinemas", "AMC Theatres", "Cinemark", "Studio Movie Grill", "General Cinemas", "Harkins Theatres" };
+	private static final String[] GENRES = { "Action", "Drama", "Comedy", "Horror", "Romance", "Animation", "Documentary" };
+	private static final String[] LANGS = { "en", "en", "en", "es", "fr", "de", "ja" };
+	private static final String[] WORDS = { "Love", "Night", "Return", "Last", "City", "Dark", "Summer", "War", "Secret", "Star", "Lost", "King", "love", "Dream", "Road" };
+	private static final String[] NAMES = { "Armand", "Alberto", "Wyatt", "Maria", "Chen", "Priya", "Olga", "Kwame", "Sofia", "Liam", "Aiko", "Mateo" };
+
+	private final double scale;
+	private final long seed;
+	private final Path directory;
+
+	//rows written per file, for the summary
+	private long cities, cinemas, theaters, cinemaSeats, movies, users, shows, bookings, payments, showSeats;
+	//first cinema seat ID and number of seats of each theater, indexed by tid - 1
+	private long[] firstCsid;
+	private int[] seatCount;
+	//duration in minutes of each movie, indexed by mvid - 1
+	private int[] duration;
+
+	/**
+	 * Samples ranks 0..n-1 with probability proportional to 1/(rank+1)^exponent.
+	 */
+	static class Zipf{
+		private final double[] cdf;
+
+		Zipf(int n, double exponent){
+			cdf = new double[n];
+			double sum = 0;
+			for(int i = 0; i < n; i++){
+				sum += 1 / Math.pow(i + 1, exponent);
+				cdf[i] = sum;
+			}
+			for(int i = 0; i < n; i++) cdf[i] /= sum;
+		}
+
+		int next(SplittableRandom random){
+			double u = random.nextDouble();
+			int lo = 0, hi = cdf.length - 1;
+			while(lo < hi){
+				int mid = (lo + hi) >>> 1;
+				if(cdf[mid] < u) lo = mid + 1;
+				else hi = mid;
+			}
+			return lo;
+		}
+	}
+
+	public DatasetGenerator(Path directory, double scale, long seed){
+		this.directory = directory;
+		this.scale = scale;
+		this.seed = seed;
+	}
+
+	/**
+	 * Method to write every CSV file of the dataset.
+	 *
+	 * @throws java.io.IOException when a file cannot be written
+	 */
+	public void generate() throws IOException {
+		Files.createDirectories(directory);
+		int cityCount = Math.max(10, (int) (100 * scale));
+		int cinemaCount = Math.max(10, (int) (200 * scale));
+		int movieCount = Math.max(20, (int) (150 * Math.sqrt(scale)));
+		int userCount = Math.max(100, (int) (20000 * scale));
+
+		writeCities(cityCount);
+		writeCinemasAndTheaters(cinemaCount, cityCount);
+		writeCinemaSeats();
+		writeMovies(movieCount);
+		writeUsers(userCount);
+		writeShowsAndSales(movieCount, userCount);
+	}
+
+	private void writeCities(int count) throws IOException {
+		SplittableRandom random = new SplittableRandom(seed ^ 1);
+		try(Writer out = open("Cities.csv")){
+			for(int id = 1; id <= count; id++){
+				row(out, id, "City " + id, STATES[random.nextInt(STATES.length)], 10000 + random.nextInt(89999));
+				cities++;
+			}
+		}
+	}
+
+	private void writeCinemasAndTheaters(int count, int cityCount) throws IOException {
+		SplittableRandom random = new SplittableRandom(seed ^ 2);
+		//big cities have most of the cinemas
+		Zipf city = new Zipf(cityCount, 0.8);
+		int[] tnum = new int[count];
+		int theaterCount = 0;
+		for(int i = 0; i < count; i++){
+			tnum[i] = 2 + random.nextInt(7);
+			theaterCount += tnum[i];
+		}
+		firstCsid = new long[theaterCount];
+		seatCount = new int[theaterCount];
+
+		long csid = 1;
+		int tid = 0;
+		try(Writer cinemaOut = open("Cinemas.csv"); Writer theaterOut = open("Theaters.csv")){
+			for(int cid = 1; cid <= count; cid++){
+				String cname = CHAINS[random.nextInt(CHAINS.length)];
+				row(cinemaOut, cid, city.next(random) + 1, cname, tnum[cid - 1]);
+				cinemas++;
+				for(int k = 1; k <= tnum[cid - 1]; k++){
+					seatCount[tid] = 40 + random.nextInt(161);
+					firstCsid[tid] = csid;
+					csid += seatCount[tid];
+					tid++;
+					row(theaterOut, tid, cid, cname + " Theaters " + k, seatCount[tid - 1]);
+					theaters++;
+				}
+			}
+		}
+	}
+
+	private void writeCinemaSeats() throws IOException {
+		try(Writer out = open("CinemaSeats.csv")){
+			for(int t = 0; t < seatCount.length; t++){
+				for(int sno = 1; sno <= seatCount[t]; sno++){
+					//every other seat of the front eight is accessible
+					row(out, firstCsid[t] + sno - 1, t + 1, sno, sno <= 8 && sno % 2 == 1 ? "Handicap" : "Regular");
+					cinemaSeats++;
+				}
+			}
+		}
+	}
+
+	private void writeMovies(int count) throws IOException {
+		SplittableRandom random = new SplittableRandom(seed ^ 3);
+		duration = new int[count];
+		try(Writer out = open("Movies.csv")){
+			for(int mvid = 1; mvid <= count; mvid++){
+				duration[mvid - 1] = 80 + random.nextInt(91);
+				String title = WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)] + " " + mvid;
+				int year = 1990 + random.nextInt(30);
+				row(out, mvid, title, "1/1/" + year, "United States", "Good movie", duration[mvid - 1] * 60,
+					LANGS[random.nextInt(LANGS.length)], GENRES[random.nextInt(GENRES.length)]);
+				movies++;
+			}
+		}
+	}
+
+	private void writeUsers(int count) throws IOException {
+		SplittableRandom random = new SplittableRandom(seed ^ 4);
+		try(Writer out = open("Users.csv")){
+			for(int u = 1; u <= count; u++){
+				String lname = NAMES[random.nextInt(NAMES.length)];
+				String fname = NAMES[random.nextInt(NAMES.length)];
+				row(out, email(u), lname, fname, 2000000000L + random.nextInt(999999999), sha256("password" + u));
+				users++;
+			}
+		}
+	}
+
+	/**
+	 * Writes the shows of every theater and day with their plays rows and,
+	 * for each show, its seats with the bookings and payments that hold
+	 * them, one show at a time.
+	 */
+	private void writeShowsAndSales(int movieCount, int userCount) throws IOException {
+		SplittableRandom random = new SplittableRandom(seed ^ 5);
+		Zipf movie = new Zipf(movieCount, 1.1);
+		Zipf user = new Zipf(userCount, 0.5);
+		long sid = 0, ssid = 0, bid = 0, pid = 0;
+		try(Writer showOut = open("Shows.csv"); Writer playOut = open("Plays.csv");
+				Writer seatOut = open("ShowSeats.csv"); Writer bookingOut = open("Bookings.csv");
+				Writer paymentOut = open("Payments.csv")){
+			for(int day = 0; day < DAYS; day++){
+				LocalDate date = START_DATE.plusDays(day);
+				String sdate = date.getMonthValue() + "/" + date.getDayOfMonth() + "/" + date.getYear();
+				for(int t = 0; t < seatCount.length; t++){
+					//back to back shows with a cleaning break, so no two overlap
+					int start = OPENING + random.nextInt(4) * 15;
+					while(true){
+						int mvid = movie.next(random) + 1;
+						int end = start + duration[mvid - 1];
+						if(end > CLOSING) break;
+						sid++;
+						row(showOut, sid, mvid, sdate, time(start), time(end));
+						row(playOut, sid, t + 1);
+						shows++;
+
+						//popular movies and evening shows sell more seats
+						double popularity = 1.0 / (1 + (mvid - 1) / 5.0);
+						double evening = start >= 18 * 60 ? 1.0 : 0.4;
+						double occupancy = Math.min(0.98, (0.1 + 0.9 * popularity) * evening * (0.6 + 0.8 * random.nextDouble()));
+						int price = 6 + random.nextInt(4) + (start >= 18 * 60 ? 3 : 0);
+
+						long holder = 0;
+						int remaining = 0;
+						for(int sno = 1; sno <= seatCount[t]; sno++){
+							if(remaining == 0 && random.nextDouble() < occupancy){
+								//a party of one to six takes the next seats
+								remaining = Math.min(1 + random.nextInt(6), seatCount[t] - sno + 1);
+								bid++;
+								String status = pickStatus(random);
+								LocalDateTime when = date.atStartOfDay().minusDays(1 + random.nextInt(14)).plusMinutes(random.nextInt(24 * 60));
+								row(bookingOut, bid, status, timestamp(when), remaining, sid, email(user.next(random) + 1));
+								bookings++;
+								if(status.equals("Paid")){
+									pid++;
+									row(paymentOut, pid, bid, random.nextInt(4) == 0 ? "Cash" : "Credit Card",
+										timestamp(when.plusMinutes(random.nextInt(30))), price * remaining, 10000000 + random.nextInt(89999999));
+									payments++;
+								}
+								//cancelled bookings have released their seats
+								holder = status.equals("Cancelled") ? 0 : bid;
+							}
+							ssid++;
+							row(seatOut, ssid, sid, firstCsid[t] + sno - 1, remaining > 0 && holder != 0 ? Long.toString(holder) : "", price);
+							showSeats++;
+							if(remaining > 0) remaining--;
+						}
+						start = end + CLEANING;
+					}
+				}
+			}
+		}
+	}
+
+	private static String pickStatus(SplittableRandom random){
+		int r = random.nextInt(100);
+		return r < 80 ? "Paid" : r < 95 ? "Pending" : "Cancelled";
+	}
+
+	private static String email(int user){
+		return "user" + user + "@example.com";
+	}
+
+	/**
+	 * @return the time of day as H:mm, as in Shows.csv
+	 */
+	private static String time(int minutes){
+		return (minutes / 60) + ":" + String.format("%02d", minutes % 60);
+	}
+
+	/**
+	 * @return the date and time as M/d/yyyy H:mm, as in Bookings.csv
+	 */
+	private static String timestamp(LocalDateTime when){
+		return when.getMonthValue() + "/" + when.getDayOfMonth() + "/" + when.getYear() + " " + time(when.getHour() * 60 + when.getMinute());
+	}
+
+	private static String sha256(String text){
+		try{
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder(64);
+			for(byte b : digest) hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			return hex.toString();
+		}catch(NoSuchAlgorithmException e){
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private Writer open(String name) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(directory.resolve(name)), StandardCharsets.UTF_8), 1 << 20);
+	}
+
+	private static void row(Writer out, Object... values) throws IOException {
+		for(int i = 0; i < values.length; i++){
+			if(i > 0) out.write(',');
+			out.write(String.valueOf(values[i]));
+		}
+		out.write('\n');
+	}
+
+	public static void main (String[] args) {
+		if (args.length < 1 || args.length > 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + DatasetGenerator.class.getName () +
+				" <output directory> [<scale factor>] [<seed>]");
+			return;
+		}//end if
+
+		try{
+			double scale = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+			long seed = args.length > 2 ? Long.parseLong(args[2]) : 166;
+			long started = System.currentTimeMillis();
+			DatasetGenerator generator = new DatasetGenerator(Paths.get(args[0]), scale, seed);
+			generator.generate();
+			System.out.println("Cities " + generator.cities + ", Cinemas " + generator.cinemas + ", Theaters " + generator.theaters
+				+ ", CinemaSeats " + generator.cinemaSeats + ", Movies " + generator.movies + ", Users " + generator.users);
+			System.out.println("Shows " + generator.shows + ", ShowSeats " + generator.showSeats + ", Bookings " + generator.bookings
+				+ ", Payments " + generator.payments);
+			System.out.println("Done in " + (System.currentTimeMillis() - started) / 1000.0 + "s");
+		}catch(IOException | RuntimeException e){
+			System.err.println (e.getMessage ());
+			System.exit(1);
+		}
+	}
+}//end DatasetGenerator
@@ -0,0 +1,221 @@
+/*
+ * Bloom filter of registered emails
+ * ==================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class answers "is this email registered?" with "no" without a
+ * round trip for most emails that are not. It is a Bloom filter over
+ * Users.email: an email sets hashes bits of a bit array and an email any
+ * of whose bits is clear was never added. An email whose bits are all set
+ * may still be unregistered, so a "maybe" is checked against Users, and
+ * the primary key of Users still decides duplicates.
+ *
+ * The bits live off the heap in a direct buffer, sized for twice the rows
+ * of Users at build time so registrations have room, at
+ * ticketmaster.emailFilter.fpp false positives. They are set with
+ * compare-and-set, so adds and lookups need no lock. build() fills a new
+ * filter from a streaming scan of Users and swaps it in; emails added
+ * while it scans go into both filters. Until the first build every email
+ * is a "maybe". Past its capacity the filter stays correct, only with
+ * more false positives, until the next build.
+ *
+ * Only the emails added through this process are seen between builds,
+ * not those of other servers or of BulkLoader, so a "no" is only a hint:
+ * it lets a registration skip its lookup, where the primary key still
+ * refuses a duplicate, and is never the answer to "does this user exist?".
+ * start() builds the filter in the background and again every
+ * ticketmaster.emailFilter.rebuildSec seconds.
+ */
+public class EmailFilter{
+	//share of unregistered emails that still cost a query, set with -Dticketmaster.emailFilter.fpp
+	static final double FPP = Double.parseDouble(System.getProperty("ticketmaster.emailFilter.fpp", "0.01"));
+	//smallest number of emails a filter is sized for, set with -Dticketmaster.emailFilter.minCapacity
+	static final long MIN_CAPACITY = Long.getLong("ticketmaster.emailFilter.minCapacity", 100000);
+	//seconds between builds, 0 for only the first, set with -Dticketmaster.emailFilter.rebuildSec
+	static final long REBUILD_SEC = Long.getLong("ticketmaster.emailFilter.rebuildSec", 3600);
+	//the 64-bit words of a direct buffer, read and set atomically
+	private static final VarHandle WORDS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	/**
+	 * One bit array with its hash count.
+	 */
+	private static final class Bits{
+		final ByteBuffer words;
+		final long size;
+		final int hashes;
+
+		Bits(long capacity){
+			//the optimal bits per email and hashes for the false positive rate
+			long bits = (long) Math.ceil(-capacity * Math.log(FPP) / (Math.log(2) * Math.log(2)));
+			long words = Math.min((bits + 63) / 64, Integer.MAX_VALUE / 8);
+			this.words = ByteBuffer.allocateDirect((int) words * 8);
+			this.size = words * 64;
+			this.hashes = Math.max(1, (int) Math.round((double) size / capacity * Math.log(2)));
+		}
+
+		void add(long h1, long h2){
+			for(int i = 0; i < hashes; i++){
+				long bit = Math.floorMod(h1 + i * h2, size);
+				int at = (int) (bit >>> 6) * 8;
+				long mask = 1L << bit;
+				long word;
+				do{
+					word = (long) WORDS.getVolatile(words, at);
+					if((word & mask) != 0) break;
+				}while(!WORDS.compareAndSet(words, at, word, word | mask));
+			}
+		}
+
+		boolean mightContain(long h1, long h2){
+			for(int i = 0; i < hashes; i++){
+				long bit = Math.floorMod(h1 + i * h2, size);
+				long word = (long) WORDS.getAcquire(words, (int) (bit >>> 6) * 8);
+				if((word & (1L << bit)) == 0) return false;
+			}
+			return true;
+		}
+	}
+
+	private final Ticketmaster esql;
+	private volatile Bits current;
+	//the filter a build is filling, which adds go to as well
+	private volatile Bits building;
+	private ScheduledExecutorService scheduler;
+
+	public EmailFilter(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Method to build the filter on a background thread, then again every
+	 * ticketmaster.emailFilter.rebuildSec seconds unless that is 0.
+	 */
+	public synchronized void start(){
+		if(scheduler != null) return;
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "email-filter");
+			t.setDaemon(true);
+			return t;
+		});
+		if(REBUILD_SEC > 0){
+			scheduler.scheduleWithFixedDelay(this::runBuild, 0, REBUILD_SEC, TimeUnit.SECONDS);
+		}else{
+			scheduler.execute(this::runBuild);
+		}
+	}
+
+	/**
+	 * Method to stop the builds, waiting for one in progress.
+	 */
+	public synchronized void stop(){
+		if(scheduler == null) return;
+		scheduler.shutdown();
+		try{
+			scheduler.awaitTermination(10, TimeUnit.SECONDS);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		scheduler = null;
+	}
+
+	private void runBuild(){
+		try{
+			build();
+		}catch(SQLException e){
+			System.err.println("Building the email filter failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Method to fill a new filter from Users and start using it.
+	 *
+	 * @return the number of emails read
+	 */
+	public synchronized long build() throws SQLException {
+		List<List<String>> estimate = esql.executeQueryAndReturnResult("SELECT reltuples::bigint FROM pg_class WHERE relname = 'users'");
+		long rows = estimate.isEmpty() ? 0 : Math.max(0, Long.parseLong(estimate.get(0).get(0)));
+		final Bits bits = new Bits(Math.max(MIN_CAPACITY, 2 * rows));
+		//set before the scan starts, so an email committed after its snapshot is added here by add()
+		building = bits;
+		try{
+			final long[] read = new long[1];
+			esql.executeQueryAndStream("SELECT email FROM users", rs -> {
+				long h1 = hash(rs.getString(1));
+				bits.add(h1, second(h1));
+				read[0]++;
+			});
+			current = bits;
+			return read[0];
+		}finally{
+			building = null;
+		}
+	}
+
+	/**
+	 * Method to record a registered email, once its insert is done.
+	 */
+	public void add(String email){
+		long h1 = hash(email);
+		long h2 = second(h1);
+		Bits b = building;
+		if(b != null) b.add(h1, h2);
+		b = current;
+		if(b != null) b.add(h1, h2);
+	}
+
+	/**
+	 * @return false when the email was neither in Users at the last build
+	 * nor added since, true when it may be or the filter is not built
+	 */
+	public boolean mightContain(String email){
+		Bits b = current;
+		if(b == null) return true;
+		long h1 = hash(email);
+		return b.mightContain(h1, second(h1));
+	}
+
+	/**
+	 * 64-bit FNV-1a of the UTF-8 bytes, finished with a mix so every bit
+	 * depends on every byte.
+	 */
+	private static long hash(String email){
+		long h = 0xcbf29ce484222325L;
+		for(byte b : email.getBytes(StandardCharsets.UTF_8)){
+			h ^= b & 0xff;
+			h *= 0x100000001b3L;
+		}
+		return mix(h);
+	}
+
+	/**
+	 * @return the step between the bits of an email, odd so it is never 0
+	 */
+	private static long second(long h1){
+		return mix(h1 ^ 0x9e3779b97f4a7c15L) | 1;
+	}
+
+	/**
+	 * The splitmix64 finalizer.
+	 */
+	private static long mix(long z){
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}//end EmailFilter
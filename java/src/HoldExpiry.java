@@ -0,0 +1,132 @@
+/*
+ * Expiry of pending booking holds
+ * ================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class cancels pending bookings whose hold has run out, that is
+ * bookings still Pending ticketmaster.holds.ttlSec seconds after their
+ * bdatetime, and frees their seats. It replaces cancelling every pending
+ * booking at once, which locked them all in one statement and also
+ * killed holds made seconds before.
+ *
+ * The expired bookings are walked oldest first in chunks of
+ * ticketmaster.holds.chunk, each chunk one statement and so one short
+ * transaction: it locks the chunk's bookings with FOR UPDATE SKIP LOCKED,
+ * cancels them and frees their seats. A booking another transaction holds
+ * a lock on, such as one being paid, is skipped and left for the next pass.
+ * The walk is keyset paged on (bdatetime, bid), so skipped rows are not
+ * read again within a pass.
+ *
+ * start() runs a pass every ticketmaster.holds.periodSec seconds on a
+ * background thread; operation 4 runs one on demand.
+ */
+public class HoldExpiry{
+	//seconds a pending booking holds its seats, set with -Dticketmaster.holds.ttlSec
+	static final long TTL_SEC = Long.getLong("ticketmaster.holds.ttlSec", 900);
+	//bookings cancelled per statement, set with -Dticketmaster.holds.chunk
+	static final int CHUNK = Integer.getInteger("ticketmaster.holds.chunk", 100);
+	//seconds between background passes, 0 for none, set with -Dticketmaster.holds.periodSec
+	static final long PERIOD_SEC = Long.getLong("ticketmaster.holds.periodSec", 30);
+
+	//parameters: TTL in seconds, the last bdatetime and bid of the previous chunk, the chunk size.
+	//One row per freed seat, or one row with a null seat for a booking that held none
+	static final String EXPIRE_CHUNK = "WITH expired AS (SELECT bid FROM bookings WHERE status = 'Pending' "
+		+ "AND bdatetime < now() - ? * interval '1 second' AND (bdatetime, bid) > (?::timestamptz, ?::bigint) "
+		+ "ORDER BY bdatetime, bid LIMIT ? FOR UPDATE SKIP LOCKED), "
+		+ "cancelled AS (UPDATE bookings B SET status = 'Cancelled' FROM expired E WHERE B.bid = E.bid RETURNING B.bid, B.bdatetime, B.sdate), "
+		+ "seats AS (UPDATE showseats S SET bid = NULL FROM cancelled C WHERE S.bid = C.bid AND S.sdate = C.sdate RETURNING C.bid AS booking, S.sid, S.ssid) "
+		+ "SELECT C.bid, C.bdatetime, S.sid, S.ssid FROM cancelled C LEFT JOIN seats S ON S.booking = C.bid ORDER BY C.bdatetime, C.bid";
+
+	private final Ticketmaster esql;
+	private ScheduledExecutorService scheduler;
+
+	public HoldExpiry(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Method to start the background passes, unless ticketmaster.holds.periodSec is 0.
+	 */
+	public synchronized void start(){
+		if(PERIOD_SEC <= 0 || scheduler != null) return;
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "hold-expiry");
+			t.setDaemon(true);
+			return t;
+		});
+		scheduler.scheduleWithFixedDelay(this::runPass, PERIOD_SEC, PERIOD_SEC, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Method to stop the background passes, waiting for one in progress.
+	 */
+	public synchronized void stop(){
+		if(scheduler == null) return;
+		scheduler.shutdown();
+		try{
+			scheduler.awaitTermination(10, TimeUnit.SECONDS);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		scheduler = null;
+	}
+
+	private void runPass(){
+		long started = esql.getMetrics().begin("HoldExpiry");
+		boolean failed = true;
+		try{
+			expire();
+			failed = false;
+		}catch(SQLException e){
+			System.err.println("Expiring pending bookings failed: " + e.getMessage());
+		}finally{
+			esql.getMetrics().end("HoldExpiry", started, failed);
+		}
+	}
+
+	/**
+	 * Method to cancel every pending booking whose hold has run out and
+	 * free its seats, one chunk at a time.
+	 *
+	 * @return the number of bookings cancelled
+	 * @throws java.sql.SQLException when a chunk fails; the chunks before it stay done
+	 */
+	public int expire() throws SQLException {
+		String lastTime = "-infinity";
+		long lastBid = 0;
+		int cancelled = 0;
+		while(true){
+			List<List<String>> rows = esql.executeQueryAndReturnResult(EXPIRE_CHUNK, TTL_SEC, lastTime, lastBid, CHUNK);
+			Set<String> bookings = new HashSet<String>();
+			Map<Long, List<String>> freed = new HashMap<Long, List<String>>();
+			for(List<String> row : rows){
+				bookings.add(row.get(0));
+				if(row.get(2) != null) freed.computeIfAbsent(Long.parseLong(row.get(2)), k -> new ArrayList<String>()).add(row.get(3));
+			}
+			for(Map.Entry<Long, List<String>> show : freed.entrySet()){
+				esql.getSeatInventory().markFree(show.getKey(), show.getValue());
+			}
+			cancelled += bookings.size();
+			if(bookings.size() < CHUNK) return cancelled;
+			List<String> last = rows.get(rows.size() - 1);
+			lastTime = last.get(1);
+			lastBid = Long.parseLong(last.get(0));
+		}
+	}
+}//end HoldExpiry
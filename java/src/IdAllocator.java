@@ -0,0 +1,102 @@
+/*
+ * Hi-lo key allocator backed by Postgres sequences
+ * =================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class hands out primary keys from Postgres sequences in blocks. Each
+ * sequence is created with INCREMENT BY the block size (see sql/create.sql),
+ * so one nextval() reserves the block of keys (value - increment, value]
+ * for this process alone. Keys inside a block are handed out from memory,
+ * which means most inserts need no round trip to obtain their key, and
+ * several application instances can share a sequence without colliding.
+ *
+ * Keys left in a block when the process exits are never used, so keys are
+ * unique and increasing per process but not gap free.
+ *
+ * A block is reserved without holding the lock of the sequence: the
+ * nextval() borrows a pool connection, and a caller waiting for one while
+ * holding the lock would stall every other caller, including those whose
+ * transactions hold the connections it waits for. When two callers
+ * reserve a block at the same time, the one that finishes second drops
+ * its block, leaving a gap.
+ */
+public class IdAllocator{
+	public static final String BOOKING_ID = "bookings_bid_seq";
+	public static final String MOVIE_ID = "movies_mvid_seq";
+	public static final String SHOW_ID = "shows_sid_seq";
+
+	private final Ticketmaster esql;
+	private final ConcurrentHashMap<String, Block> blocks = new ConcurrentHashMap<String, Block>();
+
+	/**
+	 * The keys reserved by the last nextval() of one sequence.
+	 */
+	private static class Block{
+		final String sequence;
+		long increment = 0;
+		long next = 0;
+		long last = -1;
+
+		Block(String sequence){
+			this.sequence = sequence;
+		}
+	}
+
+	public IdAllocator(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Method to fetch the next key of a sequence, reserving a new block from
+	 * the database when the current one is used up.
+	 *
+	 * @param sequence name of the DB sequence
+	 * @return a key no other caller or process will receive
+	 * @throws java.sql.SQLException when the sequence cannot be read
+	 */
+	public long next(String sequence) throws SQLException {
+		Block block = blocks.computeIfAbsent(sequence, Block::new);
+		long increment;
+		synchronized(block){
+			if(block.next <= block.last) return block.next++;
+			increment = block.increment;
+		}
+		//outside the lock, see the class comment
+		if(increment == 0) increment = readIncrement(sequence);
+		long hi = esql.getNextSeqVal(sequence);
+		synchronized(block){
+			block.increment = increment;
+			if(block.next > block.last){
+				block.next = hi - increment + 1;
+				block.last = hi;
+			}
+			return block.next++;
+		}
+	}
+
+	/**
+	 * Method to forget the reserved blocks, for example after the sequences
+	 * were reset by reloading the database.
+	 */
+	public void reset(){
+		blocks.clear();
+	}
+
+	private long readIncrement(String sequence) throws SQLException {
+		String query = "SELECT increment_by FROM pg_sequences WHERE schemaname = current_schema() AND sequencename = ?";
+		List<List<String>> result = esql.executeQueryAndReturnResult(query, sequence);
+		if(result.size() == 0) throw new SQLException("Sequence " + sequence + " does not exist, run sql/create.sql");
+		long increment = Long.parseLong(result.get(0).get(0));
+		if(increment < 1) throw new SQLException("Sequence " + sequence + " must have a positive increment");
+		return increment;
+	}
+}//end IdAllocator
@@ -0,0 +1,362 @@
+/*
+ * Minimal JSON encoding and decoding
+ * ===================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.RecordComponent;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class turns the request and response records of
+ * TicketmasterService into JSON and back, so the HTTP API and the batch
+ * runner need no library beyond the JDBC driver.
+ *
+ * Records are written as objects with one member per component, in
+ * declaration order. Parsed objects are LinkedHashMaps, arrays are
+ * ArrayLists and numbers are Longs when they have no fraction or exponent
+ * and Doubles otherwise. toRecord() converts a parsed object into a record,
+ * matching members to components by name; a missing member is null, or
+ * zero for a primitive component. A long or int component takes only a
+ * whole number in its range, read exactly rather than through a double.
+ */
+public final class Json{
+	private final String text;
+	private int pos = 0;
+
+	private Json(String text){
+		this.text = text;
+	}
+
+	/**
+	 * Method to write a value as JSON: null, a string, number or boolean, a
+	 * record, a map with string keys, a collection or an array of objects.
+	 */
+	public static String encode(Object value){
+		StringBuilder out = new StringBuilder();
+		write(out, value);
+		return out.toString();
+	}
+
+	/**
+	 * Method to parse one JSON value that spans the whole text.
+	 *
+	 * @throws IllegalArgumentException when the text is not valid JSON
+	 */
+	public static Object parse(String text){
+		Json parser = new Json(text);
+		Object value = parser.value();
+		parser.skipBlanks();
+		if(parser.pos != text.length()) throw parser.error("Unexpected text after the value");
+		return value;
+	}
+
+	/**
+	 * Method to parse a JSON object into a record.
+	 *
+	 * @throws IllegalArgumentException when the text is not an object or a
+	 * member does not fit its component
+	 */
+	public static <R extends Record> R parse(String text, Class<R> type){
+		return toRecord(parse(text), type);
+	}
+
+	public static <R extends Record> R toRecord(Object value, Class<R> type){
+		if(!(value instanceof Map)) throw new IllegalArgumentException("Expected an object for " + type.getSimpleName());
+		Map<?, ?> members = (Map<?, ?>) value;
+		RecordComponent[] components = type.getRecordComponents();
+		Class<?>[] types = new Class<?>[components.length];
+		Object[] args = new Object[components.length];
+		for(int i = 0; i < components.length; i++){
+			types[i] = components[i].getType();
+			try{
+				args[i] = convert(members.get(components[i].getName()), components[i].getGenericType());
+			}catch(IllegalArgumentException e){
+				throw new IllegalArgumentException(components[i].getName() + ": " + e.getMessage());
+			}
+		}
+		try{
+			Constructor<R> constructor = type.getDeclaredConstructor(types);
+			constructor.setAccessible(true);
+			return constructor.newInstance(args);
+		}catch(ReflectiveOperationException e){
+			throw new IllegalStateException("Cannot create " + type.getName(), e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object convert(Object value, Type type){
+		Class<?> raw = (Class<?>) (type instanceof ParameterizedType ? ((ParameterizedType) type).getRawType() : type);
+		if(value == null){
+			if(raw == boolean.class) return false;
+			if(raw.isPrimitive()) return convert(0L, raw);
+			return null;
+		}
+		if(raw == String.class) return value.toString();
+		if(raw == boolean.class || raw == Boolean.class){
+			if(value instanceof Boolean) return value;
+			throw new IllegalArgumentException("Expected true or false");
+		}
+		if(raw.isPrimitive() || Number.class.isAssignableFrom(raw)){
+			if(raw == long.class || raw == Long.class) return toLong(value);
+			if(raw == int.class || raw == Integer.class){
+				long n = toLong(value);
+				if(n != (int) n) throw new IllegalArgumentException("Number out of range");
+				return (int) n;
+			}
+			if(raw == float.class || raw == Float.class) return decimal(value).floatValue();
+			if(raw == double.class || raw == Double.class) return decimal(value).doubleValue();
+			throw new IllegalArgumentException("Unsupported number type " + raw.getName());
+		}
+		if(raw.isRecord()) return toRecord(value, (Class<? extends Record>) raw);
+		if(List.class.isAssignableFrom(raw)){
+			if(!(value instanceof List)) throw new IllegalArgumentException("Expected an array");
+			Type element = type instanceof ParameterizedType ? ((ParameterizedType) type).getActualTypeArguments()[0] : Object.class;
+			List<Object> list = new ArrayList<Object>();
+			for(Object item : (List<?>) value) list.add(element == Object.class ? item : convert(item, element));
+			return list;
+		}
+		if(raw.isInstance(value)) return value;
+		throw new IllegalArgumentException("Cannot read a " + raw.getSimpleName());
+	}
+
+	//----------------------------------------------------------------
+	// Writing
+	//----------------------------------------------------------------
+
+	private static void write(StringBuilder out, Object value){
+		if(value == null){
+			out.append("null");
+		}else if(value instanceof String){
+			writeString(out, (String) value);
+		}else if(value instanceof Double || value instanceof Float){
+			double d = ((Number) value).doubleValue();
+			if(Double.isNaN(d) || Double.isInfinite(d)) out.append("null");
+			else out.append(value);
+		}else if(value instanceof Number || value instanceof Boolean){
+			out.append(value);
+		}else if(value instanceof Record){
+			out.append('{');
+			RecordComponent[] components = value.getClass().getRecordComponents();
+			for(int i = 0; i < components.length; i++){
+				if(i > 0) out.append(',');
+				writeString(out, components[i].getName());
+				out.append(':');
+				try{
+					Object member = components[i].getAccessor().invoke(value);
+					write(out, member);
+				}catch(ReflectiveOperationException e){
+					throw new IllegalStateException(e);
+				}
+			}
+			out.append('}');
+		}else if(value instanceof Map){
+			out.append('{');
+			boolean first = true;
+			for(Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()){
+				if(!first) out.append(',');
+				first = false;
+				writeString(out, String.valueOf(e.getKey()));
+				out.append(':');
+				write(out, e.getValue());
+			}
+			out.append('}');
+		}else if(value instanceof Collection || value instanceof Object[]){
+			out.append('[');
+			boolean first = true;
+			for(Object item : value instanceof Collection ? (Collection<?>) value : Arrays.asList((Object[]) value)){
+				if(!first) out.append(',');
+				first = false;
+				write(out, item);
+			}
+			out.append(']');
+		}else{
+			writeString(out, value.toString());
+		}
+	}
+
+	private static void writeString(StringBuilder out, String s){
+		out.append('"');
+		for(int i = 0; i < s.length(); i++){
+			char c = s.charAt(i);
+			switch(c){
+				case '"': out.append("\\\""); break;
+				case '\\': out.append("\\\\"); break;
+				case '\n': out.append("\\n"); break;
+				case '\r': out.append("\\r"); break;
+				case '\t': out.append("\\t"); break;
+				default:
+					if(c < 0x20) out.append(String.format("\\u%04x", (int) c));
+					else out.append(c);
+			}
+		}
+		out.append('"');
+	}
+
+	//----------------------------------------------------------------
+	// Parsing
+	//----------------------------------------------------------------
+
+	private Object value(){
+		skipBlanks();
+		if(pos >= text.length()) throw error("Unexpected end of input");
+		char c = text.charAt(pos);
+		switch(c){
+			case '{': return object();
+			case '[': return array();
+			case '"': return string();
+			case 't': return literal("true", Boolean.TRUE);
+			case 'f': return literal("false", Boolean.FALSE);
+			case 'n': return literal("null", null);
+			default:
+				if(c == '-' || (c >= '0' && c <= '9')) return number();
+				throw error("Unexpected character '" + c + "'");
+		}
+	}
+
+	private Map<String, Object> object(){
+		Map<String, Object> members = new LinkedHashMap<String, Object>();
+		pos++;
+		skipBlanks();
+		if(peek('}')) return members;
+		while(true){
+			skipBlanks();
+			if(pos >= text.length() || text.charAt(pos) != '"') throw error("Expected a member name");
+			String name = string();
+			skipBlanks();
+			expect(':');
+			members.put(name, value());
+			skipBlanks();
+			if(peek('}')) return members;
+			expect(',');
+		}
+	}
+
+	private List<Object> array(){
+		List<Object> items = new ArrayList<Object>();
+		pos++;
+		skipBlanks();
+		if(peek(']')) return items;
+		while(true){
+			items.add(value());
+			skipBlanks();
+			if(peek(']')) return items;
+			expect(',');
+		}
+	}
+
+	private String string(){
+		StringBuilder s = new StringBuilder();
+		pos++;
+		while(true){
+			if(pos >= text.length()) throw error("Unterminated string");
+			char c = text.charAt(pos++);
+			if(c == '"') return s.toString();
+			if(c != '\\'){
+				s.append(c);
+				continue;
+			}
+			if(pos >= text.length()) throw error("Unterminated string");
+			char e = text.charAt(pos++);
+			switch(e){
+				case '"': case '\\': case '/': s.append(e); break;
+				case 'b': s.append('\b'); break;
+				case 'f': s.append('\f'); break;
+				case 'n': s.append('\n'); break;
+				case 'r': s.append('\r'); break;
+				case 't': s.append('\t'); break;
+				case 'u':
+					if(pos + 4 > text.length()) throw error("Bad unicode escape");
+					try{
+						s.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+					}catch(NumberFormatException ex){
+						throw error("Bad unicode escape");
+					}
+					pos += 4;
+					break;
+				default: throw error("Bad escape '\\" + e + "'");
+			}
+		}
+	}
+
+	/**
+	 * @param value a parsed number, or its text
+	 * @return the value as a long
+	 * @throws IllegalArgumentException when it is not a whole number in range
+	 */
+	static long toLong(Object value){
+		try{
+			return decimal(value).longValueExact();
+		}catch(ArithmeticException e){
+			throw new IllegalArgumentException("Expected a whole number");
+		}
+	}
+
+	private static BigDecimal decimal(Object value){
+		if(value instanceof Long || value instanceof Integer) return BigDecimal.valueOf(((Number) value).longValue());
+		try{
+			return new BigDecimal(value.toString());
+		}catch(NumberFormatException e){
+			throw new IllegalArgumentException("Expected a number");
+		}
+	}
+
+	private Number number(){
+		int start = pos;
+		boolean integral = true;
+		if(text.charAt(pos) == '-') pos++;
+		while(pos < text.length()){
+			char c = text.charAt(pos);
+			if(c >= '0' && c <= '9') pos++;
+			else if(c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-'){
+				integral = false;
+				pos++;
+			}
+			else break;
+		}
+		String n = text.substring(start, pos);
+		try{
+			return integral ? (Number) Long.valueOf(n) : (Number) Double.valueOf(n);
+		}catch(NumberFormatException e){
+			throw error("Bad number " + n);
+		}
+	}
+
+	private Object literal(String word, Object value){
+		if(!text.startsWith(word, pos)) throw error("Unexpected token");
+		pos += word.length();
+		return value;
+	}
+
+	private boolean peek(char c){
+		if(pos < text.length() && text.charAt(pos) == c){
+			pos++;
+			return true;
+		}
+		return false;
+	}
+
+	private void expect(char c){
+		if(!peek(c)) throw error("Expected '" + c + "'");
+	}
+
+	private void skipBlanks(){
+		while(pos < text.length() && Character.isWhitespace(text.charAt(pos))) pos++;
+	}
+
+	private IllegalArgumentException error(String message){
+		return new IllegalArgumentException(message + " at offset " + pos);
+	}
+}//end Json
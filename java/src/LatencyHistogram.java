@@ -0,0 +1,102 @@
+/*
+ * Lock-free latency histogram
+ * ============================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class counts durations in nanoseconds in log-linear buckets: every
+ * power of two is split into 32 buckets, so a percentile read back is
+ * within about 3% of the true value from one nanosecond up to the range
+ * of a long. Recording is one atomic increment per counter, never locks
+ * and never allocates, so it can sit on every database call; reading a
+ * percentile walks the buckets and may see a recording in progress.
+ */
+public class LatencyHistogram{
+	private static final int SUB_BITS = 5;
+	private static final int SUB = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Method to count one duration; negative durations count as zero.
+	 *
+	 * @param nanos the duration in nanoseconds
+	 */
+	public void record(long nanos){
+		long v = Math.max(0, nanos);
+		buckets.incrementAndGet(index(v));
+		count.increment();
+		sum.add(v);
+		long m;
+		while(v > (m = max.get()) && !max.compareAndSet(m, v)){
+		}
+	}
+
+	public long count(){
+		return count.sum();
+	}
+
+	public long max(){
+		return max.get();
+	}
+
+	public double mean(){
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * @param quantile between 0 and 1, e.g. 0.99
+	 * @return the duration in nanoseconds at or below which that share of the
+	 * recordings fall, 0 when nothing was recorded
+	 */
+	public long percentile(double quantile){
+		long total = 0;
+		long[] counts = new long[BUCKETS];
+		for(int i = 0; i < BUCKETS; i++){
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		if(total == 0) return 0;
+		long target = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++){
+			seen += counts[i];
+			if(seen >= target) return Math.min(highest(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * @return the bucket of a value: values below 32 have their own bucket,
+	 * larger ones share one with the values that agree in the top 6 bits
+	 */
+	static int index(long v){
+		int exp = 63 - Long.numberOfLeadingZeros(v | 1);
+		if(exp < SUB_BITS) return (int) v;
+		int shift = exp - SUB_BITS;
+		return (shift + 1) * SUB + (int) ((v >>> shift) & (SUB - 1));
+	}
+
+	/**
+	 * @return the largest value that falls in a bucket
+	 */
+	static long highest(int index){
+		if(index < SUB) return index;
+		int shift = index / SUB - 1;
+		long lowest = (long) (SUB + index % SUB) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}//end LatencyHistogram
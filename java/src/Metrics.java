@@ -0,0 +1,325 @@
+/*
+ * Latency, row and error metrics of operations and statements
+ * ============================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * This class keeps a latency histogram, a row count and an error count for
+ * every operation and for every statement the query helpers of Ticketmaster
+ * run, each statement being tagged with the operation that issued it and
+ * keyed by its SQL with literals replaced by ?. Comparing an operation's
+ * time with the time of its statements tells database time from the rest;
+ * for the menu the rest is mostly the user typing.
+ *
+ * An operation is whatever a front end brackets with begin() and end(): a
+ * menu choice, an HTTP route of ApiServer or a script operation of
+ * BatchRunner. Nested brackets are counted too, but statements are tagged
+ * with the outermost one. Statements outside any operation, such as cache
+ * loads on a timer, are tagged "(none)".
+ *
+ * The figures are cumulative since start. They are published through JMX
+ * as ticketmaster:type=Metrics and, when -Dticketmaster.metrics.log names
+ * a file, appended to it every ticketmaster.metrics.periodSec seconds and
+ * on shutdown. A JVM publishes one Metrics: the last one started replaces
+ * the one published before it, which keeps only its log.
+ */
+public class Metrics implements MetricsMXBean{
+	//file the report is appended to, set with -Dticketmaster.metrics.log
+	static final String LOG_FILE = System.getProperty("ticketmaster.metrics.log");
+	//seconds between reports, set with -Dticketmaster.metrics.periodSec
+	static final long LOG_PERIOD_SEC = Long.getLong("ticketmaster.metrics.periodSec", 60);
+	//distinct statements tracked before the rest are counted as "(other)", set with -Dticketmaster.metrics.maxStatements
+	static final int MAX_STATEMENTS = Integer.getInteger("ticketmaster.metrics.maxStatements", 1000);
+
+	private static final String NO_OPERATION = "(none)";
+	private static final String OTHER = "(other)";
+	private static final Pattern LITERALS = Pattern.compile("'(?:[^']|'')*'|\\b\\d+(?:\\.\\d+)?\\b");
+	private static final Pattern BLANKS = Pattern.compile("\\s+");
+	private static final String MBEAN_NAME = "ticketmaster:type=Metrics";
+	//the instance registered under MBEAN_NAME, guarded by the class
+	private static Metrics published;
+
+	/**
+	 * The counters of one operation or statement.
+	 */
+	static final class Stat{
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LongAdder rows = new LongAdder();
+		final LongAdder errors = new LongAdder();
+	}
+
+	/**
+	 * The operation a thread is in and how deeply operations are nested.
+	 */
+	private static final class Tag{
+		String operation;
+		int depth;
+	}
+
+	/**
+	 * A copy of one Stat, in microseconds, as shown through JMX.
+	 */
+	public static class Snapshot{
+		private final long count, errors, rows;
+		private final double meanMicros;
+		private final long p50Micros, p99Micros, p999Micros, maxMicros;
+
+		Snapshot(Stat s){
+			LatencyHistogram h = s.latency;
+			this.count = h.count();
+			this.errors = s.errors.sum();
+			this.rows = s.rows.sum();
+			this.meanMicros = h.mean() / 1000;
+			this.p50Micros = h.percentile(0.5) / 1000;
+			this.p99Micros = h.percentile(0.99) / 1000;
+			this.p999Micros = h.percentile(0.999) / 1000;
+			this.maxMicros = h.max() / 1000;
+		}
+
+		public long getCount(){ return count; }
+		public long getErrors(){ return errors; }
+		public long getRows(){ return rows; }
+		public double getMeanMicros(){ return meanMicros; }
+		public long getP50Micros(){ return p50Micros; }
+		public long getP99Micros(){ return p99Micros; }
+		public long getP999Micros(){ return p999Micros; }
+		public long getMaxMicros(){ return maxMicros; }
+	}
+
+	private final ConcurrentHashMap<String, Stat> operations = new ConcurrentHashMap<String, Stat>();
+	//operation -> normalized SQL -> counters
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, Stat>> statements = new ConcurrentHashMap<String, ConcurrentHashMap<String, Stat>>();
+	//SQL as issued -> normalized SQL
+	private final ConcurrentHashMap<String, String> normalized = new ConcurrentHashMap<String, String>();
+	private final AtomicInteger statementKeys = new AtomicInteger();
+	private final ThreadLocal<Tag> tag = ThreadLocal.withInitial(Tag::new);
+	private ScheduledExecutorService logger;
+
+	/**
+	 * Method to publish the metrics through JMX and start the periodic log.
+	 */
+	public void start(){
+		synchronized(Metrics.class){
+			try{
+				ObjectName name = new ObjectName(MBEAN_NAME);
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				if(server.isRegistered(name)) server.unregisterMBean(name);
+				server.registerMBean(this, name);
+				published = this;
+			}catch(JMException e){
+				System.err.println("Metrics are not published through JMX: " + e.getMessage());
+			}
+		}
+		if(LOG_FILE != null){
+			logger = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "metrics-log");
+				t.setDaemon(true);
+				return t;
+			});
+			logger.scheduleAtFixedRate(this::writeLog, LOG_PERIOD_SEC, LOG_PERIOD_SEC, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Method to stop the periodic log, writing a last report, and withdraw
+	 * the metrics from JMX.
+	 */
+	public void stop(){
+		if(logger != null){
+			logger.shutdownNow();
+			writeLog();
+			logger = null;
+		}
+		synchronized(Metrics.class){
+			if(published != this) return;
+			try{
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(MBEAN_NAME));
+			}catch(JMException e){
+				//already gone
+			}
+			published = null;
+		}
+	}
+
+	/**
+	 * Method to mark the start of an operation on the current thread.
+	 *
+	 * @param operation the operation name
+	 * @return the start time to pass to end()
+	 */
+	public long begin(String operation){
+		Tag t = tag.get();
+		if(t.depth++ == 0) t.operation = operation;
+		return System.nanoTime();
+	}
+
+	/**
+	 * Method to record an operation started with begin().
+	 *
+	 * @param operation the operation name given to begin()
+	 * @param started the value begin() returned
+	 * @param failed whether the operation ended with an error
+	 */
+	public void end(String operation, long started, boolean failed){
+		record(operation, System.nanoTime() - started, failed);
+		leave();
+	}
+
+	/**
+	 * Method to record one run of an operation timed by the caller, for a
+	 * front end that knows the outcome only later, such as BatchRunner
+	 * once the transaction of the operation has committed.
+	 *
+	 * @param operation the operation name
+	 * @param nanos how long it took
+	 * @param failed whether the operation ended with an error
+	 */
+	public void record(String operation, long nanos, boolean failed){
+		Stat s = stat(operations, operation);
+		s.latency.record(nanos);
+		if(failed) s.errors.increment();
+	}
+
+	/**
+	 * Method to leave an operation started with begin() without recording
+	 * it; its statements stay recorded. The caller records it with record().
+	 */
+	public void leave(){
+		Tag t = tag.get();
+		if(--t.depth <= 0){
+			t.depth = 0;
+			t.operation = null;
+		}
+	}
+
+	/**
+	 * @return the outermost operation of the current thread, or null outside any
+	 */
+	public String currentOperation(){
+		return tag.get().operation;
+	}
+
+	/**
+	 * Method to record one statement run by a query helper.
+	 *
+	 * @param sql the SQL as issued
+	 * @param nanos how long it took, including reading its rows
+	 * @param rows the rows returned or changed, or -1 when it failed
+	 */
+	public void statement(String sql, long nanos, long rows){
+		String operation = tag.get().operation;
+		ConcurrentHashMap<String, Stat> byOperation = statements.get(operation == null ? NO_OPERATION : operation);
+		if(byOperation == null){
+			byOperation = statements.computeIfAbsent(operation == null ? NO_OPERATION : operation, k -> new ConcurrentHashMap<String, Stat>());
+		}
+		String key = normalize(sql);
+		Stat s = byOperation.get(key);
+		if(s == null){
+			if(statementKeys.get() >= MAX_STATEMENTS) key = OTHER;
+			else statementKeys.incrementAndGet();
+			s = stat(byOperation, key);
+		}
+		s.latency.record(nanos);
+		if(rows < 0){
+			s.errors.increment();
+		}else{
+			s.rows.add(rows);
+			if(operation != null) stat(operations, operation).rows.add(rows);
+		}
+	}
+
+	/**
+	 * @return the SQL with string and number literals replaced by ? and blanks collapsed
+	 */
+	static String normalizeSql(String sql){
+		String n = LITERALS.matcher(sql).replaceAll("?");
+		return BLANKS.matcher(n).replaceAll(" ").trim();
+	}
+
+	private String normalize(String sql){
+		String n = normalized.get(sql);
+		if(n == null){
+			n = normalizeSql(sql);
+			//statements built from data, such as DDL, are normalized again rather than kept
+			if(normalized.size() < MAX_STATEMENTS * 10) normalized.put(sql, n);
+		}
+		return n;
+	}
+
+	private static Stat stat(ConcurrentHashMap<String, Stat> stats, String key){
+		Stat s = stats.get(key);
+		return s != null ? s : stats.computeIfAbsent(key, k -> new Stat());
+	}
+
+	@Override
+	public Map<String, Snapshot> getOperations(){
+		Map<String, Snapshot> result = new TreeMap<String, Snapshot>();
+		for(Map.Entry<String, Stat> e : operations.entrySet()) result.put(e.getKey(), new Snapshot(e.getValue()));
+		return result;
+	}
+
+	@Override
+	public Map<String, Snapshot> getStatements(){
+		Map<String, Snapshot> result = new TreeMap<String, Snapshot>();
+		for(Map.Entry<String, ConcurrentHashMap<String, Stat>> op : statements.entrySet()){
+			for(Map.Entry<String, Stat> e : op.getValue().entrySet()){
+				result.put(op.getKey() + " | " + e.getKey(), new Snapshot(e.getValue()));
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public String getReport(){
+		StringBuilder out = new StringBuilder();
+		out.append("=== Metrics at ").append(LocalDateTime.now()).append(" (times in ms) ===\n");
+		table(out, "operation", getOperations());
+		out.append('\n');
+		table(out, "operation | statement", getStatements());
+		return out.toString();
+	}
+
+	private static void table(StringBuilder out, String title, Map<String, Snapshot> rows){
+		out.append(String.format("%10s %8s %10s %9s %9s %9s %9s %9s  %s%n",
+			"count", "errors", "rows", "mean", "p50", "p99", "p99.9", "max", title));
+		for(Map.Entry<String, Snapshot> e : rows.entrySet()){
+			Snapshot s = e.getValue();
+			out.append(String.format("%10d %8d %10d %9.2f %9.2f %9.2f %9.2f %9.2f  %s%n",
+				s.getCount(), s.getErrors(), s.getRows(), s.getMeanMicros() / 1000, s.getP50Micros() / 1000.0,
+				s.getP99Micros() / 1000.0, s.getP999Micros() / 1000.0, s.getMaxMicros() / 1000.0, e.getKey()));
+		}
+	}
+
+	private void writeLog(){
+		try{
+			Files.write(Paths.get(LOG_FILE), (getReport() + "\n").getBytes(StandardCharsets.UTF_8),
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		}catch(IOException e){
+			System.err.println("Cannot write metrics to " + LOG_FILE + ": " + e.getMessage());
+		}
+	}
+}//end Metrics
@@ -0,0 +1,31 @@
+/*
+ * Management interface of the latency metrics
+ * ============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.Map;
+
+/**
+ * What Metrics shows through JMX, for example in jconsole under
+ * ticketmaster:type=Metrics. Times are in microseconds.
+ */
+public interface MetricsMXBean{
+	/**
+	 * @return the statistics of each operation, by operation name
+	 */
+	Map<String, Metrics.Snapshot> getOperations();
+
+	/**
+	 * @return the statistics of each statement, by "operation | normalized SQL"
+	 */
+	Map<String, Metrics.Snapshot> getStatements();
+
+	/**
+	 * @return both tables as text, as written to the metrics log
+	 */
+	String getReport();
+}//end MetricsMXBean
@@ -0,0 +1,178 @@
+/*
+ * Daily partitions of the show tables
+ * ====================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * This class keeps one partition per show date of Shows, ShowSeats and
+ * Plays, which sql/create.sql partitions by sdate. Rows of a date without
+ * a partition of its own go to the default partitions.
+ *
+ * createAhead() adds the partitions of the next
+ * ticketmaster.partitions.aheadDays days. A day whose rows already sit in
+ * a default partition is skipped, since attaching a range the default
+ * partition holds rows of fails.
+ *
+ * dropExpired() removes the days more than ticketmaster.partitions.retainDays
+ * old. Removing a day moves its bookings, with their payments, to
+ * BookingsArchive and PaymentsArchive, where the cascade of the foreign key
+ * from Bookings to Shows would delete them, then detaches and drops the
+ * day's partitions:
+ * a catalog change instead of deleting every seat of every show. A day
+ * held in the default partitions is deleted row by row instead.
+ */
+public class PartitionMaintenance{
+	//days ahead of today that get their partitions, set with -Dticketmaster.partitions.aheadDays
+	static final int AHEAD_DAYS = Integer.getInteger("ticketmaster.partitions.aheadDays", 30);
+	//days before today whose shows are kept, set with -Dticketmaster.partitions.retainDays
+	static final int RETAIN_DAYS = Integer.getInteger("ticketmaster.partitions.retainDays", 365);
+	private static final DateTimeFormatter SUFFIX = DateTimeFormatter.BASIC_ISO_DATE;
+	//the partitioned tables, the referenced one last
+	private static final String[] TABLES = { "plays", "showseats", "shows" };
+
+	//parameter: the show date. Moves the bookings of the day's shows to the archive
+	static final String ARCHIVE_DAY = "WITH moved AS (DELETE FROM bookings WHERE sdate = ?::date "
+		+ "RETURNING bid, status, bdatetime, seats, sid, email), "
+		+ "archived AS (INSERT INTO bookingsarchive(bid, status, bdatetime, seats, sid, email) SELECT * FROM moved), "
+		+ "paid AS (INSERT INTO paymentsarchive(pid, bid, pmethod, pdatetime, amount, trid) "
+		+ "SELECT P.pid, P.bid, P.pmethod, P.pdatetime, P.amount, P.trid FROM payments P, moved M WHERE P.bid = M.bid) "
+		+ "SELECT count(*) FROM moved";
+
+	private final Ticketmaster esql;
+
+	public PartitionMaintenance(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * @return the name of a table's partition for a date, such as shows_p20300101
+	 */
+	static String partition(String table, LocalDate day){
+		return table + "_p" + day.format(SUFFIX);
+	}
+
+	/**
+	 * Method to create the partitions of today and the next
+	 * ticketmaster.partitions.aheadDays days that do not exist yet.
+	 *
+	 * @return the number of days given partitions
+	 * @throws java.sql.SQLException when a partition cannot be created
+	 */
+	public int createAhead(LocalDate today) throws SQLException {
+		Set<LocalDate> existing = days();
+		int created = 0;
+		for(int i = 0; i <= AHEAD_DAYS; i++){
+			final LocalDate day = today.plusDays(i);
+			if(existing.contains(day)) continue;
+			if(!esql.executeQueryAndReturnResult("SELECT 1 FROM shows_default WHERE sdate = ?::date LIMIT 1", day.toString()).isEmpty()){
+				continue;
+			}
+			esql.executeInTransaction(() -> {
+				String range = " FOR VALUES FROM ('" + day + "') TO ('" + day.plusDays(1) + "')";
+				//shows first, the others reference it
+				for(int t = TABLES.length - 1; t >= 0; t--){
+					esql.executeUpdate("CREATE TABLE " + partition(TABLES[t], day) + " PARTITION OF " + TABLES[t] + range);
+				}
+				return null;
+			});
+			created++;
+		}
+		return created;
+	}
+
+	/**
+	 * Method to remove every show date more than
+	 * ticketmaster.partitions.retainDays before today.
+	 *
+	 * @return the number of days removed
+	 * @throws java.sql.SQLException when a day cannot be removed; the days before it stay removed
+	 */
+	public int dropExpired(LocalDate today) throws SQLException {
+		LocalDate cutoff = today.minusDays(RETAIN_DAYS);
+		Set<LocalDate> expired = new TreeSet<LocalDate>();
+		for(LocalDate day : days()){
+			if(day.isBefore(cutoff)) expired.add(day);
+		}
+		for(List<String> row : esql.executeQueryAndReturnResult("SELECT DISTINCT sdate FROM shows_default WHERE sdate < ?::date", cutoff.toString())){
+			expired.add(LocalDate.parse(row.get(0)));
+		}
+		for(LocalDate day : expired) removeDay(day);
+		return expired.size();
+	}
+
+	/**
+	 * Method to remove the shows of a date with their seats, plays and
+	 * bookings, in one transaction. The bookings are archived.
+	 *
+	 * @return the number of bookings archived
+	 * @throws java.sql.SQLException when the day cannot be removed, which changes nothing
+	 */
+	public long removeDay(final LocalDate day) throws SQLException {
+		final boolean partitioned = days().contains(day);
+		long archived = esql.executeInTransaction(() -> {
+			long moved = Long.parseLong(esql.executeQueryAndReturnResult(ARCHIVE_DAY, day.toString()).get(0).get(0));
+			for(String table : TABLES){
+				if(partitioned){
+					esql.executeUpdate("ALTER TABLE " + table + " DETACH PARTITION " + partition(table, day));
+					esql.executeUpdate("DROP TABLE " + partition(table, day));
+				}else{
+					esql.executeUpdate("DELETE FROM " + table + " WHERE sdate = ?::date", day.toString());
+				}
+			}
+			//no trigger sees the partitions dropped, and the deletes above counted down into new stripes
+			esql.executeUpdate("DELETE FROM showsales WHERE sdate = ?::date", day.toString());
+			return moved;
+		});
+		esql.getShowSchedule().invalidateDate(day.toString());
+		esql.getSeatInventory().invalidateAll();
+		return archived;
+	}
+
+	/**
+	 * @return the dates that have partitions of their own
+	 */
+	private Set<LocalDate> days() throws SQLException {
+		Set<LocalDate> days = new TreeSet<LocalDate>();
+		for(List<String> row : esql.executeQueryAndReturnResult("SELECT C.relname FROM pg_inherits I, pg_class C "
+				+ "WHERE I.inhrelid = C.oid AND I.inhparent = 'shows'::regclass AND C.relname ~ '^shows_p[0-9]{8}$'")){
+			days.add(LocalDate.parse(row.get(0).substring("shows_p".length()), SUFFIX));
+		}
+		return days;
+	}
+
+	public static void main (String[] args) {
+		if (args.length != 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + PartitionMaintenance.class.getName () +
+				" <dbname> <port> <user>");
+			return;
+		}//end if
+
+		Ticketmaster esql = null;
+		int status = 0;
+		try{
+			esql = new Ticketmaster (args[0], args[1], args[2], "");
+			PartitionMaintenance maintenance = new PartitionMaintenance(esql);
+			LocalDate today = LocalDate.now();
+			System.out.println("Created the partitions of " + maintenance.createAhead(today) + " day(s)");
+			System.out.println("Removed " + maintenance.dropExpired(today) + " day(s) older than " + RETAIN_DAYS + " days");
+		}catch(Exception e){
+			System.err.println (e.getMessage ());
+			status = 1;
+		}finally{
+			if(esql != null) esql.cleanup();
+		}
+		System.exit(status);
+	}
+}//end PartitionMaintenance
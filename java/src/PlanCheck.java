@@ -0,0 +1,189 @@
+/*
+ * Query plan check for the menu operations
+ * =========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class runs EXPLAIN on the queries of the 14 menu operations and
+ * reports every sequential scan of a large table, a table being large when
+ * the planner estimates it has at least minRows rows. The statements of one
+ * show or booking must also read a single partition of each table
+ * partitioned by show date; a plan touching more than one is reported. It
+ * exits with status 1 when it finds either, so it can gate a schema or
+ * query change.
+ *
+ * The queries are bound to IDs taken from the data so the planner sees
+ * realistic values. EXPLAIN does not run the statements, so the writes
+ * are checked without changing anything. The statements are the constants
+ * the operations run, so a change to their SQL is checked as it is made.
+ */
+public class PlanCheck{
+	//smallest table whose sequential scan fails the check, set with -Dticketmaster.planCheck.minRows
+	static final long MIN_ROWS = Long.getLong("ticketmaster.planCheck.minRows", 10000);
+	private static final Pattern SEQ_SCAN = Pattern.compile("Seq Scan on (\\w+)");
+	private static final Pattern SCAN = Pattern.compile(" on (\\w+)");
+
+	private final Ticketmaster esql;
+
+	/**
+	 * One statement of an operation with the values to bind.
+	 */
+	record Check(String operation, String sql, Object... params){}
+
+	public PlanCheck(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * @param s sample values keyed by column: bid, email, sid, mvid, sdate, sttime, tid, cid
+	 * @return the statements of every operation that filter or join on a column
+	 */
+	static List<Check> checks(Map<String, String> s){
+		List<Check> checks = new ArrayList<Check>();
+		checks.add(new Check("1 AddUser", TicketmasterService.USER_BY_EMAIL, s.get("email")));
+		checks.add(new Check("2 AddBooking", TicketmasterService.SHOWS_OF_MOVIE, s.get("mvid")));
+		checks.add(new Check("2 AddBooking", TicketmasterService.SHOW_SALES, s.get("sid")));
+		checks.add(new Check("2 AddBooking", SeatInventory.SHOW_DATE_OF_ANY_DAY, s.get("sid")));
+		checks.add(new Check("3 AddMovieShowingToTheater", TicketmasterService.SHOWS_OF_THEATER, s.get("tid")));
+		checks.add(new Check("3 AddMovieShowingToTheater", ShowSchedule.SHOWS_OF_DAY, s.get("tid"), s.get("sdate")));
+		checks.add(new Check("3 AddMovieShowingToTheater", ShowSchedule.CONFLICTS, s.get("tid"), s.get("sdate"), "0", "3600"));
+		checks.add(new Check("4 CancelPendingBookings", HoldExpiry.EXPIRE_CHUNK, HoldExpiry.TTL_SEC, "-infinity", 0, HoldExpiry.CHUNK));
+		checks.add(new Check("5 ChangeSeatsForBooking", TicketmasterService.SEATS_OF_BOOKING, s.get("bid")));
+		checks.add(new Check("5 ChangeSeatsForBooking", TicketmasterService.REPLACEMENT_SEATS, 1, s.get("bid"), s.get("bid")));
+		checks.add(new Check("7 ClearCancelledBookings", BookingPurge.PURGE_BATCH, "now", "-infinity", 0, BookingPurge.BATCH, BookingPurge.JOB));
+		checks.add(new Check("8 RemoveShowsOnDate", TicketmasterService.REMOVE_SHOWS_ON_DATE, s.get("sdate"), s.get("cid")));
+		checks.add(new Check("9 ListTheatersPlayingShow", TicketmasterService.THEATERS_PLAYING_SHOW, s.get("cid"), s.get("mvid")));
+		checks.add(new Check("10 ListShowsStartingOnTimeAndDate", TicketmasterService.SHOWS_STARTING_AT, s.get("sdate"), s.get("sttime")));
+		checks.add(new Check("12 ListUsersWithPendingBooking", TicketmasterService.USERS_WITH_PENDING_BOOKING));
+		checks.add(new Check("13 ListMovieAndShowInfoAtCinemaInDateRange", TicketmasterService.MOVIE_SHOWS_AT_CINEMA, s.get("cid"), s.get("sdate"), s.get("sdate"), s.get("sdate"), s.get("sdate"), s.get("mvid")));
+		checks.add(new Check("14 ListBookingInfoForUser", TicketmasterService.BOOKINGS_OF_USER, s.get("email")));
+		checks.add(new Check("14 ListBookingInfoForUser", TicketmasterService.USER_BOOKING, s.get("email"), s.get("bid")));
+		return checks;
+	}
+
+	/**
+	 * @param s sample values as for checks()
+	 * @return the statements that bind a show date and must read one partition
+	 */
+	static List<Check> oneDayChecks(Map<String, String> s){
+		List<Check> checks = new ArrayList<Check>();
+		checks.add(new Check("2 AddBooking", SeatInventory.SHOW_DATE, s.get("sid")));
+		checks.add(new Check("2 AddBooking", SeatInventory.LOAD_SEATS, s.get("sid"), s.get("sdate")));
+		checks.add(new Check("2 AddBooking", BookingEngine.CLAIM_SEATS, s.get("bid"), s.get("sid"), s.get("sdate"), "1,2"));
+		checks.add(new Check("5 ChangeSeatsForBooking", TicketmasterService.BOOKING_SHOW_DATE, s.get("bid")));
+		checks.add(new Check("5 ChangeSeatsForBooking", TicketmasterService.CHANGE_SEAT, 1, s.get("bid"), s.get("sdate"), 2, s.get("sdate"), s.get("sdate")));
+		checks.add(new Check("6 RemovePayment", TicketmasterService.REMOVE_PAYMENT, s.get("bid"), s.get("sdate")));
+		checks.add(new Check("14 ListBookingInfoForUser", TicketmasterService.SEATS_OF_USER_BOOKING, s.get("bid"), s.get("bid")));
+		return checks;
+	}
+
+	/**
+	 * Method to explain every check and collect the sequential scans of
+	 * large tables and the one-day statements that read several partitions.
+	 *
+	 * @return one line per offending plan, empty when every plan is fine
+	 * @throws java.sql.SQLException when a statement cannot be explained
+	 */
+	public List<String> run() throws SQLException {
+		final Map<String, Long> rows = new HashMap<String, Long>();
+		esql.executeQueryAndStream("SELECT relname, reltuples::bigint FROM pg_class WHERE relkind IN ('r', 'p')",
+			rs -> rows.put(rs.getString(1), rs.getLong(2)));
+
+		final Map<String, String> parents = new HashMap<String, String>();
+		esql.executeQueryAndStream("SELECT C.relname, P.relname FROM pg_inherits I, pg_class C, pg_class P "
+			+ "WHERE I.inhrelid = C.oid AND I.inhparent = P.oid AND P.relkind = 'p'",
+			rs -> parents.put(rs.getString(1), rs.getString(2)));
+
+		Map<String, String> s = samples();
+		List<String> failures = new ArrayList<String>();
+		for(Check check : checks(s)) failures.addAll(explain(check, rows, null));
+		for(Check check : oneDayChecks(s)) failures.addAll(explain(check, rows, parents));
+		return failures;
+	}
+
+	/**
+	 * @param parents the partitioned table of each partition, or null when
+	 * the check may read any number of partitions
+	 * @return the failures of one check
+	 */
+	private List<String> explain(Check check, Map<String, Long> rows, Map<String, String> parents) throws SQLException {
+		List<String> failures = new ArrayList<String>();
+		Map<String, Set<String>> read = new HashMap<String, Set<String>>();
+		for(List<String> line : esql.executeQueryAndReturnResult("EXPLAIN " + check.sql(), check.params())){
+			Matcher seqScan = SEQ_SCAN.matcher(line.get(0));
+			if(seqScan.find()){
+				long estimate = rows.getOrDefault(seqScan.group(1), 0L);
+				if(estimate >= MIN_ROWS){
+					failures.add(check.operation() + ": sequential scan of " + seqScan.group(1) + " (" + estimate + " rows) in " + check.sql());
+				}
+			}
+			if(parents == null) continue;
+			Matcher scan = SCAN.matcher(line.get(0));
+			while(scan.find()){
+				String parent = parents.get(scan.group(1));
+				if(parent != null) read.computeIfAbsent(parent, k -> new TreeSet<String>()).add(scan.group(1));
+			}
+		}
+		for(Map.Entry<String, Set<String>> table : read.entrySet()){
+			if(table.getValue().size() > 1){
+				failures.add(check.operation() + ": " + table.getValue().size() + " partitions of " + table.getKey() + " read in " + check.sql());
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * @return IDs and dates of one booked show, or placeholders on an empty database
+	 */
+	private Map<String, String> samples() throws SQLException {
+		Map<String, String> s = new HashMap<String, String>();
+		String[] keys = { "bid", "email", "sid", "mvid", "sdate", "sttime", "tid", "cid" };
+		String[] placeholders = { "1", "nobody@example.com", "1", "1", "2019-01-01", "08:00:00", "1", "1" };
+		List<List<String>> row = esql.executeQueryAndReturnResult("SELECT B.bid, B.email, S.sid, S.mvid, S.sdate, S.sttime, P.tid, T.cid "
+			+ "FROM bookings B, shows S, plays P, theaters T WHERE B.sid = S.sid AND P.sid = S.sid AND P.sdate = S.sdate AND P.tid = T.tid LIMIT 1");
+		for(int i = 0; i < keys.length; i++){
+			s.put(keys[i], row.isEmpty() ? placeholders[i] : row.get(0).get(i));
+		}
+		return s;
+	}
+
+	public static void main (String[] args) {
+		if (args.length != 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + PlanCheck.class.getName () +
+				" <dbname> <port> <user>");
+			return;
+		}//end if
+
+		Ticketmaster esql = null;
+		int status = 0;
+		try{
+			esql = new Ticketmaster (args[0], args[1], args[2], "");
+			List<String> failures = new PlanCheck(esql).run();
+			for(String failure : failures) System.out.println(failure);
+			System.out.println(failures.isEmpty() ? "No sequential scans of tables with " + MIN_ROWS + " or more rows and no unpruned partitions"
+				: failures.size() + " plan(s) scan a large table or several partitions");
+			if(!failures.isEmpty()) status = 1;
+		}catch(Exception e){
+			System.err.println (e.getMessage ());
+			status = 1;
+		}finally{
+			if(esql != null) esql.cleanup();
+		}
+		System.exit(status);
+	}
+}//end PlanCheck
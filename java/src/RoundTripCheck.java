@@ -0,0 +1,192 @@
+/*
+ * Round trip check for the menu operations
+ * =========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class counts the statements each operation sends to the database
+ * for a small and a large input taken from the data, such as the cinema
+ * with the fewest theaters and the one with the most, and fails when the
+ * large input takes more. An operation whose round trips grow with the
+ * data has a loop issuing one statement per row, the N+1 pattern, where a
+ * single set-based statement belongs. It exits with status 1 when it finds
+ * one, so it can gate a change like PlanCheck does.
+ *
+ * Every run happens in a transaction that is rolled back, so the writes
+ * change nothing, and starts with empty caches, so cache loads count the
+ * same for both inputs. Each input runs twice and the lower count is kept,
+ * so a run that happens to reserve a new block of keys does not fail.
+ */
+public class RoundTripCheck{
+	private final Ticketmaster esql;
+
+	/**
+	 * Runs an operation for one row of a probe's sizing query.
+	 */
+	interface Action{
+		void run(Ticketmaster esql, List<String> row) throws SQLException;
+	}
+
+	/**
+	 * An operation and a query listing its inputs from smallest to largest;
+	 * the last column of each row is the size.
+	 */
+	record Probe(String operation, String sizing, Action action){}
+
+	/**
+	 * Thrown inside the transaction of a run to roll it back.
+	 */
+	private static final class Rollback extends RuntimeException{
+		private static final long serialVersionUID = 1L;
+
+		Rollback(){
+			super(null, null, false, false);
+		}
+	}
+
+	public RoundTripCheck(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	static List<Probe> probes(){
+		List<Probe> probes = new ArrayList<Probe>();
+		probes.add(new Probe("2 AddBooking",
+			"SELECT (SELECT email FROM users LIMIT 1), sid, LEAST(COUNT(*), 10) FROM showseats WHERE bid IS NULL GROUP BY sid ORDER BY 3",
+			(e, r) -> e.getService().book(new TicketmasterService.BookingRequest(r.get(0), Long.parseLong(r.get(1)), "Pending", Integer.parseInt(r.get(2)), null, null, null))));
+		probes.add(new Probe("3 AddMovieShowingToTheater",
+			"SELECT (SELECT MIN(mvid) FROM movies), (SELECT MIN(tid) FROM theaters), n FROM (VALUES (1), (10)) V(n)",
+			(e, r) -> {
+				//back to back showings on a day far from the data
+				List<ShowSchedule.Showing> showings = new ArrayList<ShowSchedule.Showing>();
+				for(int i = 0; i < Integer.parseInt(r.get(2)); i++){
+					showings.add(new ShowSchedule.Showing(r.get(0), r.get(1), "2099-01-01", ShowSchedule.formatSeconds(i * 3600), 3000));
+				}
+				e.getShowSchedule().addShowings(showings);
+			}));
+		probes.add(new Probe("5 ChangeSeatsForBooking",
+			//a booked seat with a free seat of the same price, so every step of the menu runs
+			"SELECT O.bid, MIN(C.sno), (SELECT COUNT(*) FROM showseats A WHERE A.bid = O.bid) FROM showseats O, cinemaseats C "
+				+ "WHERE O.csid = C.csid AND O.bid IS NOT NULL AND EXISTS (SELECT 1 FROM showseats F WHERE F.sid = O.sid AND F.sdate = O.sdate "
+				+ "AND F.bid IS NULL AND F.price = O.price) GROUP BY O.bid ORDER BY 3",
+			(e, r) -> {
+				long bid = Long.parseLong(r.get(0));
+				int sno = Integer.parseInt(r.get(1));
+				e.getService().seatNumbersOfBooking(bid);
+				List<TicketmasterService.Seat> replacements = e.getService().replacementSeats(bid, sno);
+				e.getService().changeSeat(bid, sno, replacements.get(0).sno());
+			}));
+		probes.add(new Probe("6 RemovePayment",
+			"SELECT bid, COUNT(*) FROM showseats WHERE bid IS NOT NULL GROUP BY bid ORDER BY 2",
+			(e, r) -> e.getService().removePayment(Long.parseLong(r.get(0)))));
+		probes.add(new Probe("8 RemoveShowsOnDate",
+			"SELECT T.cid, S.sdate, COUNT(DISTINCT T.tid) FROM plays P, shows S, theaters T WHERE P.sid = S.sid AND P.tid = T.tid GROUP BY T.cid, S.sdate ORDER BY 3",
+			(e, r) -> e.getService().removeShowsOnDate(Long.parseLong(r.get(0)), r.get(1))));
+		probes.add(new Probe("9 ListTheatersPlayingShow",
+			"SELECT T.cid, S.mvid, COUNT(DISTINCT T.tid) FROM plays P, shows S, theaters T WHERE P.sid = S.sid AND P.tid = T.tid GROUP BY T.cid, S.mvid ORDER BY 3",
+			(e, r) -> e.getService().theatersPlayingShow(Long.parseLong(r.get(0)), Long.parseLong(r.get(1)))));
+		probes.add(new Probe("13 ListMovieAndShowInfoAtCinemaInDateRange",
+			"SELECT T.cid, S.mvid, MIN(S.sdate), MAX(S.sdate), COUNT(*) FROM plays P, shows S, theaters T WHERE P.sid = S.sid AND P.tid = T.tid GROUP BY T.cid, S.mvid ORDER BY 5",
+			(e, r) -> e.getService().movieShowsAtCinema(Long.parseLong(r.get(1)), Long.parseLong(r.get(0)), r.get(2), r.get(3))));
+		probes.add(new Probe("14 ListBookingInfoForUser",
+			"SELECT email, COUNT(*) FROM bookings GROUP BY email ORDER BY 2",
+			(e, r) -> e.getService().bookingsOfUser(r.get(0))));
+		return probes;
+	}
+
+	/**
+	 * Method to run every probe with its smallest and largest input.
+	 *
+	 * @return one line per operation whose statements grow with its input
+	 * @throws java.sql.SQLException when a probe fails to run
+	 */
+	public List<String> run() throws SQLException {
+		List<String> failures = new ArrayList<String>();
+		for(Probe probe : probes()){
+			List<List<String>> inputs = esql.executeQueryAndReturnResult(probe.sizing());
+			if(inputs.isEmpty()){
+				System.out.println(String.format("%-44s no data", probe.operation()));
+				continue;
+			}
+			List<String> small = inputs.get(0);
+			List<String> large = inputs.get(inputs.size() - 1);
+			long smallCount = Math.min(count(probe, small), count(probe, small));
+			long largeCount = Math.min(count(probe, large), count(probe, large));
+			boolean grows = largeCount > smallCount;
+			System.out.println(String.format("%-44s size %6s: %3d statement(s)   size %6s: %3d statement(s)   %s",
+				probe.operation(), size(small), smallCount, size(large), largeCount, grows ? "GROWS" : "ok"));
+			if(grows){
+				failures.add(probe.operation() + ": " + smallCount + " statement(s) at size " + size(small)
+					+ " but " + largeCount + " at size " + size(large));
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * Runs a probe for one input in a rolled back transaction.
+	 *
+	 * @return the statements the run sent
+	 */
+	private long count(final Probe probe, final List<String> input) throws SQLException {
+		invalidateCaches();
+		final long[] statements = new long[1];
+		try{
+			esql.executeInTransaction(() -> {
+				long before = esql.getStatementCount();
+				probe.action().run(esql, input);
+				statements[0] = esql.getStatementCount() - before;
+				throw new Rollback();
+			});
+		}catch(Rollback expected){
+		}finally{
+			//the caches may have seen writes that were rolled back
+			invalidateCaches();
+		}
+		return statements[0];
+	}
+
+	private void invalidateCaches(){
+		esql.getSeatInventory().invalidateAll();
+		esql.getShowSchedule().invalidateAll();
+		esql.getCatalog().invalidateAll();
+		esql.getTitleIndex().invalidate();
+	}
+
+	private static String size(List<String> row){
+		return row.get(row.size() - 1);
+	}
+
+	public static void main (String[] args) {
+		if (args.length != 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + RoundTripCheck.class.getName () +
+				" <dbname> <port> <user>");
+			return;
+		}//end if
+
+		Ticketmaster esql = null;
+		int status = 0;
+		try{
+			esql = new Ticketmaster (args[0], args[1], args[2], "");
+			List<String> failures = new RoundTripCheck(esql).run();
+			for(String failure : failures) System.out.println(failure);
+			System.out.println(failures.isEmpty() ? "No operation's round trips grow with its input"
+				: failures.size() + " operation(s) issue a statement per row");
+			if(!failures.isEmpty()) status = 1;
+		}catch(Exception e){
+			System.err.println (e.getMessage ());
+			status = 1;
+		}finally{
+			if(esql != null) esql.cleanup();
+		}
+		System.exit(status);
+	}
+}//end RoundTripCheck
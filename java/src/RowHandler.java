@@ -0,0 +1,20 @@
+/*
+ * Callback for streamed query results
+ * ====================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Receives the rows of a streamed query one at a time. The result set is
+ * positioned on the current row when handle() is called; implementations
+ * read the columns they need and must not advance or close it.
+ */
+public interface RowHandler{
+	void handle(ResultSet rs) throws SQLException;
+}//end RowHandler
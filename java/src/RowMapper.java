@@ -0,0 +1,19 @@
+/*
+ * Mapping of query rows to values
+ * ================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Turns the current row of a result set into a value, usually a record.
+ * Like a RowHandler it must not advance or close the result set.
+ */
+public interface RowMapper<T>{
+	T map(ResultSet rs) throws SQLException;
+}//end RowMapper
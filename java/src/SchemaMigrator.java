@@ -0,0 +1,184 @@
+/*
+ * Versioned schema migrations
+ * ============================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * This class applies the scripts in sql/migrations on top of the schema
+ * created by sql/create.sql. A script is named V<version>__<description>.sql
+ * and is applied once, in version order, in its own transaction; the
+ * schema_migrations table records each applied version with a checksum so
+ * a script that was edited after it ran is reported instead of ignored.
+ *
+ * Statements are split on a semicolon at the end of a line, so a script
+ * must not put two statements on one line or end a line inside a string
+ * with one. A function body between $$ quotes is kept whole, as long as
+ * the quotes are not inside a comment. Statements that cannot run in a
+ * transaction, such as CREATE INDEX CONCURRENTLY or VACUUM, are not
+ * supported.
+ */
+public class SchemaMigrator{
+	private static final Pattern SCRIPT_NAME = Pattern.compile("V(\\d+)__(\\w+)\\.sql");
+
+	private final Ticketmaster esql;
+	private final Path directory;
+
+	/**
+	 * A migration script found on disk.
+	 */
+	static class Migration{
+		final int version;
+		final String description;
+		final String checksum;
+		final List<String> statements;
+
+		Migration(int version, String description, String script) throws SQLException {
+			this.version = version;
+			this.description = description.replace('_', ' ');
+			this.checksum = sha256(script);
+			this.statements = split(script);
+		}
+	}
+
+	public SchemaMigrator(Ticketmaster esql, Path directory){
+		this.esql = esql;
+		this.directory = directory;
+	}
+
+	/**
+	 * Method to apply every migration that has not been applied yet.
+	 *
+	 * @return the number of migrations applied
+	 * @throws java.sql.SQLException when a migration fails, which rolls it back, or
+	 * when an applied migration no longer matches its script
+	 * @throws java.io.IOException when the scripts cannot be read
+	 */
+	public int migrate() throws SQLException, IOException {
+		esql.executeUpdate("CREATE TABLE IF NOT EXISTS schema_migrations ("
+			+ "version INTEGER NOT NULL, description VARCHAR(128) NOT NULL, checksum CHAR(64) NOT NULL, "
+			+ "applied_at TIMESTAMPTZ NOT NULL DEFAULT now(), PRIMARY KEY(version))");
+		int applied = 0;
+		for(final Migration m : load()){
+			boolean ran = esql.executeInTransaction(() -> {
+				//one migrator at a time; a second one waits and then sees the version applied
+				esql.executeUpdate("LOCK TABLE schema_migrations IN EXCLUSIVE MODE");
+				List<List<String>> row = esql.executeQueryAndReturnResult("SELECT checksum FROM schema_migrations WHERE version = ?", m.version);
+				if(!row.isEmpty()){
+					if(!row.get(0).get(0).equals(m.checksum)){
+						throw new SQLException("Migration V" + m.version + " was changed after it was applied");
+					}
+					return false;
+				}
+				for(String statement : m.statements) esql.executeUpdate(statement);
+				esql.executeUpdate("INSERT INTO schema_migrations(version, description, checksum) VALUES (?,?,?)",
+					m.version, m.description, m.checksum);
+				return true;
+			});
+			if(ran){
+				System.out.println("Applied V" + m.version + " " + m.description);
+				applied++;
+			}
+		}
+		return applied;
+	}
+
+	/**
+	 * @return the migration scripts of the directory in version order
+	 */
+	List<Migration> load() throws SQLException, IOException {
+		List<Migration> migrations = new ArrayList<Migration>();
+		try(Stream<Path> files = Files.list(directory)){
+			for(Path file : (Iterable<Path>) files::iterator){
+				Matcher name = SCRIPT_NAME.matcher(file.getFileName().toString());
+				if(!name.matches()) continue;
+				String script = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+				migrations.add(new Migration(Integer.parseInt(name.group(1)), name.group(2), script));
+			}
+		}
+		migrations.sort((a, b) -> Integer.compare(a.version, b.version));
+		for(int i = 1; i < migrations.size(); i++){
+			if(migrations.get(i).version == migrations.get(i - 1).version){
+				throw new SQLException("Two migration scripts have version " + migrations.get(i).version);
+			}
+		}
+		return migrations;
+	}
+
+	/**
+	 * @return the statements of a script, without comments
+	 */
+	static List<String> split(String script){
+		List<String> statements = new ArrayList<String>();
+		StringBuilder current = new StringBuilder();
+		boolean inBody = false;
+		for(String line : script.split("\r?\n")){
+			int comment = line.indexOf("--");
+			if(comment >= 0) line = line.substring(0, comment);
+			line = line.trim();
+			if(line.isEmpty()) continue;
+			if(current.length() > 0) current.append('\n');
+			current.append(line);
+			for(int at = line.indexOf("$$"); at >= 0; at = line.indexOf("$$", at + 2)) inBody = !inBody;
+			if(!inBody && line.endsWith(";")){
+				current.setLength(current.length() - 1);
+				statements.add(current.toString());
+				current.setLength(0);
+			}
+		}
+		if(current.length() > 0) statements.add(current.toString());
+		return statements;
+	}
+
+	private static String sha256(String script) throws SQLException {
+		try{
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(script.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for(byte b : digest) hex.append(String.format("%02x", b));
+			return hex.toString();
+		}catch(NoSuchAlgorithmException e){
+			throw new SQLException(e);
+		}
+	}
+
+	public static void main (String[] args) {
+		if (args.length < 3 || args.length > 4) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + SchemaMigrator.class.getName () +
+				" <dbname> <port> <user> [<migrations directory>]");
+			return;
+		}//end if
+
+		Ticketmaster esql = null;
+		int status = 0;
+		try{
+			esql = new Ticketmaster (args[0], args[1], args[2], "");
+			Path directory = Paths.get(args.length == 4 ? args[3] : "../sql/migrations");
+			int applied = new SchemaMigrator(esql, directory).migrate();
+			System.out.println(applied == 0 ? "Schema is up to date" : "Applied " + applied + " migration(s)");
+		}catch(Exception e){
+			System.err.println (e.getMessage ());
+			status = 1;
+		}finally{
+			if(esql != null) esql.cleanup();
+		}
+		System.exit(status);
+	}
+}//end SchemaMigrator
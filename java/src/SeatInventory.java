@@ -0,0 +1,257 @@
+/*
+ * In-memory seat availability per show
+ * =====================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class caches the seats of each show as a handful of parallel
+ * primitive arrays plus one bitset of free seats, so availability counts
+ * and seat maps are answered without a round trip. A show is loaded on
+ * first use and every write path that changes showseats.bid updates or
+ * invalidates it after its transaction commits.
+ *
+ * The cache only sees writes made by this process; entries are reloaded
+ * after the TTL so changes from other instances show up eventually. The
+ * database stays the arbiter: seat claims are conditional updates, and a
+ * claim that loses a race invalidates the show.
+ */
+public class SeatInventory{
+	//milliseconds a loaded show is trusted, set with -Dticketmaster.seats.ttlMs
+	static final long TTL_MS = Long.getLong("ticketmaster.seats.ttlMs", 30000);
+
+	//the date of a show, from its unpartitioned ShowSales rows
+	static final String SHOW_DATE = "SELECT sdate FROM showsales WHERE sid = ? LIMIT 1";
+	//the date of a show without ShowSales rows, probing every partition of Shows
+	static final String SHOW_DATE_OF_ANY_DAY = "SELECT sdate FROM shows WHERE sid = ?";
+	//the seats of a show, read from the ShowSeats partition of its date
+	static final String LOAD_SEATS = "SELECT S.ssid, S.csid, C.sno, C.stype, S.price, S.bid IS NULL FROM showseats S, cinemaseats C "
+		+ "WHERE S.csid = C.csid AND S.sid = ? AND S.sdate = ?::date ORDER BY C.sno";
+
+	private final Ticketmaster esql;
+	private final ConcurrentHashMap<Long, ShowSeats> shows = new ConcurrentHashMap<Long, ShowSeats>();
+
+	/**
+	 * The seats of one show in seat number order. Position i of every array
+	 * describes the same seat, and bit i of free is set while it is unbooked.
+	 */
+	public static class ShowSeats{
+		public final long sid;
+		//the show date, the ShowSeats partition key; null when the show has no seats
+		public final String sdate;
+		final long loadedAt;
+		private final long[] ssid;
+		private final long[] csid;
+		private final int[] sno;
+		private final String[] stype;
+		private final float[] price;
+		private final BitSet free;
+		//ssids in ascending order and the position each one has in the arrays above
+		private final long[] sortedSsid;
+		private final int[] ssidPosition;
+
+		ShowSeats(long sid, String sdate, int n, long[] ssid, long[] csid, int[] sno, String[] stype, float[] price, BitSet free){
+			this.sid = sid;
+			this.sdate = sdate;
+			this.loadedAt = System.currentTimeMillis();
+			this.ssid = Arrays.copyOf(ssid, n);
+			this.csid = Arrays.copyOf(csid, n);
+			this.sno = Arrays.copyOf(sno, n);
+			this.stype = Arrays.copyOf(stype, n);
+			this.price = Arrays.copyOf(price, n);
+			this.free = free;
+
+			Integer[] order = new Integer[n];
+			for(int i = 0; i < n; i++) order[i] = i;
+			Arrays.sort(order, (a, b) -> Long.compare(this.ssid[a], this.ssid[b]));
+			this.sortedSsid = new long[n];
+			this.ssidPosition = new int[n];
+			for(int i = 0; i < n; i++){
+				sortedSsid[i] = this.ssid[order[i]];
+				ssidPosition[i] = order[i];
+			}
+		}
+
+		public int size(){
+			return ssid.length;
+		}
+
+		public long ssid(int i){
+			return ssid[i];
+		}
+
+		public long csid(int i){
+			return csid[i];
+		}
+
+		public int sno(int i){
+			return sno[i];
+		}
+
+		public String stype(int i){
+			return stype[i];
+		}
+
+		public float price(int i){
+			return price[i];
+		}
+
+		public synchronized boolean isFree(int i){
+			return free.get(i);
+		}
+
+		public synchronized int freeCount(){
+			return free.cardinality();
+		}
+
+		/**
+		 * @return a snapshot of the free seat positions
+		 */
+		public synchronized BitSet freeSeats(){
+			return (BitSet) free.clone();
+		}
+
+		/**
+		 * @param id a show seat ID
+		 * @return the position of the seat, or -1 when it is not part of this show
+		 */
+		public int indexOfSsid(long id){
+			int i = Arrays.binarySearch(sortedSsid, id);
+			return i < 0 ? -1 : ssidPosition[i];
+		}
+
+		/**
+		 * @param number a seat number in the theater
+		 * @return the position of the seat, or -1 when the theater has no such seat
+		 */
+		public int indexOfSno(int number){
+			//seats are ordered by seat number
+			int i = Arrays.binarySearch(sno, number);
+			return i < 0 ? -1 : i;
+		}
+
+		synchronized void setFree(Collection<String> ssids, boolean isFree){
+			for(String id : ssids){
+				int i = indexOfSsid(Long.parseLong(id));
+				if(i >= 0) free.set(i, isFree);
+			}
+		}
+	}
+
+	public SeatInventory(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Method to fetch the seats of a show, loading them on first use or
+	 * after the cached copy has expired.
+	 *
+	 * @param sid the show ID
+	 * @return the seats of the show, empty when the show has none
+	 * @throws java.sql.SQLException when the seats cannot be loaded
+	 */
+	public ShowSeats get(long sid) throws SQLException {
+		ShowSeats seats = shows.get(sid);
+		if(seats != null && System.currentTimeMillis() - seats.loadedAt < TTL_MS) return seats;
+		seats = load(sid);
+		shows.put(sid, seats);
+		return seats;
+	}
+
+	/**
+	 * @param sid the show ID
+	 * @return the number of unbooked seats of the show
+	 * @throws java.sql.SQLException when the seats cannot be loaded
+	 */
+	public int countFree(long sid) throws SQLException {
+		return get(sid).freeCount();
+	}
+
+	/**
+	 * Method to record seats claimed by a committed booking.
+	 *
+	 * @param sid the show ID
+	 * @param ssids the show seat IDs now booked
+	 */
+	public void markBooked(long sid, Collection<String> ssids){
+		ShowSeats seats = shows.get(sid);
+		if(seats != null) seats.setFree(ssids, false);
+	}
+
+	/**
+	 * Method to record seats released by a committed cancellation or change.
+	 *
+	 * @param sid the show ID
+	 * @param ssids the show seat IDs now free
+	 */
+	public void markFree(long sid, Collection<String> ssids){
+		ShowSeats seats = shows.get(sid);
+		if(seats != null) seats.setFree(ssids, true);
+	}
+
+	/**
+	 * Method to drop a show so its seats are reloaded on next use.
+	 *
+	 * @param sid the show ID
+	 */
+	public void invalidate(long sid){
+		shows.remove(sid);
+	}
+
+	public void invalidateAll(){
+		shows.clear();
+	}
+
+	/**
+	 * Collects streamed seat rows into arrays that grow as needed.
+	 */
+	private static class Loader{
+		int n = 0;
+		long[] ssid = new long[64];
+		long[] csid = new long[64];
+		int[] sno = new int[64];
+		String[] stype = new String[64];
+		float[] price = new float[64];
+		final BitSet free = new BitSet();
+
+		void add(ResultSet rs) throws SQLException {
+			if(n == ssid.length){
+				int grown = n * 2;
+				ssid = Arrays.copyOf(ssid, grown);
+				csid = Arrays.copyOf(csid, grown);
+				sno = Arrays.copyOf(sno, grown);
+				stype = Arrays.copyOf(stype, grown);
+				price = Arrays.copyOf(price, grown);
+			}
+			ssid[n] = rs.getLong(1);
+			csid[n] = rs.getLong(2);
+			sno[n] = rs.getInt(3);
+			stype[n] = rs.getString(4);
+			price[n] = rs.getFloat(5);
+			if(rs.getBoolean(6)) free.set(n);
+			n++;
+		}
+	}
+
+	private ShowSeats load(long sid) throws SQLException {
+		Loader loader = new Loader();
+		//the date first, so the seat query reads one partition instead of probing every day's
+		List<List<String>> date = esql.executeQueryAndReturnResult(SHOW_DATE, sid);
+		//a show without seats has no counts; neither would any show if they were lost
+		if(date.isEmpty()) date = esql.executeQueryAndReturnResult(SHOW_DATE_OF_ANY_DAY, sid);
+		String sdate = date.isEmpty() ? null : date.get(0).get(0);
+		if(sdate != null) esql.executeQueryAndStream(LOAD_SEATS, loader::add, sid, sdate);
+		return new ShowSeats(sid, sdate, loader.n, loader.ssid, loader.csid, loader.sno, loader.stype, loader.price, loader.free);
+	}
+}//end SeatInventory
@@ -0,0 +1,126 @@
+/*
+ * Best-available seat selection
+ * ==============================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * This class picks seats for a party from the cached seat map of a show.
+ * Seats are contiguous when their seat numbers are consecutive. The best
+ * block is the one whose middle is closest to the middle of the house, with
+ * the cheaper block winning a tie, and it is found in a single pass over
+ * the seats, so the cost is linear in the size of the theater.
+ */
+public class SeatSelector{
+	//no price limit
+	public static final float ANY_PRICE = Float.MAX_VALUE;
+
+	private SeatSelector(){
+	}
+
+	/**
+	 * Method to find the best block of adjacent free seats.
+	 *
+	 * @param seats the seat map of the show
+	 * @param count the number of seats wanted
+	 * @param maxPrice the highest acceptable price per seat, or ANY_PRICE
+	 * @param stype the seat type wanted, or null for any type
+	 * @return the positions of the seats in the seat map, or null when no block fits
+	 */
+	public static int[] findBestBlock(SeatInventory.ShowSeats seats, int count, float maxPrice, String stype){
+		int n = seats.size();
+		if(count < 1 || count > n) return null;
+		BitSet eligible = eligibleSeats(seats, maxPrice, stype);
+		double houseCenter = (seats.sno(0) + seats.sno(n - 1)) / 2.0;
+
+		int bestStart = -1;
+		double bestDistance = Double.MAX_VALUE;
+		double bestPrice = Double.MAX_VALUE;
+		int run = 0;
+		//price of the seats inside the current window
+		double windowPrice = 0;
+		for(int i = 0; i < n; i++){
+			boolean adjacent = i > 0 && seats.sno(i) == seats.sno(i - 1) + 1;
+			if(!eligible.get(i)){
+				run = 0;
+				windowPrice = 0;
+				continue;
+			}
+			if(!adjacent){
+				run = 0;
+				windowPrice = 0;
+			}
+			run++;
+			windowPrice += seats.price(i);
+			if(run > count){
+				windowPrice -= seats.price(i - count);
+				run = count;
+			}
+			if(run == count){
+				int start = i - count + 1;
+				double center = (seats.sno(start) + seats.sno(i)) / 2.0;
+				double distance = Math.abs(center - houseCenter);
+				if(distance < bestDistance || (distance == bestDistance && windowPrice < bestPrice)){
+					bestStart = start;
+					bestDistance = distance;
+					bestPrice = windowPrice;
+				}
+			}
+		}
+		if(bestStart < 0) return null;
+		int[] block = new int[count];
+		for(int i = 0; i < count; i++) block[i] = bestStart + i;
+		return block;
+	}
+
+	/**
+	 * Method to find the best free seats when they do not have to be
+	 * adjacent: the seats closest to the middle of the house.
+	 *
+	 * @param seats the seat map of the show
+	 * @param count the number of seats wanted
+	 * @param maxPrice the highest acceptable price per seat, or ANY_PRICE
+	 * @param stype the seat type wanted, or null for any type
+	 * @return the positions of the seats in the seat map, or null when too few fit
+	 */
+	public static int[] findBestSeats(SeatInventory.ShowSeats seats, int count, float maxPrice, String stype){
+		int n = seats.size();
+		if(count < 1 || count > n) return null;
+		BitSet eligible = eligibleSeats(seats, maxPrice, stype);
+		if(eligible.cardinality() < count) return null;
+		double houseCenter = (seats.sno(0) + seats.sno(n - 1)) / 2.0;
+
+		//walk outwards from the middle seat, taking the closer side first
+		int right = 0;
+		while(right < n && seats.sno(right) < houseCenter) right++;
+		int left = right - 1;
+		int[] chosen = new int[count];
+		int taken = 0;
+		while(taken < count){
+			boolean takeLeft;
+			if(left < 0) takeLeft = false;
+			else if(right >= n) takeLeft = true;
+			else takeLeft = houseCenter - seats.sno(left) <= seats.sno(right) - houseCenter;
+			int i = takeLeft ? left-- : right++;
+			if(eligible.get(i)) chosen[taken++] = i;
+		}
+		Arrays.sort(chosen);
+		return chosen;
+	}
+
+	private static BitSet eligibleSeats(SeatInventory.ShowSeats seats, float maxPrice, String stype){
+		BitSet eligible = seats.freeSeats();
+		for(int i = eligible.nextSetBit(0); i >= 0; i = eligible.nextSetBit(i + 1)){
+			if(seats.price(i) > maxPrice || (stype != null && !stype.equalsIgnoreCase(seats.stype(i)))){
+				eligible.clear(i);
+			}
+		}
+		return eligible;
+	}
+}//end SeatSelector
@@ -0,0 +1,385 @@
+/*
+ * Interval index of show times per theater and day
+ * =================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.SignStyle;
+import java.time.temporal.ChronoField;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class indexes the shows of each (theater, date) as intervals of
+ * seconds since midnight, sorted by start time, with a running maximum of
+ * end times. Whether a new show overlaps an existing one is then two binary
+ * searches, and the free slots of a day are one pass over the intervals.
+ *
+ * Intervals are closed: a show may not start at the second another ends,
+ * matching the check AddMovieShowingToTheater has always made. A show that
+ * runs past midnight is indexed as ending after 24:00 on its start date.
+ *
+ * Days are loaded on first use and expire after a TTL; shows added through
+ * this process are indexed as soon as they are committed.
+ *
+ * The index only answers for this process, so addShowings() checks the
+ * database again before it inserts. Its transaction takes a transaction
+ * advisory lock per (theater, date) first, in key order, so two inserts
+ * for the same theater and day, from any process, run one after the other
+ * and the second sees the shows of the first.
+ */
+public class ShowSchedule{
+	public static final int SECONDS_PER_DAY = 24 * 60 * 60;
+	//milliseconds a loaded day is trusted, set with -Dticketmaster.schedule.ttlMs
+	static final long TTL_MS = Long.getLong("ticketmaster.schedule.ttlMs", 60000);
+	//accepts 8:25:00 as well as 08:25:00
+	private static final DateTimeFormatter TIME_INPUT = new DateTimeFormatterBuilder()
+		.appendValue(ChronoField.HOUR_OF_DAY, 1, 2, SignStyle.NEVER).appendLiteral(':')
+		.appendValue(ChronoField.MINUTE_OF_HOUR, 2).appendLiteral(':')
+		.appendValue(ChronoField.SECOND_OF_MINUTE, 2)
+		.toFormatter();
+	private static final DateTimeFormatter TIME_OUTPUT = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+	//parameters: the theater ID and the date
+	static final String SHOWS_OF_DAY = "SELECT S.sttime, S.edtime FROM shows S, plays P WHERE S.sid = P.sid AND P.sdate = S.sdate AND P.tid = ? AND S.sdate = ?";
+	//parameter: the (theater, date) keys, comma separated and sorted, so every transaction locks in the same order
+	static final String LOCK_DAYS = "SELECT pg_advisory_xact_lock(hashtextextended(K.day, 0)) FROM unnest(string_to_array(?, ',')) AS K(day)";
+	//parameters: theater IDs, dates, starts and ends in seconds, one comma separated list each.
+	//Returns the 1-based position of every showing that overlaps a show in the database
+	static final String CONFLICTS = "SELECT N.i FROM unnest(string_to_array(?, ',')::bigint[], string_to_array(?, ',')::date[], "
+		+ "string_to_array(?, ',')::int[], string_to_array(?, ',')::int[]) WITH ORDINALITY AS N(tid, sdate, st, en, i) "
+		+ "WHERE EXISTS (SELECT 1 FROM plays P, shows S WHERE S.sid = P.sid AND P.sdate = S.sdate AND P.tid = N.tid AND S.sdate = N.sdate "
+		+ "AND extract(epoch FROM S.sttime) <= N.en "
+		+ "AND extract(epoch FROM S.edtime) + CASE WHEN S.edtime < S.sttime THEN " + SECONDS_PER_DAY + " ELSE 0 END >= N.st) "
+		+ "ORDER BY N.i";
+
+	private final Ticketmaster esql;
+	private final ConcurrentHashMap<String, Day> days = new ConcurrentHashMap<String, Day>();
+
+	/**
+	 * The shows of one theater on one date.
+	 */
+	static class Day{
+		final long loadedAt = System.currentTimeMillis();
+		int n = 0;
+		int[] start = new int[8];
+		int[] end = new int[8];
+		//maxEnd[i] is the latest end among intervals 0..i
+		int[] maxEnd = new int[8];
+
+		synchronized boolean conflicts(int s, int e){
+			//intervals that start no later than e are the only ones that can overlap
+			int k = upperBound(start, n, e);
+			return k > 0 && maxEnd[k - 1] >= s;
+		}
+
+		synchronized void add(int s, int e){
+			if(n == start.length){
+				start = Arrays.copyOf(start, n * 2);
+				end = Arrays.copyOf(end, n * 2);
+				maxEnd = Arrays.copyOf(maxEnd, n * 2);
+			}
+			int k = upperBound(start, n, s);
+			System.arraycopy(start, k, start, k + 1, n - k);
+			System.arraycopy(end, k, end, k + 1, n - k);
+			start[k] = s;
+			end[k] = e;
+			n++;
+			for(int i = k; i < n; i++){
+				maxEnd[i] = i == 0 ? end[i] : Math.max(maxEnd[i - 1], end[i]);
+			}
+		}
+
+		synchronized List<int[]> intervals(){
+			List<int[]> result = new ArrayList<int[]>(n);
+			for(int i = 0; i < n; i++) result.add(new int[]{ start[i], end[i] });
+			return result;
+		}
+
+		synchronized List<int[]> freeSlots(int minLength){
+			List<int[]> slots = new ArrayList<int[]>();
+			//first second not yet covered by a show
+			int cursor = 0;
+			for(int i = 0; i < n; i++){
+				//a show starting at cursor must end before start[i]
+				if(start[i] - 1 - cursor >= minLength){
+					slots.add(new int[]{ cursor, start[i] - 1 });
+				}
+				cursor = Math.max(cursor, end[i] + 1);
+			}
+			if(SECONDS_PER_DAY - 1 - cursor >= minLength){
+				slots.add(new int[]{ cursor, SECONDS_PER_DAY - 1 });
+			}
+			return slots;
+		}
+
+		/**
+		 * @return the number of the first n values greater than key, the array being sorted
+		 */
+		private static int upperBound(int[] values, int n, int key){
+			int lo = 0, hi = n;
+			while(lo < hi){
+				int mid = (lo + hi) >>> 1;
+				if(values[mid] <= key) lo = mid + 1;
+				else hi = mid;
+			}
+			return lo;
+		}
+	}
+
+	/**
+	 * A show to be scheduled by addShowings().
+	 */
+	public static class Showing{
+		public final String mvid;
+		public final String tid;
+		public final String sdate;
+		public final int start;
+		public final int end;
+
+		/**
+		 * @param mvid the movie ID
+		 * @param tid the theater ID
+		 * @param sdate the show date, yyyy-MM-dd
+		 * @param sttime the start time, HH:mm:ss
+		 * @param duration the running time in seconds
+		 */
+		public Showing(String mvid, String tid, String sdate, String sttime, int duration){
+			this.mvid = mvid;
+			this.tid = tid;
+			this.sdate = sdate;
+			this.start = toSeconds(sttime);
+			this.end = this.start + duration;
+		}
+
+		public String sttime(){
+			return formatSeconds(start);
+		}
+
+		public String edtime(){
+			return formatSeconds(end);
+		}
+
+		@Override
+		public String toString(){
+			return "theater " + tid + " on " + sdate + " " + sttime() + "-" + edtime();
+		}
+	}
+
+	/**
+	 * Thrown by addShowings() when the schedule overlaps itself or an
+	 * existing show. Nothing has been inserted when this is thrown.
+	 */
+	public static class ScheduleConflictException extends SQLException{
+		private static final long serialVersionUID = 1L;
+		public final List<Showing> conflicts;
+
+		public ScheduleConflictException(List<Showing> conflicts){
+			super(conflicts.size() + " showing(s) overlap another show: " + conflicts);
+			this.conflicts = Collections.unmodifiableList(conflicts);
+		}
+	}
+
+	public ShowSchedule(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Method to check whether a show would overlap a show already playing
+	 * in the theater that day.
+	 *
+	 * @param tid the theater ID
+	 * @param sdate the show date, yyyy-MM-dd
+	 * @param start the start in seconds since midnight
+	 * @param end the end in seconds since midnight, past SECONDS_PER_DAY for late shows
+	 * @return true when the times overlap an existing show
+	 * @throws java.sql.SQLException when the day cannot be loaded
+	 */
+	public boolean conflicts(String tid, String sdate, int start, int end) throws SQLException {
+		return day(tid, sdate).conflicts(start, end);
+	}
+
+	/**
+	 * @param tid the theater ID
+	 * @param sdate the show date, yyyy-MM-dd
+	 * @return the {start, end} of every show that day, in start order
+	 * @throws java.sql.SQLException when the day cannot be loaded
+	 */
+	public List<int[]> shows(String tid, String sdate) throws SQLException {
+		return day(tid, sdate).intervals();
+	}
+
+	/**
+	 * Method to list the gaps between shows that are long enough for a
+	 * show of the given length.
+	 *
+	 * @param tid the theater ID
+	 * @param sdate the show date, yyyy-MM-dd
+	 * @param minLength the running time in seconds that must fit
+	 * @return the free {first, last} second ranges of the day, in order
+	 * @throws java.sql.SQLException when the day cannot be loaded
+	 */
+	public List<int[]> freeSlots(String tid, String sdate, int minLength) throws SQLException {
+		return day(tid, sdate).freeSlots(minLength);
+	}
+
+	/**
+	 * Method to index a show that has been committed to the database.
+	 */
+	public void add(String tid, String sdate, int start, int end) throws SQLException {
+		day(tid, sdate).add(start, end);
+	}
+
+	/**
+	 * Method to drop every cached day with the given date, for example after
+	 * its shows were removed.
+	 *
+	 * @param sdate the show date, yyyy-MM-dd
+	 */
+	public void invalidateDate(String sdate){
+		days.keySet().removeIf(key -> key.endsWith("|" + sdate));
+	}
+
+	public void invalidateAll(){
+		days.clear();
+	}
+
+	/**
+	 * Method to check a whole schedule against the index in one pass.
+	 * Showings are grouped by theater and date and sorted by start; each
+	 * one is checked against the existing shows and against the showings
+	 * of the batch before it.
+	 *
+	 * @param showings the schedule to check
+	 * @return the showings that overlap something, empty when the schedule fits
+	 * @throws java.sql.SQLException when a day cannot be loaded
+	 */
+	public List<Showing> validate(List<Showing> showings) throws SQLException {
+		Map<String, List<Showing>> byDay = new HashMap<String, List<Showing>>();
+		for(Showing s : showings){
+			byDay.computeIfAbsent(key(s.tid, s.sdate), k -> new ArrayList<Showing>()).add(s);
+		}
+		List<Showing> conflicts = new ArrayList<Showing>();
+		for(List<Showing> batch : byDay.values()){
+			batch.sort(Comparator.comparingInt(s -> s.start));
+			Day existing = day(batch.get(0).tid, batch.get(0).sdate);
+			int batchMaxEnd = Integer.MIN_VALUE;
+			for(Showing s : batch){
+				if(s.start <= batchMaxEnd || existing.conflicts(s.start, s.end)) conflicts.add(s);
+				batchMaxEnd = Math.max(batchMaxEnd, s.end);
+			}
+		}
+		return conflicts;
+	}
+
+	/**
+	 * Method to insert a whole schedule of showings for existing movies.
+	 * The schedule is validated against the index first; when it fits, the
+	 * transaction locks its days, checks them again in the database and
+	 * inserts the shows and their plays rows with one statement each,
+	 * whatever the number of showings. The shows are then indexed.
+	 *
+	 * @param showings the schedule to add
+	 * @return the new show IDs, in the order of the showings
+	 * @throws ScheduleConflictException when any showing overlaps, here or in another process
+	 * @throws java.sql.SQLException when the shows could not be inserted
+	 */
+	public List<Long> addShowings(final List<Showing> showings) throws SQLException {
+		List<Showing> conflicts = validate(showings);
+		if(!conflicts.isEmpty()) throw new ScheduleConflictException(conflicts);
+
+		final List<Long> sids = new ArrayList<Long>();
+		//one comma separated list per column, unnested into rows by the server
+		StringJoiner sid = new StringJoiner(","), mvid = new StringJoiner(","), tid = new StringJoiner(",");
+		StringJoiner sdate = new StringJoiner(","), sttime = new StringJoiner(","), edtime = new StringJoiner(",");
+		StringJoiner start = new StringJoiner(","), end = new StringJoiner(",");
+		TreeSet<String> keys = new TreeSet<String>();
+		for(Showing s : showings){
+			long id = esql.nextId(IdAllocator.SHOW_ID);
+			sids.add(id);
+			sid.add(Long.toString(id));
+			mvid.add(s.mvid);
+			tid.add(s.tid);
+			sdate.add(s.sdate);
+			sttime.add(s.sttime());
+			edtime.add(s.edtime());
+			start.add(Integer.toString(s.start));
+			end.add(Integer.toString(s.end));
+			keys.add(key(s.tid, s.sdate));
+		}
+		esql.executeInTransaction(() -> {
+			esql.executeQuery(LOCK_DAYS, String.join(",", keys));
+			List<Showing> taken = new ArrayList<Showing>();
+			for(List<String> row : esql.executeQueryAndReturnResult(CONFLICTS, tid.toString(), sdate.toString(), start.toString(), end.toString())){
+				taken.add(showings.get(Integer.parseInt(row.get(0)) - 1));
+			}
+			if(!taken.isEmpty()){
+				//another process added those shows; the index has not seen them
+				for(Showing s : taken) days.remove(key(s.tid, s.sdate));
+				throw new ScheduleConflictException(taken);
+			}
+			esql.executeUpdate("INSERT into shows(sid,mvid,sdate,sttime,edtime) SELECT * FROM unnest(string_to_array(?, ',')::bigint[], "
+				+ "string_to_array(?, ',')::bigint[], string_to_array(?, ',')::date[], string_to_array(?, ',')::time[], string_to_array(?, ',')::time[])",
+				sid.toString(), mvid.toString(), sdate.toString(), sttime.toString(), edtime.toString());
+			esql.executeUpdate("INSERT into plays(sid,tid,sdate) SELECT * FROM unnest(string_to_array(?, ',')::bigint[], string_to_array(?, ',')::bigint[], "
+				+ "string_to_array(?, ',')::date[])",
+				sid.toString(), tid.toString(), sdate.toString());
+			return null;
+		});
+		for(Showing s : showings){
+			add(s.tid, s.sdate, s.start, s.end);
+		}
+		return sids;
+	}
+
+	/**
+	 * @param time a time of day, HH:mm:ss
+	 * @return the seconds since midnight
+	 */
+	public static int toSeconds(String time){
+		return LocalTime.parse(time, TIME_INPUT).toSecondOfDay();
+	}
+
+	/**
+	 * @param seconds seconds since midnight, wrapped past 24:00
+	 * @return the time of day, HH:mm:ss
+	 */
+	public static String formatSeconds(int seconds){
+		return LocalTime.ofSecondOfDay(Math.floorMod(seconds, SECONDS_PER_DAY)).format(TIME_OUTPUT);
+	}
+
+	private static String key(String tid, String sdate){
+		return tid + "|" + sdate;
+	}
+
+	private Day day(String tid, String sdate) throws SQLException {
+		String key = key(tid, sdate);
+		Day day = days.get(key);
+		if(day != null && System.currentTimeMillis() - day.loadedAt < TTL_MS) return day;
+		final Day loaded = new Day();
+		esql.executeQueryAndStream(SHOWS_OF_DAY, rs -> {
+			int start = toSeconds(rs.getString(1));
+			int end = toSeconds(rs.getString(2));
+			//a show that ends before it starts runs past midnight
+			if(end < start) end += SECONDS_PER_DAY;
+			loaded.add(start, end);
+		}, tid, sdate);
+		days.put(key, loaded);
+		return loaded;
+	}
+}//end ShowSchedule
@@ -0,0 +1,248 @@
+/*
+ * Slow query log
+ * ===============
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * This class writes every statement slower than a threshold to a log file,
+ * with its normalized SQL, the values bound to it, its time, its rows and
+ * the operation that issued it. A sampled share of them is explained and
+ * the plan written below the statement.
+ *
+ * The thread that ran the statement only puts an entry on a bounded queue
+ * and never waits: when the queue is full the entry is dropped and
+ * counted. A single writer thread takes entries off the queue, runs the
+ * EXPLAINs on a connection of its own, outside the pool, and writes the
+ * file. Only reads are run again, as EXPLAIN (ANALYZE, BUFFERS). A write,
+ * a SELECT ... FOR UPDATE or a statement calling nextval() gets a plain
+ * EXPLAIN: running it again would take the row locks of the live
+ * statement and hold them while it runs, which a rollback cannot undo,
+ * and a sequence does not roll back either. Every EXPLAIN runs with a
+ * short lock_timeout, so it gives up rather than queue behind the
+ * application's locks.
+ *
+ * The log is on when -Dticketmaster.slowQuery.log names a file.
+ */
+public class SlowQueryLog{
+	//file slow statements are appended to, set with -Dticketmaster.slowQuery.log
+	static final String LOG_FILE = System.getProperty("ticketmaster.slowQuery.log");
+	//statements taking longer are logged, set with -Dticketmaster.slowQuery.thresholdMs
+	static final long THRESHOLD_MS = Long.getLong("ticketmaster.slowQuery.thresholdMs", 100);
+	//share of slow statements explained, from 0 to 1, set with -Dticketmaster.slowQuery.explainSample
+	static final double EXPLAIN_SAMPLE = Double.parseDouble(System.getProperty("ticketmaster.slowQuery.explainSample", "0.1"));
+	//longest an EXPLAIN may run, set with -Dticketmaster.slowQuery.explainTimeoutMs
+	static final long EXPLAIN_TIMEOUT_MS = Long.getLong("ticketmaster.slowQuery.explainTimeoutMs", 30000);
+	//longest an EXPLAIN waits for a lock, set with -Dticketmaster.slowQuery.explainLockTimeoutMs
+	static final long EXPLAIN_LOCK_TIMEOUT_MS = Long.getLong("ticketmaster.slowQuery.explainLockTimeoutMs", 1000);
+	//words of a statement that writes or locks rows
+	private static final Pattern WRITES = Pattern.compile("\\b(INSERT|UPDATE|DELETE|SHARE|NEXTVAL)\\b");
+	//entries waiting for the writer before new ones are dropped, set with -Dticketmaster.slowQuery.queue
+	static final int QUEUE_SIZE = Integer.getInteger("ticketmaster.slowQuery.queue", 1000);
+
+	/**
+	 * One slow statement waiting to be written.
+	 */
+	private record Entry(LocalDateTime at, String operation, String sql, Object[] params, long nanos, long rows, boolean explain){}
+
+	private final long thresholdNanos = TimeUnit.MILLISECONDS.toNanos(THRESHOLD_MS);
+	private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(QUEUE_SIZE);
+	private final LongAdder dropped = new LongAdder();
+	private String url, user, passwd;
+	private Connection explainConnection;
+	private BufferedWriter out;
+	private Thread writer;
+	private volatile boolean running;
+
+	/**
+	 * Method to start the writer thread when the log is on.
+	 *
+	 * @param url the database the EXPLAIN connection is opened to
+	 * @param user the database user
+	 * @param passwd the password of the user
+	 */
+	public void start(String url, String user, String passwd){
+		if(LOG_FILE == null) return;
+		this.url = url;
+		this.user = user;
+		this.passwd = passwd;
+		try{
+			out = Files.newBufferedWriter(Paths.get(LOG_FILE), StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		}catch(IOException e){
+			System.err.println("Slow queries are not logged, cannot open " + LOG_FILE + ": " + e.getMessage());
+			return;
+		}
+		running = true;
+		writer = new Thread(this::drain, "slow-query-log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Method to write what is still queued, without EXPLAIN, and stop the
+	 * writer thread.
+	 */
+	public void stop(){
+		if(!running) return;
+		running = false;
+		writer.interrupt();
+		try{
+			writer.join(TimeUnit.SECONDS.toMillis(5));
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		writer = null;
+	}
+
+	/**
+	 * Method to log a statement if it was slow. Called by the query helpers
+	 * after every statement; it never blocks.
+	 *
+	 * @param operation the operation that issued the statement, or null
+	 * @param sql the SQL as issued
+	 * @param params the values bound to its placeholders
+	 * @param nanos how long it took
+	 * @param rows the rows returned or changed, or -1 when it failed
+	 */
+	public void record(String operation, String sql, Object[] params, long nanos, long rows){
+		if(!running || nanos < thresholdNanos) return;
+		boolean explain = EXPLAIN_SAMPLE > 0 && ThreadLocalRandom.current().nextDouble() < EXPLAIN_SAMPLE;
+		if(!queue.offer(new Entry(LocalDateTime.now(), operation, sql, params.clone(), nanos, rows, explain)))
+			dropped.increment();
+	}
+
+	/**
+	 * The writer thread: writes entries until stopped, then what is left.
+	 */
+	private void drain(){
+		try{
+			while(running){
+				Entry e;
+				try{
+					e = queue.take();
+				}catch(InterruptedException interrupted){
+					break;
+				}
+				write(e, e.explain());
+				if(queue.isEmpty()) out.flush();
+			}
+			for(Entry e; (e = queue.poll()) != null; ) write(e, false);
+			out.flush();
+		}catch(IOException e){
+			System.err.println("Slow query log stopped, cannot write " + LOG_FILE + ": " + e.getMessage());
+		}finally{
+			running = false;
+			try{
+				out.close();
+			}catch(IOException e){
+				//nothing more can be written
+			}
+			closeExplainConnection();
+		}
+	}
+
+	private void write(Entry e, boolean explain) throws IOException {
+		long lost = dropped.sumThenReset();
+		if(lost > 0) out.write(LocalDateTime.now() + " " + lost + " slow statement(s) dropped, the log queue was full\n");
+		out.write(String.format(Locale.ROOT, "%s %.1f ms [%s] rows=%s %s params=%s%n", e.at(), e.nanos() / 1e6,
+			e.operation() == null ? "-" : e.operation(), e.rows() < 0 ? "failed" : Long.toString(e.rows()),
+			Metrics.normalizeSql(e.sql()), Arrays.toString(e.params())));
+		if(explain && e.rows() >= 0 && explainable(e.sql())){
+			for(String line : explain(e)) out.write("    " + line + "\n");
+		}
+	}
+
+	/**
+	 * @return whether the statement can be explained
+	 */
+	static boolean explainable(String sql){
+		String s = sql.stripLeading().toUpperCase(Locale.ROOT);
+		return s.startsWith("SELECT") || s.startsWith("WITH") || s.startsWith("INSERT")
+			|| s.startsWith("UPDATE") || s.startsWith("DELETE");
+	}
+
+	/**
+	 * @return whether EXPLAIN ANALYZE can run the statement again without
+	 * locking rows or changing anything
+	 */
+	static boolean analyzable(String sql){
+		return !WRITES.matcher(sql.toUpperCase(Locale.ROOT)).find();
+	}
+
+	/**
+	 * Explains a statement in a transaction that is rolled back, running it
+	 * again only when it is a read.
+	 *
+	 * @return the lines of the plan, or of the reason there is none
+	 */
+	private String[] explain(Entry e){
+		try{
+			if(explainConnection == null || explainConnection.isClosed()){
+				explainConnection = DriverManager.getConnection(url, user, passwd);
+				explainConnection.setAutoCommit(false);
+			}
+			StringBuilder plan = new StringBuilder();
+			try{
+				try(PreparedStatement timeout = explainConnection.prepareStatement("SET LOCAL statement_timeout = " + EXPLAIN_TIMEOUT_MS)){
+					timeout.execute();
+				}
+				try(PreparedStatement timeout = explainConnection.prepareStatement("SET LOCAL lock_timeout = " + EXPLAIN_LOCK_TIMEOUT_MS)){
+					timeout.execute();
+				}
+				String explain = analyzable(e.sql()) ? "EXPLAIN (ANALYZE, BUFFERS) " : "EXPLAIN ";
+				try(PreparedStatement stmt = explainConnection.prepareStatement(explain + e.sql())){
+					Object[] params = e.params();
+					for(int i = 0; i < params.length; ++i){
+						if(params[i] == null) stmt.setNull(i + 1, Types.NULL);
+						else stmt.setObject(i + 1, params[i]);
+					}
+					try(ResultSet rs = stmt.executeQuery()){
+						while(rs.next()) plan.append(rs.getString(1)).append('\n');
+					}
+				}
+			}finally{
+				explainConnection.rollback();
+			}
+			return plan.toString().split("\n");
+		}catch(SQLException ex){
+			closeExplainConnection();
+			return new String[]{ "(no plan: " + ex.getMessage() + ")" };
+		}
+	}
+
+	private void closeExplainConnection(){
+		if(explainConnection == null) return;
+		try{
+			explainConnection.close();
+		}catch(SQLException e){
+			//the connection is dropped either way
+		}
+		explainConnection = null;
+	}
+}//end SlowQueryLog
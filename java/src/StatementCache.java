@@ -0,0 +1,107 @@
+/*
+ * Per-connection prepared statement cache
+ * ========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class keeps the most recently used prepared statements of one
+ * physical connection, keyed by their SQL template. Reusing the same
+ * PreparedStatement lets the driver keep a named server-side statement, so
+ * Postgres parses and plans each template once per connection instead of
+ * once per call.
+ *
+ * A cache belongs to a single connection and is only touched by the thread
+ * that currently holds that connection.
+ */
+public class StatementCache{
+	private final Connection connection;
+	private final int capacity;
+	private final LinkedHashMap<String, PreparedStatement> statements;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param connection the connection the statements are prepared on
+	 * @param capacity the number of statements kept before the least recently used is closed
+	 */
+	public StatementCache(Connection connection, int capacity){
+		this.connection = connection;
+		this.capacity = Math.max(1, capacity);
+		//access order turns the map into an LRU list
+		this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true){
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest){
+				if(size() > StatementCache.this.capacity){
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Method to fetch the prepared statement for an SQL template, preparing
+	 * it on the connection the first time it is seen. The returned statement
+	 * stays owned by the cache and must not be closed by the caller.
+	 *
+	 * @param sql the SQL template with ? placeholders
+	 * @return a prepared statement with its parameters cleared
+	 * @throws java.sql.SQLException when the statement cannot be prepared
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement ps = statements.get(sql);
+		if(ps != null && !ps.isClosed()){
+			hits++;
+			ps.clearParameters();
+			return ps;
+		}
+		misses++;
+		ps = connection.prepareStatement(sql);
+		statements.put(sql, ps);
+		return ps;
+	}
+
+	public int size(){
+		return statements.size();
+	}
+
+	public long getHits(){
+		return hits;
+	}
+
+	public long getMisses(){
+		return misses;
+	}
+
+	/**
+	 * Method to close every cached statement.
+	 */
+	public void close(){
+		Iterator<PreparedStatement> it = statements.values().iterator();
+		while(it.hasNext()){
+			closeQuietly(it.next());
+			it.remove();
+		}
+	}
+
+	private static void closeQuietly(PreparedStatement ps){
+		if(ps == null) return;
+		try{
+			ps.close();
+		}catch(SQLException e){
+			// ignored.
+		}
+	}
+}//end StatementCache
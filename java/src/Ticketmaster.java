@@ -14,27 +14,26 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
+import java.sql.Types;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
 import java.io.IOException;
 import java.io.File;
 import java.io.FileReader;
+import java.io.Reader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.util.function.Consumer;
 import java.util.Date;
 import java.util.Calendar;
 import java.time.Duration;
-//SHA-256
-import java.math.BigInteger;  
-import java.nio.charset.StandardCharsets; 
-import java.security.MessageDigest;  
-import java.security.NoSuchAlgorithmException;
 /**
  * This class defines a simple embedded SQL utility class that is designed to
  * work with PostgreSQL JDBC drivers.
@@ -42,19 +41,56 @@ import java.security.NoSuchAlgorithmException;
  */
 
 public class Ticketmaster{
-	//reference to physical database connection
-	private Connection _connection = null;
+	//rows fetched per round trip by streamed queries, set with -Dticketmaster.fetchSize
+	static final int FETCH_SIZE = Integer.getInteger("ticketmaster.fetchSize", 500);
+	//pool of physical database connections shared by every operation
+	private ConnectionPool _pool = null;
+	//primary keys handed out in blocks from the database sequences
+	private final IdAllocator _ids = new IdAllocator(this);
+	//free seats of each show, kept in step with every write to showseats.bid
+	private final SeatInventory _seats = new SeatInventory(this);
+	//show times per theater and day, for scheduling conflict checks
+	private final ShowSchedule _schedule = new ShowSchedule(this);
+	//movies, cities, cinemas, theaters and their seats, for pick lists and lookups by ID
+	private final CatalogCache _catalog = new CatalogCache(this);
+	//trigram index of movie titles for text search
+	private final TitleIndex _titles = new TitleIndex(this);
+	//Bloom filter of registered emails, answering most lookups of unknown ones
+	private final EmailFilter _emails = new EmailFilter(this);
+	//the menu operations without console I/O, shared by the menu and the HTTP API
+	private final TicketmasterService _service = new TicketmasterService(this);
+	//cancels pending bookings whose hold has run out
+	private final HoldExpiry _holds = new HoldExpiry(this);
+	//connection pinned to the current thread by executeInTransaction
+	private final ThreadLocal<Connection> _transaction = new ThreadLocal<Connection>();
+	//statements issued by each thread, read by RoundTripCheck
+	private final ThreadLocal<long[]> _statements = ThreadLocal.withInitial(() -> new long[1]);
+	//latency, rows and errors of each operation and statement
+	private final Metrics _metrics = new Metrics();
+	//statements over a time threshold, with sampled plans
+	private final SlowQueryLog _slowQueries = new SlowQueryLog();
+	private static final Object[] NO_PARAMS = new Object[0];
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
 	
 	public Ticketmaster(String dbname, String dbport, String user, String passwd) throws SQLException {
 		System.out.print("Connecting to database...");
 		try{
 			// constructs the connection URL
-			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+			// stringtype=unspecified lets the server infer the type of bound string values and
+			// prepareThreshold=1 makes cached statements server-side prepared from their first use
+			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname + "?stringtype=unspecified&prepareThreshold=1";
 			System.out.println ("Connection URL: " + url + "\n");
 			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
+			// open the connection pool, sized with -Dticketmaster.pool.size
+			int poolSize = Integer.getInteger("ticketmaster.pool.size", 10);
+			int poolMinIdle = Integer.getInteger("ticketmaster.pool.minIdle", 1);
+			this._pool = new ConnectionPool(url, user, passwd, poolSize, poolMinIdle,
+				Long.getLong("ticketmaster.pool.borrowTimeoutMs", ConnectionPool.DEFAULT_BORROW_TIMEOUT_MS),
+				Long.getLong("ticketmaster.pool.idleTimeoutMs", ConnectionPool.DEFAULT_IDLE_TIMEOUT_MS),
+				Long.getLong("ticketmaster.pool.leakThresholdMs", ConnectionPool.DEFAULT_LEAK_THRESHOLD_MS),
+				Integer.getInteger("ticketmaster.statementCache.size", ConnectionPool.DEFAULT_STATEMENT_CACHE_SIZE));
+			this._metrics.start();
+			this._slowQueries.start(url, user, passwd);
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -63,65 +99,313 @@ public class Ticketmaster{
 		}
 	}
 	
+	/**
+	 * Method to fetch the connection a query helper should run on: the
+	 * transaction connection of the current thread, or else one borrowed
+	 * from the pool.
+	 * 
+	 * @return a connection to be handed back with relinquish()
+	 * @throws java.sql.SQLException when no connection could be obtained
+	 */
+	private Connection acquire () throws SQLException {
+		Connection conn = this._transaction.get();
+		return conn != null ? conn : this._pool.borrow();
+	}
+
+	/**
+	 * Method to hand back a connection from acquire(). A transaction
+	 * connection stays pinned until its transaction ends.
+	 * 
+	 * @param conn the connection returned by acquire()
+	 */
+	private void relinquish (Connection conn){
+		if (conn != this._transaction.get())
+			this._pool.release(conn);
+	}
+
+	/**
+	 * Method to run several query helper calls as one transaction. Every
+	 * helper called by the work on this thread uses the same connection with
+	 * autocommit off; the transaction commits when the work returns and rolls
+	 * back when it throws. A call made while a transaction is already open
+	 * joins that transaction.
+	 * 
+	 * @param work the helper calls to run
+	 * @return the value produced by the work
+	 * @throws java.sql.SQLException when the work or the commit failed
+	 */
+	public <T> T executeInTransaction (TransactionWork<T> work) throws SQLException {
+		if (this._transaction.get() != null)
+			return work.run();
+
+		Connection conn = this._pool.borrow();
+		this._transaction.set(conn);
+		try{
+			conn.setAutoCommit(false);
+			T result = work.run();
+			conn.commit();
+			conn.setAutoCommit(true);
+			return result;
+		}catch (SQLException | RuntimeException e){
+			try{
+				conn.rollback();
+			}catch (SQLException rollbackFailure){
+				e.addSuppressed(rollbackFailure);
+			}
+			throw e;
+		}finally{
+			this._transaction.remove();
+			//release() restores autocommit after a rollback
+			this._pool.release(conn);
+		}
+	}//end executeInTransaction
+
+	/**
+	 * Method to prepare an SQL template on a borrowed connection through the
+	 * connection's statement cache and bind its parameters in order.
+	 * 
+	 * @param conn a connection borrowed from the pool
+	 * @param sql the SQL template with ? placeholders
+	 * @param params the values bound to the placeholders
+	 * @return the bound statement, owned by the statement cache
+	 * @throws java.sql.SQLException when the statement cannot be prepared
+	 */
+	private PreparedStatement prepare (Connection conn, String sql, Object... params) throws SQLException {
+		this._statements.get()[0]++;
+		PreparedStatement stmt = this._pool.statementCache(conn).prepare(sql);
+		bind(stmt, params);
+		return stmt;
+	}
+
+	private static void bind (PreparedStatement stmt, Object... params) throws SQLException {
+		for (int i = 0; i < params.length; ++i){
+			if (params[i] == null)
+				stmt.setNull(i + 1, Types.NULL);
+			else
+				stmt.setObject(i + 1, params[i]);
+		}
+	}
+
+	/**
+	 * Method to count the statements the current thread has sent to the
+	 * database, each of which is at least one round trip. Transaction
+	 * control (commit, rollback, savepoints) is not counted.
+	 * 
+	 * @return the running count for the current thread
+	 */
+	public long getStatementCount (){
+		return this._statements.get()[0];
+	}
+
+	/**
+	 * Method to record a statement run by a query helper in the metrics and,
+	 * when it was slow, in the slow query log.
+	 * 
+	 * @param sql the SQL as issued
+	 * @param params the values bound to its placeholders
+	 * @param started System.nanoTime() when the statement was sent
+	 * @param rows the rows returned or changed, or -1 when it failed
+	 */
+	private void statementDone (String sql, Object[] params, long started, long rows){
+		long nanos = System.nanoTime() - started;
+		this._metrics.statement(sql, nanos, rows);
+		this._slowQueries.record(this._metrics.currentOperation(), sql, params, nanos, rows);
+	}
+
 	/**
 	 * Method to execute an update SQL statement.  Update SQL instructions
 	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
 	 * 
-	 * @param sql the input SQL string
+	 * @param sql the input SQL string, with ? placeholders for parameters
+	 * @param params the values bound to the placeholders
+	 * @return the number of rows affected
 	 * @throws java.sql.SQLException when update failed
 	 * */
-	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		// issues the update instruction
-		stmt.executeUpdate (sql);
+	public int executeUpdate (String sql, Object... params) throws SQLException { 
+		Connection conn = acquire();
+		long started = System.nanoTime();
+		int rows = -1;
+		try{
+			// fetches the cached statement and binds the parameters
+			PreparedStatement stmt = prepare(conn, sql, params);
 
-		// close the instruction
-	    stmt.close ();
+			// issues the update instruction
+			rows = stmt.executeUpdate ();
+			return rows;
+		}finally{
+			statementDone(sql, params, started, rows);
+			relinquish(conn);
+		}
 	}//end executeUpdate
 
+	/**
+	 * Method to execute one update SQL statement once for each set of
+	 * parameters as a JDBC batch, which the driver sends to the server
+	 * together instead of waiting for each execution in turn.
+	 * 
+	 * @param sql the input SQL string, with ? placeholders for parameters
+	 * @param rows the values bound to the placeholders, one array per execution
+	 * @return the number of rows affected by each execution
+	 * @throws java.sql.SQLException when an execution failed
+	 * */
+	public int[] executeBatch (String sql, List<Object[]> rows) throws SQLException {
+		Connection conn = acquire();
+		long started = System.nanoTime();
+		long affected = -1;
+		PreparedStatement stmt = null;
+		try{
+			stmt = prepare(conn, sql);
+			for (Object[] params : rows){
+				bind(stmt, params);
+				stmt.addBatch();
+			}
+			int[] counts = stmt.executeBatch();
+			affected = 0;
+			for (int count : counts)
+				affected += Math.max(count, 0);
+			return counts;
+		}finally{
+			// the statement stays cached, so nothing of this batch may be left in it
+			if (stmt != null)
+				stmt.clearBatch();
+			statementDone(sql, new Object[]{ rows.size() + " execution(s)" }, started, affected);
+			relinquish(conn);
+		}
+	}//end executeBatch
+
+	/**
+	 * Method to stream rows to the server with COPY ... FROM STDIN.  The
+	 * data is sent as it is read, so it is never held in memory.
+	 * 
+	 * @param sql the COPY statement
+	 * @param data the rows, in the format the statement declares
+	 * @return the number of rows copied
+	 * @throws java.sql.SQLException when the copy failed
+	 * @throws java.io.IOException when the data could not be read
+	 */
+	public long executeCopyIn (String sql, Reader data) throws SQLException, IOException {
+		Connection conn = acquire();
+		this._statements.get()[0]++;
+		long started = System.nanoTime();
+		long rows = -1;
+		try{
+			CopyManager copy = conn.unwrap(PGConnection.class).getCopyAPI();
+			rows = copy.copyIn(sql, data, 1 << 16);
+			return rows;
+		}finally{
+			statementDone(sql, NO_PARAMS, started, rows);
+			relinquish(conn);
+		}
+	}//end executeCopyIn
+
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and outputs the results to
 	 * standard out.
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with ? placeholders for parameters
+	 * @param params the values bound to the placeholders
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
+	public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+		//outputs the column names ahead of the first row, then each row as it arrives
+		final boolean[] outputHeader = { true };
+		return executeQueryAndStream(query, rs -> {
+			/*
+			 *  obtains the metadata object for the returned result set.  The metadata
+			 *  contains row and column info.
+			 */
+			ResultSetMetaData rsmd = rs.getMetaData ();
+			int numCol = rsmd.getColumnCount ();
+			if(outputHeader[0]){
 				for(int i = 1; i <= numCol; i++){
 					System.out.print(rsmd.getColumnName(i) + "\t");
 			    }
 			    System.out.println();
-			    outputHeader = false;
+			    outputHeader[0] = false;
 			}
 			for (int i=1; i<=numCol; ++i)
 				System.out.print (rs.getString (i) + "\t");
 			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
-		return rowCount;
+		}, params);
+	}
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) and hand
+	 * each row to a callback as it arrives. The query runs inside a
+	 * transaction with a fetch size, so Postgres returns the rows through a
+	 * server-side cursor a batch at a time and memory use does not depend on
+	 * the size of the result.
+	 * 
+	 * @param query the input query string, with ? placeholders for parameters
+	 * @param handler the callback invoked once per row
+	 * @param params the values bound to the placeholders
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndStream (String query, RowHandler handler, Object... params) throws SQLException {
+		Connection conn = acquire();
+		//inside executeInTransaction the cursor lives in the caller's transaction
+		boolean ownTransaction = conn.getAutoCommit();
+		long started = System.nanoTime();
+		int rows = -1;
+		try{
+			//the driver only uses a cursor when autocommit is off
+			if (ownTransaction) conn.setAutoCommit(false);
+
+			// fetches the cached statement and binds the parameters
+			PreparedStatement stmt = prepare(conn, query, params);
+			stmt.setFetchSize(FETCH_SIZE);
+			int rowCount = 0;
+			try{
+				//issues the query instruction
+				ResultSet rs = stmt.executeQuery ();
+				while (rs.next()){
+					handler.handle(rs);
+					++rowCount;
+				}//end while
+				rs.close ();
+			}finally{
+				//the statement stays cached, so leave it with the default fetch size
+				stmt.setFetchSize(0);
+			}
+			if (ownTransaction){
+				conn.commit();
+				conn.setAutoCommit(true);
+			}
+			rows = rowCount;
+			return rowCount;
+		}finally{
+			statementDone(query, params, started, rows);
+			relinquish(conn);
+		}
+	}//end executeQueryAndStream
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) and
+	 * turn each row into a value as it is streamed.
+	 * 
+	 * @param query the input query string, with ? placeholders for parameters
+	 * @param mapper the function applied to each row
+	 * @param params the values bound to the placeholders
+	 * @return the mapped rows in result order
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public <T> List<T> executeQueryAndMap (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+		final List<T> result = new ArrayList<T>();
+		executeQueryAndStream(query, rs -> result.add(mapper.map(rs)), params);
+		return result;
+	}//end executeQueryAndMap
+
+	/**
+	 * Method to print values in the [a, b, c] form the menu operations use
+	 * when printing a list of records.
+	 *
+	 * @param values the column values of one row
+	 */
+	public static void printValues (Object... values){
+		System.out.println(Arrays.asList(values));
 	}
 	
 	/**
@@ -129,67 +413,87 @@ public class Ticketmaster{
 	 * method issues the query to the DBMS and returns the results as
 	 * a list of records. Each record in turn is a list of attribute values
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with ? placeholders for parameters
+	 * @param params the values bound to the placeholders
 	 * @return the query result as a list of records
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
-		
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
-	 
-		/*
-		 * obtains the metadata object for the returned result set.  The metadata 
-		 * contains row and column info. 
-		*/ 
-		ResultSetMetaData rsmd = rs.getMetaData (); 
-		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
-	 
-		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
-		List<List<String>> result  = new ArrayList<List<String>>(); 
-		while (rs.next()){
-			List<String> record = new ArrayList<String>(); 
-			for (int i=1; i<=numCol; ++i) 
-				record.add(rs.getString (i)); 
-			result.add(record); 
-		}//end while 
-		stmt.close (); 
-		return result; 
+	public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException { 
+		Connection conn = acquire();
+		long started = System.nanoTime();
+		int rows = -1;
+		try{
+			// fetches the cached statement and binds the parameters
+			PreparedStatement stmt = prepare(conn, query, params);
+			
+			//issues the query instruction 
+			ResultSet rs = stmt.executeQuery (); 
+		 
+			/*
+			 * obtains the metadata object for the returned result set.  The metadata 
+			 * contains row and column info. 
+			*/ 
+			ResultSetMetaData rsmd = rs.getMetaData (); 
+			int numCol = rsmd.getColumnCount (); 
+		 
+			//iterates through the result set and saves the data returned by the query. 
+			List<List<String>> result  = new ArrayList<List<String>>(); 
+			while (rs.next()){
+				List<String> record = new ArrayList<String>(); 
+				for (int i=1; i<=numCol; ++i) 
+					record.add(rs.getString (i)); 
+				result.add(record); 
+			}//end while 
+			rs.close (); 
+			rows = result.size();
+			return result; 
+		}finally{
+			statementDone(query, params, started, rows);
+			relinquish(conn);
+		}
 	}//end executeQueryAndReturnResult
 	
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the number of results
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with ? placeholders for parameters
+	 * @param params the values bound to the placeholders
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public int executeQuery (String query, Object... params) throws SQLException {
+		Connection conn = acquire();
+		long started = System.nanoTime();
+		int rows = -1;
+		try{
+			// fetches the cached statement and binds the parameters
+			PreparedStatement stmt = prepare(conn, query, params);
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+			//issues the query instruction
+			ResultSet rs = stmt.executeQuery ();
 
-		int rowCount = 0;
+			int rowCount = 0;
 
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+			//iterates through the result set and count nuber of results.
+			if(rs.next()){
+				rowCount++;
+			}//end while
+			rs.close ();
+			rows = rowCount;
+			return rowCount;
+		}finally{
+			statementDone(query, params, started, rows);
+			relinquish(conn);
+		}
 	}
 	
 	/**
 	 * Method to fetch the last value from sequence. This
 	 * method issues the query to the DBMS and returns the current 
-	 * value of sequence used for autogenerated keys
+	 * value of sequence used for autogenerated keys. currval() is scoped to
+	 * the database session, so it only sees a nextval() issued on the same
+	 * pooled connection.
 	 * 
 	 * @param sequence name of the DB sequence
 	 * @return current value of a sequence
@@ -197,24 +501,131 @@ public class Ticketmaster{
 	 */
 	
 	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+		Connection conn = acquire();
+		try{
+			PreparedStatement stmt = prepare(conn, "SELECT currval(?::regclass)", sequence);
+			
+			ResultSet rs = stmt.executeQuery ();
+			int value = -1;
+			if (rs.next()) value = rs.getInt(1);
+			rs.close ();
+			return value;
+		}finally{
+			relinquish(conn);
+		}
+	}
+	/**
+	 * Method to advance a sequence and return its new value. For sequences
+	 * used by IdAllocator the value is the top of a newly reserved block.
+	 * 
+	 * @param sequence name of the DB sequence
+	 * @return next value of a sequence
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public long getNextSeqVal(String sequence) throws SQLException {
+		List<List<String>> result = executeQueryAndReturnResult("SELECT nextval(?::regclass)", sequence);
+		return Long.parseLong(result.get(0).get(0));
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to allocate a primary key from one of the IdAllocator sequences.
+	 * 
+	 * @param sequence name of the DB sequence, e.g. IdAllocator.BOOKING_ID
+	 * @return a key unique across every client of the database
+	 * @throws java.sql.SQLException when a new block of keys cannot be reserved
 	 */
-	public void cleanup(){
+	public long nextId(String sequence) throws SQLException {
+		return this._ids.next(sequence);
+	}
+
+	/**
+	 * @return the cached seat availability of every show this process has looked at
+	 */
+	public SeatInventory getSeatInventory(){
+		return this._seats;
+	}
+
+	/**
+	 * @return the index of show times used to detect scheduling conflicts
+	 */
+	public ShowSchedule getShowSchedule(){
+		return this._schedule;
+	}
+
+	/**
+	 * @return the cached reference tables
+	 */
+	public CatalogCache getCatalog(){
+		return this._catalog;
+	}
+
+	/**
+	 * @return the index of movie titles
+	 */
+	public TitleIndex getTitleIndex(){
+		return this._titles;
+	}
+
+	/**
+	 * @return the filter of registered emails
+	 */
+	public EmailFilter getEmailFilter(){
+		return this._emails;
+	}
+
+	/**
+	 * @return the operations of the menu as a service
+	 */
+	public TicketmasterService getService(){
+		return this._service;
+	}
+
+	/**
+	 * @return the expiry of pending booking holds
+	 */
+	public HoldExpiry getHoldExpiry(){
+		return this._holds;
+	}
+
+	/**
+	 * @return the latency histograms of operations and statements
+	 */
+	public Metrics getMetrics(){
+		return this._metrics;
+	}
+
+	/**
+	 * Method to run a menu choice as a metrics operation. The time includes
+	 * reading the user's input; the statements of the choice show the
+	 * database's share.
+	 * 
+	 * @param esql the open connection
+	 * @param operation the name the choice is reported under
+	 * @param choice the menu method to run
+	 */
+	static void timed(Ticketmaster esql, String operation, Consumer<Ticketmaster> choice){
+		long started = esql._metrics.begin(operation);
+		boolean failed = true;
 		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
-		}catch (SQLException e){
-	         // ignored.
-		}//end try
+			choice.accept(esql);
+			failed = false;
+		}finally{
+			esql._metrics.end(operation, started, failed);
+		}
+	}
+
+	/**
+	 * Method to close the connection pool if it is open.
+	 */
+	public void cleanup(){
+		this._holds.stop();
+		this._emails.stop();
+		this._slowQueries.stop();
+		this._metrics.stop();
+		if (this._pool != null){
+			System.out.println(this._pool.getStats());
+			this._pool.close ();
+		}//end if
 	}//end cleanup
 
 	/**
@@ -250,6 +661,8 @@ public class Ticketmaster{
 			String user = args[2];
 			
 			esql = new Ticketmaster (dbname, dbport, user, "");
+			esql.getHoldExpiry().start();
+			esql.getEmailFilter().start();
 			
 			boolean keepon = true;
 			while(keepon){
@@ -276,20 +689,20 @@ public class Ticketmaster{
 				 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
 				 */
 				switch (readChoice()){
-					case 1: AddUser(esql); break;
-					case 2: AddBooking(esql); break;
-					case 3: AddMovieShowingToTheater(esql); break;
-					case 4: CancelPendingBookings(esql); break;
-					case 5: ChangeSeatsForBooking(esql); break;
-					case 6: RemovePayment(esql); break;
-					case 7: ClearCancelledBookings(esql); break;
-					case 8: RemoveShowsOnDate(esql); break;
-					case 9: ListTheatersPlayingShow(esql); break;
-					case 10: ListShowsStartingOnTimeAndDate(esql); break;
-					case 11: ListMovieTitlesContainingLoveReleasedAfter2010(esql); break;
-					case 12: ListUsersWithPendingBooking(esql); break;
-					case 13: ListMovieAndShowInfoAtCinemaInDateRange(esql); break;
-					case 14: ListBookingInfoForUser(esql); break;
+					case 1: timed(esql, "AddUser", Ticketmaster::AddUser); break;
+					case 2: timed(esql, "AddBooking", Ticketmaster::AddBooking); break;
+					case 3: timed(esql, "AddMovieShowingToTheater", Ticketmaster::AddMovieShowingToTheater); break;
+					case 4: timed(esql, "CancelPendingBookings", Ticketmaster::CancelPendingBookings); break;
+					case 5: timed(esql, "ChangeSeatsForBooking", Ticketmaster::ChangeSeatsForBooking); break;
+					case 6: timed(esql, "RemovePayment", Ticketmaster::RemovePayment); break;
+					case 7: timed(esql, "ClearCancelledBookings", Ticketmaster::ClearCancelledBookings); break;
+					case 8: timed(esql, "RemoveShowsOnDate", Ticketmaster::RemoveShowsOnDate); break;
+					case 9: timed(esql, "ListTheatersPlayingShow", Ticketmaster::ListTheatersPlayingShow); break;
+					case 10: timed(esql, "ListShowsStartingOnTimeAndDate", Ticketmaster::ListShowsStartingOnTimeAndDate); break;
+					case 11: timed(esql, "ListMovieTitlesContainingLoveReleasedAfter2010", Ticketmaster::ListMovieTitlesContainingLoveReleasedAfter2010); break;
+					case 12: timed(esql, "ListUsersWithPendingBooking", Ticketmaster::ListUsersWithPendingBooking); break;
+					case 13: timed(esql, "ListMovieAndShowInfoAtCinemaInDateRange", Ticketmaster::ListMovieAndShowInfoAtCinemaInDateRange); break;
+					case 14: timed(esql, "ListBookingInfoForUser", Ticketmaster::ListBookingInfoForUser); break;
 					case 15: keepon = false; break;
 				}
 			}
@@ -325,705 +738,386 @@ public class Ticketmaster{
 		}while (true);
 		return input;
 	}//end readChoice
-	//TODO: ADD SHA-256 to password	
+	/**
+	 * Method to print a prompt and read the user's answer.
+	 *
+	 * @return the line entered, without surrounding blanks
+	 * @throws java.io.IOException when standard input cannot be read
+	 */
+	public static String prompt(String message) throws IOException {
+		System.out.println(message);
+		String line = in.readLine();
+		if(line == null) throw new IOException("End of input");
+		return line.trim();
+	}//end prompt
+
+	/**
+	 * Method to report a failed operation: the message of a rejected request,
+	 * or the exception itself for anything else.
+	 */
+	public static void printError(Exception e){
+		if(e instanceof TicketmasterService.InvalidRequestException) System.out.println("ERROR: " + e.getMessage());
+		else System.out.println(e);
+	}
+
 	public static void AddUser(Ticketmaster esql){//1
 		try{
-			try{
-				System.out.print("Enter User Email: ");
-				BufferedReader inp_email = new BufferedReader (new InputStreamReader(System.in));
-				String email = inp_email.readLine();
-				//Check Email in database
-				String query = "SELECT * FROM users WHERE email=\'" + email + "\'";
-				List<List<String>> email_check = esql.executeQueryAndReturnResult(query);
-				if(email_check.size() > 0){
-					System.out.println("ERROR: Email already in database");
-					return;
-				}
-				System.out.print("Enter First Name: ");
-				BufferedReader inp_fname = new BufferedReader (new InputStreamReader(System.in));
-				String first_name = inp_fname.readLine();
-				System.out.print("Enter Last Name: ");
-				BufferedReader inp_lname = new BufferedReader (new InputStreamReader(System.in));
-				String last_name = inp_lname.readLine();
-				System.out.print("Enter Phone Number: ");
-				BufferedReader inp_pnumber = new BufferedReader (new InputStreamReader(System.in));
-				String phone_number = inp_pnumber.readLine();
-				System.out.print("Enter Password: ");
-				BufferedReader inp_password = new BufferedReader (new InputStreamReader(System.in));
-				String password = inp_password.readLine();
-				//Calc SHA-256	
-				try{
-					MessageDigest md = MessageDigest.getInstance("SHA-256");
-					byte [] sha_bytes = md.digest(password.getBytes(StandardCharsets.UTF_8));
-					BigInteger number = new BigInteger(1, sha_bytes);
-					StringBuilder hexString = new StringBuilder(number.toString(16));
-					while (hexString.length()<32){
-						hexString.insert(0,'0');
-
-					}
-					String sha_hash = hexString.toString();	
-					//Done
-					query = "INSERT INTO users(email,lname,fname,phone,pwd) VALUES(\'"+email+"\',\'"+last_name+"\',\'"+first_name+"\',\'"+phone_number+"\',\'"+sha_hash+"\');";
-					esql.executeUpdate(query);	
-				}
-				catch(Exception e){
-					System.out.println(e);
-				}
-			}
-			catch(SQLException e){
-				System.out.println("Error trying to add user to database");
-				System.out.println(e);
+			String email = prompt("Enter User Email: ");
+			if(esql.getService().userExists(email)){
+				System.out.println("ERROR: Email already in database");
+				return;
 			}
-				
+			String first_name = prompt("Enter First Name: ");
+			String last_name = prompt("Enter Last Name: ");
+			String phone_number = prompt("Enter Phone Number: ");
+			String password = prompt("Enter Password: ");
+			esql.getService().addUser(new TicketmasterService.NewUser(email, first_name, last_name, phone_number, password));
+			System.out.println("User Added");
 		}
 		catch(IOException e){
 			System.out.println("Error trying to create user, most likely issue with reading input lines");
 		}
-		
-
+		catch(SQLException e){
+			printError(e);
+		}
 	}
-//TODO: Allow users to pick seats	
+
 	public static void AddBooking(Ticketmaster esql){//2
+		TicketmasterService service = esql.getService();
 		try{
 			String email = null;
-			String num_seats = null;
-			String sid = null;
-			String status = null;
-			String bid = null;
-			String query = null;
-			String show_time_id = null;
-			List<List<String>> available_showseats = null;
-			//Grab DateTime
-			String dateTime_format = "yyy-MM-dd HH:mm:ssX";
-			Date date = Calendar.getInstance().getTime();
-			DateFormat dateFormat = new SimpleDateFormat(dateTime_format);
-			String strDate = dateFormat.format(date);
-			System.out.println(strDate);
-
 			while(true){
-				System.out.println("Enter User Email (Enter q to Return to Main Menu)");
-				BufferedReader inp_email = new BufferedReader(new InputStreamReader(System.in));
-				email = inp_email.readLine();
+				email = prompt("Enter User Email (Enter q to Return to Main Menu)");
 				if(email.equals("q")) return;
-				query = "SELECT * FROM users WHERE email = "+"\'"+ email + "\';";
-				try{
-					int num_results = esql.executeQuery(query);
-					if(num_results == 1) break;
-					else System.out.println("Invalid User Email, Please Try Again");	
-				}	
-				catch(SQLException e){
-					System.out.println("Error executing query");	
-				}	
+				if(service.userExists(email)) break;
+				System.out.println("Invalid User Email, Please Try Again");
 			}
-
-			try{
-				//Bring Movie List			
-				query = "SELECT * FROM movies;";
-				List<List<String>> movie_list = esql.executeQueryAndReturnResult(query);
-				movie_list.forEach(System.out::println);
-				//Movie Selection
-				System.out.println("Enter Movie ID");
-				BufferedReader inp_movie_choice = new BufferedReader(new InputStreamReader(System.in));
-				String movie_choice = inp_movie_choice.readLine();
-				try{
-					//Confirm movie with user
-					query = "SELECT movies.title FROM movies WHERE mvid="+movie_choice;
-					movie_list = esql.executeQueryAndReturnResult(query);
-					System.out.println("Movie Chosen: " + movie_list.get(0).get(0));
-					//Available Times
-					query = "SELECT * FROM shows WHERE mvid="+movie_choice;
-					List<List<String>> show_list = esql.executeQueryAndReturnResult(query);
-					System.out.println("Available Show Times");
-					System.out.println("[sid | mvid | sdate | sttime | edtime]");
-					show_list.forEach(System.out::println);
-					//Select a show time
-					System.out.println("Select a Show Time ID");
-					BufferedReader inp = new BufferedReader(new InputStreamReader(System.in));
-					show_time_id = inp.readLine();
-					query = "SELECT * FROM showseats WHERE bid is NULL AND sid= "+ show_time_id;
-					//Grab number of seats
-					available_showseats = esql.executeQueryAndReturnResult(query);
-					System.out.println("Enter number of seats, Num Available: "+available_showseats.size());
-					inp = new BufferedReader(new InputStreamReader(System.in));
-					num_seats =  inp.readLine();
-					if(Integer.parseInt(num_seats) > available_showseats.size()){
-						System.out.println("Not enough seats");
-						return;	
-					}		
-					
-				}
-				catch(SQLException e){
-					System.out.println(e);
-					return;
-				}
+			//Bring Movie List
+			for(CatalogCache.Movie m : service.movies()){
+				printValues(m.mvid(), m.title(), m.rdate(), m.country(), m.description(), m.duration(), m.lang(), m.genre());
 			}
-			catch(SQLException e){
-				System.out.println("Error grabbing movies");
+			CatalogCache.Movie movie = service.movie(Long.parseLong(prompt("Enter Movie ID")));
+			System.out.println("Movie Chosen: " + movie.title());
+			System.out.println("Available Show Times");
+			System.out.println("[sid | mvid | sdate | sttime | edtime]");
+			for(TicketmasterService.Show s : service.showsOfMovie(movie.mvid())){
+				printValues(s.sid(), s.mvid(), s.sdate(), s.sttime(), s.edtime());
 			}
+			long sid = Long.parseLong(prompt("Select a Show Time ID"));
+			int free = service.freeSeatCount(sid);
+			int num_seats = Integer.parseInt(prompt("Enter number of seats, Num Available: " + free));
+			if(num_seats > free){
+				System.out.println("Not enough seats");
+				return;
+			}
+			String status = null;
 			while(true){
-				System.out.println("Enter status (Paid or Pending):");
-				BufferedReader inp_status = new BufferedReader(new InputStreamReader(System.in));
-				status = inp_status.readLine();
+				status = prompt("Enter status (Paid or Pending):");
 				if(status.equals("Paid") || status.equals("Pending")) break;
-				else System.out.println("Invalid Status");
+				System.out.println("Invalid Status");
 			}
-			//fetch bid
-			query = "SELECT MAX(bookings.bid) FROM bookings;";
-			try{
-				
-				//Create Booking
-				List<List<String>> bid_list = esql.executeQueryAndReturnResult(query);
-				int next_bid = Integer.parseInt(bid_list.get(0).get(0)) + 1;
-				//Update seats with bid until we reach num of seats
-				
-				query = "INSERT into bookings(bid,status,bdatetime,seats,sid,email) VALUES ('"+ Integer.toString(next_bid) +"','"+ status + "','" + strDate + "','" + num_seats + "','" + show_time_id +"','" + email +"')";		
-				esql.executeUpdate(query);
-				int num_seats_int = Integer.parseInt(num_seats);
-				int orig_num_seats = num_seats_int;
-				int total = 0;
-				for(int i=0; i < available_showseats.size();i++){
-					if(num_seats_int == 0) break;
-					query =  "SELECT C.sno, S.price FROM showseats S, cinemaseats C WHERE ssid= '" + available_showseats.get(i).get(0) + "' AND C.csid= S.csid";
+
+			TicketmasterService.BookingRequest request;
+			if(prompt("Auto-select the best " + num_seats + " seats? (yes|no)").equals("yes")){
+				String max_price = prompt("Enter maximum price per seat (leave blank for any):");
+				String seat_type = prompt("Enter seat type (leave blank for any):");
+				request = new TicketmasterService.BookingRequest(email, sid, status, num_seats,
+					max_price.isEmpty() ? null : Float.valueOf(max_price), seat_type, null);
+			}else{
+				//Pick seats from the free seats, nothing is written until all are chosen
+				List<Integer> chosen_seats = new ArrayList<Integer>();
+				for(TicketmasterService.Seat seat : service.seats(sid)){
+					if(chosen_seats.size() == num_seats) break;
+					if(!seat.free()) continue;
 					System.out.println("Seat Number | Price");
-					List<List<String>> seat_option = esql.executeQueryAndReturnResult(query);
-					seat_option.forEach(System.out::println);
-					System.out.println("Would you like this seat? (yes|no) (Seats Needed: '" + Integer.toString(num_seats_int) + "')");
-					BufferedReader inp = new BufferedReader(new InputStreamReader(System.in));
-					String option = inp.readLine();
+					printValues(seat.sno(), seat.price());
+					String option = prompt("Would you like this seat? (yes|no) (Seats Needed: '" + (num_seats - chosen_seats.size()) + "')");
 					if(option.equals("yes")){
-						query = "UPDATE showseats SET bid =" + Integer.toString(next_bid) + "WHERE ssid ="+available_showseats.get(i).get(0);
-						esql.executeUpdate(query);
+						chosen_seats.add(seat.sno());
 						System.out.println("Seat Added");
-						num_seats_int = num_seats_int - 1;
-						total = total + Integer.parseInt(seat_option.get(0).get(1));
 					}
 				}
-				System.out.println("Booking Complete! Total: $" + total);
+				if(chosen_seats.size() < num_seats){
+					System.out.println("Not enough seats selected, booking cancelled");
+					return;
+				}
+				request = new TicketmasterService.BookingRequest(email, sid, status, num_seats, null, null, chosen_seats);
 			}
-			catch(SQLException e){
-				System.out.println(e);	
+			try{
+				TicketmasterService.Booking booking = service.book(request);
+				System.out.println("Seats Chosen: " + booking.seats());
+				System.out.println("Booking Complete! Booking ID: " + booking.bid() + " Total: $" + booking.total());
+			}
+			catch(BookingEngine.SeatsUnavailableException e){
+				System.out.println("Sorry, those seats are no longer free. Nothing was booked, please try again.");
 			}
-
 		}
 		catch(IOException e){
 			System.out.println("Error trying to add booking");
-		}	
+		}
+		catch(SQLException | NumberFormatException e){
+			printError(e);
+		}
 	}
-	
+
 	public static void AddMovieShowingToTheater(Ticketmaster esql){//3
-		String title = null;
-		String query = null;
-		String description = null;
-		String rdate = null;
-		String country = null;
-		String duration = null;
-		String lang = null;
-		String genre = null;
-		String next_mvid = null;
-		String selected_start_time = null;
-		Date start_time = null;
-		Date end_time = null;
+		TicketmasterService service = esql.getService();
 		try{
-			BufferedReader inp = null;
 			System.out.println("Add a New Movie");
-			System.out.println("Add Title of the Movie");
-			inp = new BufferedReader(new InputStreamReader(System.in));
-			title = inp.readLine();
-			
-			query = "SELECT * FROM movies WHERE title = '" + title + "'";
-			List<List<String>> title_check = esql.executeQueryAndReturnResult(query);	
-			if(title_check.size() > 0 ){
+			String title = prompt("Add Title of the Movie");
+			if(service.movieExists(title)){
 				System.out.println("ERROR: Movie is already in database");
 				return;
 			}
-			System.out.println("Enter release date: (FORMAT yyyy-MM-dd)");
-			inp = new BufferedReader(new InputStreamReader(System.in));
-			rdate = inp.readLine();
-			//release date check
-			DateFormat release_date_check = new SimpleDateFormat("yyyy-MM-dd");
-			release_date_check.setLenient(false);
+			String rdate = prompt("Enter release date: (FORMAT yyyy-MM-dd)");
+			TicketmasterService.date(rdate);
+			String description = prompt("Enter description:");
+			String country = prompt("Enter enter country:");
+			String duration = prompt("Enter duration:");
+			String lang = prompt("Enter lang:");
+			String genre = prompt("Enter genre:");
+			TicketmasterService.NewMovie movie;
 			try{
-				release_date_check.parse(rdate);
-			}	
-			catch(Exception e){
-				System.out.println("Error: Invalid date");
-				return;
+				movie = new TicketmasterService.NewMovie(title, rdate, country, description, Integer.parseInt(duration), lang, genre);
 			}
-			System.out.println("Enter description:");
-			inp = new BufferedReader(new InputStreamReader(System.in));
-			description = inp.readLine();
-			
-			System.out.println("Enter enter country:");
-			inp = new BufferedReader(new InputStreamReader(System.in));
-			country = inp.readLine();
-			
-			System.out.println("Enter duration:");
-			inp = new BufferedReader(new InputStreamReader(System.in));
-			duration = inp.readLine();
-			try{
-				int check = Integer.parseInt(duration);	
-			}	
-			catch(Exception e){
+			catch(NumberFormatException e){
 				System.out.println("Invalid duration");
 				return;
 			}
-			System.out.println("Enter lang:");
-			inp = new BufferedReader(new InputStreamReader(System.in));
-			lang = inp.readLine();
 
-			System.out.println("Enter genre:");
-			inp = new BufferedReader(new InputStreamReader(System.in));
-			genre = inp.readLine();
-			
-			query = "SELECT MAX(mvid) FROM movies";
-			List<List<String>> max_mvid_list = esql.executeQueryAndReturnResult(query);
-			next_mvid = Integer.toString(Integer.parseInt(max_mvid_list.get(0).get(0)) + 1);
-							
-			query = "INSERT into movies(mvid,title,rdate,country,description,duration,lang,genre) VALUES ('" + next_mvid + "','" + title + "','" + rdate + "','" + country + "','" + description+ "','" + duration + "','" + lang + "','" + genre + "')";
-			esql.executeUpdate(query);	
-		
 			//Add show
-			query = "SELECT * FROM theaters";
-			List<List<String>> theater_list = esql.executeQueryAndReturnResult(query);
-			theater_list.forEach(System.out::println);
-			System.out.println("Select Theater ID:");
-			inp= new BufferedReader(new InputStreamReader(System.in));
-			String tid =  inp.readLine();
-			//Input start time and then calculate end time, then we have to check theater id for shows playing at that time.
+			for(CatalogCache.Theater t : service.theaters()){
+				printValues(t.tid(), t.cid(), t.name(), t.tseats());
+			}
+			long tid = Long.parseLong(prompt("Select Theater ID:"));
 			System.out.println("===Current Shows Playing===");
-			query = "SELECT title,sdate,sttime,edtime FROM shows S, plays P, movies M WHERE P.sid = S.sid AND S.mvid = M.mvid AND tid=" + tid;
-			List<List<String>> current_shows = esql.executeQueryAndReturnResult(query);
-			current_shows.forEach(System.out::println);
-			System.out.println("Enter Start Date (FORMAT: yyyy-MM-dd)");
-			inp = new BufferedReader(new InputStreamReader(System.in));
-			String show_date = inp.readLine();	
-			
-			DateFormat show_time_check = new SimpleDateFormat("HH:mm:ss");
-			show_time_check.setLenient(false);
-			DateFormat show_date_check = new SimpleDateFormat("yyyy-MM-dd");
-			show_date_check.setLenient(false);
-			boolean time_conflict_check = true;
-			try{
-				show_date_check.parse(show_date);
-				while(time_conflict_check == true){
-					//Check if times for date are overlapping
-					time_conflict_check = false;
-					query = "SELECT sttime,edtime FROM shows S, plays P WHERE  S.sid = P.sid AND tid=" + tid + " AND sdate='" + show_date +"'";
-					List<List<String>> date_check_list = esql.executeQueryAndReturnResult(query);
-					date_check_list.forEach(System.out::println);
-					System.out.println("Enter start time for movie (FORMAT: HH:mm:ss)");
-					inp = new BufferedReader (new InputStreamReader(System.in));
-					selected_start_time = inp.readLine();
-					start_time = show_time_check.parse(selected_start_time);	
-					end_time = Date.from(start_time.toInstant().plus(Duration.ofSeconds(Integer.parseInt(duration))));
-						
-					for(int i = 0; i<date_check_list.size(); i++){
-						Date list_start = show_time_check.parse(date_check_list.get(i).get(0));
-						Date list_end = show_time_check.parse(date_check_list.get(i).get(1));
-						
-						if(!(start_time.after(list_end) || end_time.before(list_start))){
-							System.out.println("Conflicting times, another movie is playing at the same time");
-							time_conflict_check = true;
-						}
+			for(TicketmasterService.ScheduledShow s : service.showsOfTheater(tid)){
+				printValues(s.title(), s.sdate(), s.sttime(), s.edtime());
+			}
+			String show_date = prompt("Enter Start Date (FORMAT: yyyy-MM-dd)");
+			//Shows already playing in the theater that day
+			for(TicketmasterService.TimeRange show : service.showTimes(tid, show_date)){
+				printValues(show.from(), show.to());
+			}
+			while(true){
+				String start_time = prompt("Enter start time for movie (FORMAT: HH:mm:ss)");
+				try{
+					//The movie and its show are inserted together or not at all
+					service.addMovieShowing(new TicketmasterService.MovieShowing(movie, tid, show_date, start_time));
+					System.out.println("Show Added");
+					return;
+				}
+				catch(ShowSchedule.ScheduleConflictException e){
+					System.out.println("Conflicting times, another movie is playing at the same time");
+					System.out.println("The movie can start at any time in these ranges:");
+					for(TicketmasterService.TimeRange slot : service.freeStartTimes(tid, show_date, movie.duration())){
+						System.out.println("[" + slot.from() + " - " + slot.to() + "]");
 					}
 				}
-				//Get data ready to insert into shows
-				String endtime_str = show_time_check.format(end_time);
-				//Grab max show id
-				query = "SELECT MAX(sid) FROM shows";
-				int next_sid = Integer.parseInt(esql.executeQueryAndReturnResult(query).get(0).get(0)) + 1;	
-				query = "INSERT into shows(sid,mvid,sdate,sttime,edtime) VALUES('" + Integer.toString(next_sid) + "','" + next_mvid + "','" + show_date + "','" + selected_start_time + "','" + endtime_str + "')";
-				esql.executeUpdate(query);
-				//Insert into table plays as well
-				query = "INSERT into plays(sid,tid) VALUES('" + Integer.toString(next_sid) + "','" + tid + "')";
-				esql.executeUpdate(query);	
-				System.out.println("Show Added"); 
-			}	
-			catch(Exception e){
-				System.out.println("Error: Invalid date");
-				System.out.println(e);
-				return;
 			}
-
-			
-
 		}
-		catch(Exception e){
-			System.out.println(e);	
+		catch(IOException | SQLException | NumberFormatException e){
+			printError(e);
 		}
-					
 	}
-	
+
 	public static void CancelPendingBookings(Ticketmaster esql){//4
-	String query = null;
 		try{
-			query = "UPDATE bookings SET status = 'Cancelled' WHERE status = 'Pending'";
-			esql.executeUpdate(query);	
-			System.out.println("All pending bookings have been successfully cancelled."); 	
+			int cancelled = esql.getService().cancelPendingBookings();
+			System.out.println(cancelled + " pending booking(s) held for more than " + HoldExpiry.TTL_SEC / 60 + " minute(s) have been cancelled.");
 		}
 		catch(SQLException e){
-			System.out.println(e);	
+			printError(e);
 		}
 	}
-	
-	public static void ChangeSeatsForBooking(Ticketmaster esql) throws Exception{//5
-	String query = null;
-	String changedSeat = null;
-	boolean foundSeat = false;
+
+	public static void ChangeSeatsForBooking(Ticketmaster esql){//5
+		TicketmasterService service = esql.getService();
 		try{
-			BufferedReader inp = new BufferedReader(new InputStreamReader(System.in));
-			System.out.println("Enter a bookings ID to change seating information");
-			String bid = inp.readLine();
-			query = "SELECT * FROM bookings WHERE bid = '" + bid + "'";
-			List<List<String>> bid_check = esql.executeQueryAndReturnResult(query);
-			if(bid_check.size() == 0){
-				System.out.println("Invalid booking ID");
-				return;
-			}
-			//Grab seating info
-			query = "SELECT sno FROM showseats S, cinemaseats C WHERE S.csid = C.csid AND bid = '" + bid + "' ORDER BY C.sno ASC";			
-			List<List<String>> seat_no_list = esql.executeQueryAndReturnResult(query);
+			long bid = Long.parseLong(prompt("Enter a bookings ID to change seating information"));
+			List<Integer> seat_numbers = service.seatNumbersOfBooking(bid);
 			System.out.println("Your Seat Numbers");
-			seat_no_list.forEach(System.out::println);
-			System.out.println("Enter the seat number you currently have reserved that you would like to change");
-			inp = new BufferedReader(new InputStreamReader(System.in));
-			String origSeat = inp.readLine();
-			for(int i = 0; i < seat_no_list.size(); i++){
-				if(seat_no_list.get(i).get(0).equals(origSeat)){
-					foundSeat = true;
-					break;
-				}	
-			}
-			
-			if(!foundSeat)
-			{
+			for(int sno : seat_numbers) printValues(sno);
+			int orig_seat = Integer.parseInt(prompt("Enter the seat number you currently have reserved that you would like to change"));
+			if(!seat_numbers.contains(orig_seat)){
 				System.out.println("Invalid seat ID");
-				return;					
+				return;
 			}
-			
-			query = "SELECT S.price,S.sid,C.csid FROM showseats S, cinemaseats C WHERE C.sno = '" + origSeat + "' AND  S.csid = C.csid AND bid = '" + bid + "'" ;			
-			List<List<String>> origSeatPrice = esql.executeQueryAndReturnResult(query);
-
-
-			System.out.println("Enter the seat number you would like your current seat " + origSeat + " to be replaced by. You must choose a seat that is available and the same price as your old one. (" + origSeatPrice.get(0).get(0)+ " dollars)");
-			query = "SELECT C.sno, S.price FROM showseats S, cinemaseats C WHERE S.csid = C.csid AND  S.sid = '" + origSeatPrice.get(0).get(1) + "' AND bid is null AND S.price = '" + origSeatPrice.get(0).get(0) + "'";
-			List<List<String>> avail_seats = esql.executeQueryAndReturnResult(query);
-			if(avail_seats.size() == 0){
+			List<TicketmasterService.Seat> avail_seats = service.replacementSeats(bid, orig_seat);
+			if(avail_seats.isEmpty()){
 				System.out.println("Sorry there are no seats available at the same price!");
 				return;
 			}
 			System.out.println("Seat No. | Price");
-			avail_seats.forEach(System.out::println); 
-			inp = new BufferedReader(new InputStreamReader(System.in));
-			String replacementSeat = inp.readLine();
-			query = "SELECT C.sno, C.csid FROM showseats S, cinemaseats C WHERE S.sid = '" + origSeatPrice.get(0).get(1) +"' AND  C.sno = '" + replacementSeat + "' AND S.csid = C.csid AND S.bid is NULL AND S.price = '" + origSeatPrice.get(0).get(0) + "'";						
-			List<List<String>> isSeatAvailList = esql.executeQueryAndReturnResult(query);
-			if(isSeatAvailList.size() == 0){
-				System.out.println("Invalid seat number. You must choose a seat that is available and the same price as your old one.");
-				return;
-			}
-			
-			query = "UPDATE showseats S SET bid = '" + bid + "' WHERE S.csid = '" + isSeatAvailList.get(0).get(1) + "' AND S.sid = '" + origSeatPrice.get(0).get(1) + "'";
-			esql.executeUpdate(query);
-			System.out.println("CHECK");
-			query = "UPDATE showseats S SET bid = NULL WHERE S.csid = '" + origSeatPrice.get(0).get(2) + "' AND S.sid = '" + origSeatPrice.get(0).get(1) + "'";
-			esql.executeUpdate(query);
-			
-			
-			System.out.println("Your seat number " + origSeat + " has been successfully changed to seat number " + replacementSeat + ".");
-
-			
+			for(TicketmasterService.Seat seat : avail_seats) printValues(seat.sno(), seat.price());
+			int replacement_seat = Integer.parseInt(prompt("Enter the seat number you would like your current seat " + orig_seat + " to be replaced by. You must choose a seat that is available and the same price as your old one. (" + avail_seats.get(0).price() + " dollars)"));
+			service.changeSeat(bid, orig_seat, replacement_seat);
+			System.out.println("Your seat number " + orig_seat + " has been successfully changed to seat number " + replacement_seat + ".");
+		}
+		catch(IOException | SQLException | NumberFormatException e){
+			printError(e);
 		}
-		catch(Exception e){
-			System.out.println(e);
-		}	
 	}
-	
+
 	public static void RemovePayment(Ticketmaster esql){//6
-	String query = null;
 		try{
-			BufferedReader inp = new BufferedReader (new InputStreamReader(System.in));
-			System.out.println("Enter a bookings ID to cancel.");
-			String bid = inp.readLine();
-			query = "SELECT * FROM bookings WHERE bid = '" + bid + "'";
-			List<List<String>> bid_check = esql.executeQueryAndReturnResult(query);
-			if(bid_check.size() == 0){
-				System.out.println("Invalid booking ID");
-				return;
-			}
-
-			query = "UPDATE bookings SET status = 'Cancelled' WHERE bid = '" + bid + "'";
-			esql.executeUpdate(query);
-			query = "UPDATE showseats SET bid = NULL WHERE bid = '" + bid + "'";
-			esql.executeUpdate(query);
-			query = "DELETE FROM payments WHERE bid = '" + bid + "'";
-			esql.executeUpdate(query);
-			System.out.println("Bookings ID " + bid + " has been successfully cancelled."); 	
+			long bid = Long.parseLong(prompt("Enter a bookings ID to cancel."));
+			esql.getService().removePayment(bid);
+			System.out.println("Bookings ID " + bid + " has been successfully cancelled.");
 		}
-		catch(Exception e){
-			System.out.println(e);	
+		catch(IOException | SQLException | NumberFormatException e){
+			printError(e);
 		}
-
 	}
-	
+
 	public static void ClearCancelledBookings(Ticketmaster esql){//7
-	String query = null;
 		try{
-			query = "DELETE FROM bookings WHERE status = 'Cancelled'";
-			esql.executeUpdate(query);	
-			System.out.println("All cancelled bookings have been successfully removed."); 	
+			esql.getService().clearCancelledBookings();
+			System.out.println("All cancelled bookings have been successfully removed.");
 		}
 		catch(SQLException e){
-			System.out.println(e);	
+			printError(e);
 		}
 	}
-	
+
 	public static void RemoveShowsOnDate(Ticketmaster esql){//8
-		//Grab Date
 		try{
-			System.out.println("Enter Date: (FORMAT yyyy-MM-dd)");
-			BufferedReader inp = new BufferedReader(new InputStreamReader(System.in));
-			String date = inp.readLine();
-			String query = null;
-
-			DateFormat show_date_check = new SimpleDateFormat("yyyy-MM-dd");
-			show_date_check.setLenient(false);
-			show_date_check.parse(date);
-			
-			query = "SELECT X.cid, X.cname, X.tnum, C.city_name FROM cinemas X, cities C WHERE X.city_id = C.city_id";
-			List<List<String>> cinema_list = esql.executeQueryAndReturnResult(query);
+			String date = prompt("Enter Date: (FORMAT yyyy-MM-dd)");
+			TicketmasterService.date(date);
 			System.out.println("Cinema ID | Cinema Name | Num Theaters | City");
-			cinema_list.forEach(System.out::println);
-			System.out.println("Enter a Cinema ID");
-			inp = new BufferedReader(new InputStreamReader(System.in));
-
-			String cinema_id = inp.readLine();
-			query = "SELECT * FROM theaters WHERE cid=" + cinema_id;
-			List<List<String>> theater_list = esql.executeQueryAndReturnResult(query);
-
-			for(int i = 0; i < theater_list.size(); i++){
-				query = "DELETE FROM plays P USING shows S, theaters T WHERE S.sdate='"+ date +"' AND P.sid = S.sid AND P.tid=T.tid AND T.tid = " + theater_list.get(i).get(0);
-				esql.executeUpdate(query);
-			}
-			
+			PrintCinemas(esql);
+			long cid = Long.parseLong(prompt("Enter a Cinema ID"));
+			esql.getService().removeShowsOnDate(cid, date);
 			System.out.println("Successfully removed all shows in a cinema playing on the date of " + date);
+		}
+		catch(IOException | SQLException | NumberFormatException e){
+			printError(e);
+		}
+	}
 
-		  }
-			catch(Exception e){
-				System.out.println(e);
-			}
+	/**
+	 * Method to print the cinema pick list from the catalog cache:
+	 * cinema ID, name, number of theaters and city.
+	 */
+	public static void PrintCinemas(Ticketmaster esql) throws SQLException {
+		for(CatalogCache.Cinema c : esql.getService().cinemas()){
+			CatalogCache.City city = esql.getService().city(c.cityId());
+			if(city != null) printValues(c.cid(), c.name(), c.tnum(), city.name());
+		}
 	}
-	
+
+	/**
+	 * Method to print the movie pick list from the catalog cache: movie ID and title.
+	 */
+	public static void PrintMovieTitles(Ticketmaster esql) throws SQLException {
+		for(CatalogCache.Movie m : esql.getService().movies()){
+			printValues(m.mvid(), m.title());
+		}
+	}
+
 	public static void ListTheatersPlayingShow(Ticketmaster esql){//9
-		String query = "SELECT X.cid, X.cname, X.tnum, C.city_name FROM cinemas X, cities C WHERE X.city_id = C.city_id";
-		String cinema_id;
 		try{
-			List<List<String>> cinema_list = esql.executeQueryAndReturnResult(query);
 			System.out.println("Cinema ID | Cinema Name | Num Theaters | City");
-			cinema_list.forEach(System.out::println);
-			System.out.println("Enter a Cinema ID");
-			BufferedReader inp = new BufferedReader(new InputStreamReader(System.in));
-
-			cinema_id = inp.readLine();
-			query = "SELECT * FROM theaters WHERE cid=" + cinema_id;
-			List<List<String>> theater_list = esql.executeQueryAndReturnResult(query);
-			
-			query = "SELECT mvid, title FROM movies";
+			PrintCinemas(esql);
+			long cid = Long.parseLong(prompt("Enter a Cinema ID"));
 			System.out.println("movie id | title");
-			List<List<String>> movie_list = esql.executeQueryAndReturnResult(query);
-			movie_list.forEach(System.out::println);
-			System.out.println("Select a movie id: ");
-			inp = new BufferedReader(new InputStreamReader(System.in));
-			String selected_mvid  = inp.readLine();
-			
-			query = "SELECT * FROM movies WHERE mvid=" + selected_mvid;
-			List<List<String>> mvid_check = esql.executeQueryAndReturnResult(query);
-			if(mvid_check.size() == 0){
-				System.out.println("Invalid mvid");
-				return;
-			}
-			
+			PrintMovieTitles(esql);
+			long mvid = Long.parseLong(prompt("Select a movie id: "));
 			System.out.println("Theater ID | Theater Name | Start Date | Start Time | End Time | Movie Title");
-			for(int i = 0; i < theater_list.size(); i++){
-				query = "SELECT P.tid,T.tname,S.sdate,S.sttime,S.edtime,M.title FROM plays P, shows S, movies M, theaters T WHERE S.mvid = M.mvid AND P.sid = S.sid AND P.tid=T.tid AND T.tid = " + theater_list.get(i).get(0) + "AND M.mvid = " + selected_mvid;
-				List<List<String>> temp = esql.executeQueryAndReturnResult(query);
-				temp.forEach(System.out::println);
-			}
+			esql.getService().theatersPlayingShow(cid, mvid,
+				s -> printValues(s.tid(), s.tname(), s.sdate(), s.sttime(), s.edtime(), s.title()));
 			System.out.println("Done listing all theaters in a cinema playing a given show");
 		}
-		catch(Exception e){
-			System.out.println(e);
+		catch(IOException | SQLException | NumberFormatException e){
+			printError(e);
 		}
-		
 	}
-	
+
 	public static void ListShowsStartingOnTimeAndDate(Ticketmaster esql){//10
-		//Grab Date
 		try{
-		System.out.println("Enter Date: (FORMAT yyyy-MM-dd)");
-		BufferedReader inp = new BufferedReader(new InputStreamReader(System.in));
-		String date = inp.readLine();
-		String query = null;
-
-		DateFormat show_date_check = new SimpleDateFormat("yyyy-MM-dd");
-		show_date_check.setLenient(false);
-		show_date_check.parse(date);
-		System.out.println("Enter Start Time (FORMAT HH:mm:ss)");
-		inp = new BufferedReader(new InputStreamReader(System.in));	
-		String sttime = inp.readLine();
-		DateFormat start_time_check = new SimpleDateFormat("HH:mm:ss");		
-		start_time_check.parse(sttime);
-		query = "SELECT C.cname, T.tname,S.sdate,S.sttime,S.edtime,M.title FROM shows S , movies M,plays P, theaters T, cinemas C WHERE S.sdate='"+ date +"' AND S.sttime='" + sttime +"' AND S.mvid=M.mvid AND P.sid = S.sid AND T.cid = C.cid AND P.tid = T.tid";
-		List<List<String>> shows = esql.executeQueryAndReturnResult(query);
-		System.out.println("Cinema | Theater | Start Date | Start Time | End Time | Movie Title");
-		shows.forEach(System.out::println);			
+			String date = prompt("Enter Date: (FORMAT yyyy-MM-dd)");
+			TicketmasterService.date(date);
+			String sttime = prompt("Enter Start Time (FORMAT HH:mm:ss)");
+			System.out.println("Cinema | Theater | Start Date | Start Time | End Time | Movie Title");
+			esql.getService().showsStartingAt(date, sttime,
+				s -> printValues(s.cname(), s.tname(), s.sdate(), s.sttime(), s.edtime(), s.title()));
 		}
-		catch(Exception e){
-			System.out.println(e);
+		catch(IOException | SQLException e){
+			printError(e);
 		}
 	}
 
 	public static void ListMovieTitlesContainingLoveReleasedAfter2010(Ticketmaster esql){//11
 		try{
-			//
-			String query = "SELECT title, rdate FROM movies WHERE rdate >= '2010-01-01' AND title LIKE '%Love%'";
-			List<List<String>> query_result = esql.executeQueryAndReturnResult(query);
 			System.out.println("Movie Title | Release Date");
-			query_result.forEach(System.out::println);	
-			
-			query = "SELECT title, rdate FROM movies WHERE rdate >= '2010-01-01' AND title LIKE '%love%'";
-			query_result = esql.executeQueryAndReturnResult(query);
-			query_result.forEach(System.out::println);	
+			esql.getService().moviesTitled("love", "2010-01-01", m -> printValues(m.title(), m.rdate()));
 		}
-		catch(Exception e){
-			System.out.println(e);
+		catch(SQLException e){
+			printError(e);
 		}
 	}
 
 	public static void ListUsersWithPendingBooking(Ticketmaster esql){//12
 		try{
-			String query = "SELECT fname,lname,U.email FROM users U, (SELECT * FROM bookings WHERE status = 'Pending') X WHERE X.email = U.email";
-			List<List<String>> query_result = esql.executeQueryAndReturnResult(query);
 			System.out.println("First Name | Last Name | Email ");
-			query_result.forEach(System.out::println);
+			esql.getService().usersWithPendingBooking(u -> printValues(u.fname(), u.lname(), u.email()));
 			System.out.println("Done Printing Bookings");
 		}
-		catch(Exception e){
-			System.out.println(e);	
+		catch(SQLException e){
+			printError(e);
 		}
 	}
 
 	public static void ListMovieAndShowInfoAtCinemaInDateRange(Ticketmaster esql){//13
+		TicketmasterService service = esql.getService();
 		try{
 			//Select Movie
-			String query = null;
-			List<List<String>> query_result = esql.executeQueryAndReturnResult("SELECT mvid,title FROM movies");
 			System.out.println("Movie ID | Movie Title");
-			query_result.forEach(System.out::println);
-			System.out.println("Select a Movie ID");
-			BufferedReader inp = new BufferedReader(new InputStreamReader(System.in));
-			String mvid = inp.readLine();
-			try{
-				query = "SELECT * FROM movies WHERE mvid='" + mvid + "'"; 
-				List<List<String>> selected_query = esql.executeQueryAndReturnResult(query);
-				if(selected_query.size() == 0){
-					System.out.println("ERROR: No movies with movie id found");
-					return;
-				}
-				//Select Cinema
-				System.out.println("Select Cinema");
-				query = "SELECT C1.cid,C1.cname,C2.city_name,C2.city_state,C2.zip_code FROM cinemas C1, cities C2 WHERE C1.city_id = C2.city_id";
-				List<List<String>> cinema_list = esql.executeQueryAndReturnResult(query);
-				System.out.println("Cinema ID | Cinema Name | City Name | City State | Zip Code");
-				cinema_list.forEach(System.out::println);
-				System.out.println("Select a cinema ID");
-				inp = new BufferedReader(new InputStreamReader(System.in));
-				String cid = inp.readLine();
-						
-				//Select Date Range
-				System.out.println("Enter Start Search Date (FORMAT: yyyy-MM-dd)");
-				inp = new BufferedReader(new InputStreamReader(System.in));
-				String sdate= inp.readLine();
-						
-				DateFormat date_check = new SimpleDateFormat("yyyy-MM-dd");
-				date_check.setLenient(false);
-				try{
-					date_check.parse(sdate);
-				}	
-				catch(Exception e){
-					System.out.println("Error: Invalid date");
-					return;
-				}
-				
-				System.out.println("Enter End Search Date (FORMAT: yyyy-MM-dd)");
-				inp = new BufferedReader(new InputStreamReader(System.in));
-				String edate= inp.readLine();
-				try{
-					date_check.parse(edate);
-				}	
-				catch(Exception e){
-					System.out.println("Error: Invalid date");
-					return;
-				}
-				query = "SELECT C1.cname,C2.city_name FROM cinemas C1, cities C2 WHERE C1.city_id= C2.city_id AND C1.cid = '" + cid + "'";
-				List<List<String>>  cinema_display = esql.executeQueryAndReturnResult
-(query);
-				System.out.println("Movies at " + cinema_display.get(0).get(0) + " in " + cinema_display.get(0).get(1));
-				
-				query = "SELECT M.title, S.sdate,S.sttime,S.edtime,T.tid,T.tname FROM theaters T, plays P, shows S, movies M WHERE T.cid = '" + cid + "' AND S.mvid = M.mvid AND P.sid = S.sid AND T.tid = P.tid and S.sdate BETWEEN '" + sdate + "' AND '" + edate + "' AND M.mvid = '" + mvid + "'";
-				List<List<String>> shows_list = esql.executeQueryAndReturnResult(query);
-				System.out.println("Movie Title | Show Date | Start Time | End Time | Theater ID  | Theater name");		
-				shows_list.forEach(System.out::println);				
-				System.out.println("Done Printing Shows");
+			PrintMovieTitles(esql);
+			long mvid = Long.parseLong(prompt("Select a Movie ID"));
+			service.movie(mvid);
+			//Select Cinema
+			System.out.println("Select Cinema");
+			System.out.println("Cinema ID | Cinema Name | City Name | City State | Zip Code");
+			for(CatalogCache.Cinema c : service.cinemas()){
+				CatalogCache.City city = service.city(c.cityId());
+				if(city != null) printValues(c.cid(), c.name(), city.name(), city.state(), city.zip());
 			}
-			catch(SQLException e){
-				System.out.println("Invalid Movie ID");
-				System.out.println(e);
-				return;
-			}	
+			long cid = Long.parseLong(prompt("Select a cinema ID"));
+			//Select Date Range
+			String sdate = prompt("Enter Start Search Date (FORMAT: yyyy-MM-dd)");
+			TicketmasterService.date(sdate);
+			String edate = prompt("Enter End Search Date (FORMAT: yyyy-MM-dd)");
+			TicketmasterService.date(edate);
+			CatalogCache.Cinema cinema = service.cinema(cid);
+			CatalogCache.City city = service.city(cinema.cityId());
+			System.out.println("Movies at " + cinema.name() + (city == null ? "" : " in " + city.name()));
+			System.out.println("Movie Title | Show Date | Start Time | End Time | Theater ID  | Theater name");
+			service.movieShowsAtCinema(mvid, cid, sdate, edate,
+				s -> printValues(s.title(), s.sdate(), s.sttime(), s.edtime(), s.tid(), s.tname()));
+			System.out.println("Done Printing Shows");
 		}
-		catch(Exception e){
-			System.out.println(e);
+		catch(IOException | SQLException | NumberFormatException e){
+			printError(e);
 		}
-		
 	}
 
 	public static void ListBookingInfoForUser(Ticketmaster esql){//14
-		//
+		TicketmasterService service = esql.getService();
 		try{
-			System.out.println("Enter User Email");
-			BufferedReader inp = new BufferedReader(new InputStreamReader(System.in));
-			String email = inp.readLine();
-			
-			String query = "SELECT * FROM users WHERE email = '" + email + "'";
-			List<List<String>> user_check = esql.executeQueryAndReturnResult(query);
-			if(user_check.size() == 0){
-				System.out.println("User does not exist");
-				return;
-			}
-			query = "SELECT B.bid, S.sdate,S.sttime, S.edtime, M.title, T.tname FROM bookings B, shows S, movies M, theaters T,plays P WHERE S.sid = P.sid AND P.tid = T.tid AND B.sid = S.sid AND S.mvid = M.mvid AND B.email = '" + email + "'";		
-			List<List<String>> bookings_list = esql.executeQueryAndReturnResult(query);
+			String email = prompt("Enter User Email");
 			System.out.println(" Booking ID | Show Date | Start Time | End Time | Movie Title | Theater Name");
-			bookings_list.forEach(System.out::println);	
-			System.out.println("Enter a bookings ID to get seating information");
-			inp = new BufferedReader (new InputStreamReader(System.in));
-			String bid = inp.readLine();
-			query = "SELECT * FROM bookings WHERE email = '" + email + "' AND bid = '" + bid + "'";
-			List<List<String>> bid_check = esql.executeQueryAndReturnResult(query);
-			if(bid_check.size() == 0){
-				System.out.println("Invalid booking ID");
-				return;
-			}
-			//Grab seating info
-			query = "SELECT sno FROM showseats S, cinemaseats C WHERE S.csid = C.csid AND bid = '" + bid + "' ORDER BY C.sno ASC";			
-			List<List<String>> seat_no_list = esql.executeQueryAndReturnResult(query);
+			service.bookingsOfUser(email,
+				b -> printValues(b.bid(), b.sdate(), b.sttime(), b.edtime(), b.title(), b.tname()));
+			long bid = Long.parseLong(prompt("Enter a bookings ID to get seating information"));
+			List<Integer> seat_numbers = service.seatNumbersOfUserBooking(email, bid);
 			System.out.println("Your Seat Numbers");
-			seat_no_list.forEach(System.out::println);
+			for(int sno : seat_numbers) printValues(sno);
 			System.out.println("Done Printing Seats");
 		}
-		catch(Exception e){
-			System.out.println(e);
-		}		
+		catch(IOException | SQLException | NumberFormatException e){
+			printError(e);
+		}
 	}
-	
+
 }
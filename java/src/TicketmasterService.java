@@ -0,0 +1,827 @@
+/*
+ * Headless service layer for the Ticketmaster operations
+ * =======================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * This class holds the data path of the 14 menu operations as typed
+ * methods that take and return records and never touch the console. The
+ * menu in Ticketmaster and the HTTP API in ApiServer are both clients of
+ * it, and every method may be called from many threads at once.
+ *
+ * A request that names something that does not exist fails with a
+ * NotFoundException and a request that is malformed or not allowed fails
+ * with an InvalidRequestException; both carry a message meant for the
+ * user. Other SQLExceptions are database failures.
+ */
+public class TicketmasterService{
+	private final Ticketmaster esql;
+
+	/**
+	 * Thrown when a request is malformed or breaks a rule of the operation.
+	 * Nothing has been written when this is thrown.
+	 */
+	public static class InvalidRequestException extends SQLException{
+		private static final long serialVersionUID = 1L;
+
+		public InvalidRequestException(String message){
+			super(message);
+		}
+	}
+
+	/**
+	 * Thrown when a request names a user, movie, show, cinema or booking
+	 * that does not exist.
+	 */
+	public static class NotFoundException extends InvalidRequestException{
+		private static final long serialVersionUID = 1L;
+
+		public NotFoundException(String message){
+			super(message);
+		}
+	}
+
+	public record NewUser(String email, String fname, String lname, String phone, String password){}
+	public record Show(long sid, long mvid, String sdate, String sttime, String edtime){}
+	public record Seat(long ssid, int sno, String stype, float price, boolean free){}
+	/**
+	 * Books the given seat numbers, or the best count seats when seats is
+	 * null or empty; maxPrice and stype only narrow the best-seat choice.
+	 */
+	public record BookingRequest(String email, long sid, String status, int count, Float maxPrice, String stype, List<Integer> seats){}
+	public record Booking(long bid, List<Integer> seats, double total){}
+	public record NewMovie(String title, String rdate, String country, String description, int duration, String lang, String genre){}
+	public record MovieShowing(NewMovie movie, long tid, String sdate, String sttime){}
+	public record NewShowing(long mvid, long tid, String sdate, String sttime){}
+	public record ShowingAdded(long mvid, long sid){}
+	public record ScheduledShow(String title, String sdate, String sttime, String edtime){}
+	public record TimeRange(String from, String to){}
+	public record SeatChange(long bid, int fromSno, int toSno, float price){}
+	public record TheaterShow(long tid, String tname, String sdate, String sttime, String edtime, String title){}
+	public record ShowListing(String cname, String tname, String sdate, String sttime, String edtime, String title){}
+	public record MovieTitle(String title, String rdate){}
+	public record ShowSales(long sid, int free, int sold, double revenue){}
+	public record UserSummary(String fname, String lname, String email){}
+	public record CinemaShow(String title, String sdate, String sttime, String edtime, long tid, String tname){}
+	public record BookingInfo(long bid, String sdate, String sttime, String edtime, String title, String tname){}
+
+	public TicketmasterService(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	//----------------------------------------------------------------
+	// 1. Add User
+	//----------------------------------------------------------------
+
+	static final String INSERT_USER = "INSERT INTO users(email,lname,fname,phone,pwd) VALUES(?,?,?,?,?)";
+
+	/**
+	 * Method to register a user. The password is stored as its SHA-256 hash.
+	 *
+	 * @throws InvalidRequestException when the email is already registered
+	 */
+	public void addUser(NewUser user) throws SQLException {
+		require(user.email(), "email");
+		//most new emails skip the lookup; a registration the filter has not seen yet is
+		//still refused by the primary key
+		if(esql.getEmailFilter().mightContain(user.email()) && userExists(user.email())){
+			throw new InvalidRequestException("Email already in database");
+		}
+		try{
+			esql.executeUpdate(INSERT_USER, userRow(user));
+		}catch(SQLException e){
+			if("23505".equals(e.getSQLState())) throw new InvalidRequestException("Email already in database");
+			throw e;
+		}
+		esql.getEmailFilter().add(user.email());
+	}
+
+	/**
+	 * Method to register several users with one batched insert. Any
+	 * registered email fails the whole batch; the caller runs it in a
+	 * transaction and retries the users one at a time to find which.
+	 *
+	 * @throws InvalidRequestException when a field is missing
+	 */
+	public void addUsers(List<NewUser> users) throws SQLException {
+		List<Object[]> rows = new ArrayList<Object[]>(users.size());
+		for(NewUser user : users){
+			require(user.email(), "email");
+			rows.add(userRow(user));
+		}
+		esql.executeBatch(INSERT_USER, rows);
+		for(NewUser user : users) esql.getEmailFilter().add(user.email());
+	}
+
+	private static Object[] userRow(NewUser user) throws SQLException {
+		return new Object[]{ user.email(), user.lname(), user.fname(), user.phone(), hashPassword(user.password()) };
+	}
+
+	static final String USER_BY_EMAIL = "SELECT * FROM users WHERE email = ?";
+
+	/**
+	 * Method to check that an email is registered. This always asks Users,
+	 * since the email filter misses users added by other processes until
+	 * its next build.
+	 */
+	public boolean userExists(String email) throws SQLException {
+		return esql.executeQuery(USER_BY_EMAIL, email) > 0;
+	}
+
+	//----------------------------------------------------------------
+	// 2. Add Booking
+	//----------------------------------------------------------------
+
+	public List<CatalogCache.Movie> movies() throws SQLException {
+		return esql.getCatalog().movies();
+	}
+
+	public CatalogCache.Movie movie(long mvid) throws SQLException {
+		CatalogCache.Movie movie = esql.getCatalog().movie(mvid);
+		if(movie == null) throw new NotFoundException("No movie with ID " + mvid);
+		return movie;
+	}
+
+	static final String SHOWS_OF_MOVIE = "SELECT sid, mvid, sdate, sttime, edtime FROM shows WHERE mvid = ?";
+
+	public List<Show> showsOfMovie(long mvid) throws SQLException {
+		return esql.executeQueryAndMap(SHOWS_OF_MOVIE,
+			rs -> new Show(rs.getLong(1), rs.getLong(2), rs.getString(3), rs.getString(4), rs.getString(5)), mvid);
+	}
+
+	/**
+	 * @param sid the show ID
+	 * @return every seat of the show in seat number order, from the seat inventory
+	 */
+	public List<Seat> seats(long sid) throws SQLException {
+		SeatInventory.ShowSeats show = esql.getSeatInventory().get(sid);
+		List<Seat> seats = new ArrayList<Seat>(show.size());
+		for(int i = 0; i < show.size(); i++){
+			seats.add(new Seat(show.ssid(i), show.sno(i), show.stype(i), show.price(i), show.isFree(i)));
+		}
+		return seats;
+	}
+
+	public int freeSeatCount(long sid) throws SQLException {
+		return showSales(sid).free();
+	}
+
+	//the counts of a show are the sum of its stripes
+	static final String SHOW_SALES = "SELECT sid, sum(free_seats), sum(sold_seats), sum(revenue) FROM showsales WHERE sid = ? GROUP BY sid";
+
+	/**
+	 * Method to read the free and sold seats and the revenue of a show from
+	 * the counts ShowSeats triggers keep (sql/migrations/V004 and V006),
+	 * without counting its seats.
+	 *
+	 * @throws NotFoundException when the show has no seats
+	 */
+	public ShowSales showSales(long sid) throws SQLException {
+		List<ShowSales> sales = esql.executeQueryAndMap(SHOW_SALES,
+			rs -> new ShowSales(rs.getLong(1), rs.getInt(2), rs.getInt(3), rs.getDouble(4)), sid);
+		if(sales.isEmpty()) throw new NotFoundException("No show with ID " + sid);
+		return sales.get(0);
+	}
+
+	/**
+	 * Method to book seats of a show for a user, either the seat numbers
+	 * of the request or the best free seats.
+	 *
+	 * @return the committed booking
+	 * @throws BookingEngine.SeatsUnavailableException when the seats are taken
+	 * @throws InvalidRequestException when the user, status or seats are not valid
+	 */
+	public Booking book(BookingRequest request) throws SQLException {
+		if(!userExists(request.email())) throw new NotFoundException("No user with email " + request.email());
+		if(!"Paid".equals(request.status()) && !"Pending".equals(request.status())){
+			throw new InvalidRequestException("Status must be Paid or Pending");
+		}
+		SeatInventory.ShowSeats show = esql.getSeatInventory().get(request.sid());
+		if(show.size() == 0) throw new NotFoundException("No show with ID " + request.sid());
+		String sid = Long.toString(request.sid());
+		BookingEngine engine = new BookingEngine(esql);
+		BookingEngine.BookingResult result;
+		if(request.seats() == null || request.seats().isEmpty()){
+			if(request.count() < 1) throw new InvalidRequestException("Book at least one seat");
+			if(request.count() > show.freeCount()) throw new BookingEngine.SeatsUnavailableException(request.count(), show.freeCount());
+			float maxPrice = request.maxPrice() == null ? SeatSelector.ANY_PRICE : request.maxPrice();
+			String stype = request.stype() == null || request.stype().isEmpty() ? null : request.stype();
+			result = engine.bookBestSeats(request.email(), sid, request.status(), request.count(), maxPrice, stype);
+		}else{
+			List<String> ssids = new ArrayList<String>();
+			for(int sno : new HashSet<Integer>(request.seats())){
+				int i = show.indexOfSno(sno);
+				if(i < 0) throw new InvalidRequestException("The theater has no seat " + sno);
+				ssids.add(Long.toString(show.ssid(i)));
+			}
+			result = engine.bookSeats(request.email(), sid, request.status(), ssids);
+		}
+		List<Integer> seatNumbers = new ArrayList<Integer>();
+		for(String ssid : result.ssids) seatNumbers.add(show.sno(show.indexOfSsid(Long.parseLong(ssid))));
+		Collections.sort(seatNumbers);
+		return new Booking(result.bid, seatNumbers, result.total);
+	}
+
+	//----------------------------------------------------------------
+	// 3. Add Movie Showing for an Existing Theater
+	//----------------------------------------------------------------
+
+	public List<CatalogCache.Theater> theaters() throws SQLException {
+		return esql.getCatalog().theaters();
+	}
+
+	/**
+	 * @return the seats of a theater in seat number order, from the catalog cache
+	 * @throws NotFoundException when there is no such theater
+	 */
+	public List<CatalogCache.CinemaSeat> seatsOfTheater(long tid) throws SQLException {
+		if(esql.getCatalog().theater(tid) == null) throw new NotFoundException("No theater with ID " + tid);
+		return esql.getCatalog().seatsOfTheater(tid);
+	}
+
+	/**
+	 * Method to add a movie to the catalog.
+	 *
+	 * @return the new movie ID
+	 * @throws InvalidRequestException when the title exists or a field is not valid
+	 */
+	public long addMovie(NewMovie movie) throws SQLException {
+		validate(movie);
+		long mvid = esql.nextId(IdAllocator.MOVIE_ID);
+		insertMovie(mvid, movie);
+		cacheMovie(mvid, movie);
+		return mvid;
+	}
+
+	/**
+	 * Method to add several movies with one batched insert. A title that
+	 * is in the catalog or twice in the list fails the whole batch; the
+	 * caller runs it in a transaction and retries the movies one at a time
+	 * to find which.
+	 *
+	 * @return the new movie IDs, in the order of the movies
+	 * @throws InvalidRequestException when a title exists or a field is not valid
+	 */
+	public List<Long> addMovies(List<NewMovie> movies) throws SQLException {
+		Set<String> titles = new HashSet<String>();
+		for(NewMovie movie : movies){
+			validate(movie);
+			if(!titles.add(movie.title())) throw new InvalidRequestException("Movie is already in database");
+		}
+		List<Long> mvids = new ArrayList<Long>(movies.size());
+		List<Object[]> rows = new ArrayList<Object[]>(movies.size());
+		for(NewMovie movie : movies){
+			long mvid = esql.nextId(IdAllocator.MOVIE_ID);
+			mvids.add(mvid);
+			rows.add(movieRow(mvid, movie));
+		}
+		esql.executeBatch(INSERT_MOVIE, rows);
+		for(int i = 0; i < movies.size(); i++) cacheMovie(mvids.get(i), movies.get(i));
+		return mvids;
+	}
+
+	public boolean movieExists(String title) throws SQLException {
+		return esql.getCatalog().movieByTitle(title) != null;
+	}
+
+	static final String SHOWS_OF_THEATER = "SELECT title,sdate,sttime,edtime FROM shows S, plays P, movies M WHERE P.sid = S.sid AND P.sdate = S.sdate AND S.mvid = M.mvid AND tid = ?";
+
+	/**
+	 * @return every show of a theater with its movie title
+	 */
+	public List<ScheduledShow> showsOfTheater(long tid) throws SQLException {
+		return esql.executeQueryAndMap(SHOWS_OF_THEATER,
+			rs -> new ScheduledShow(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4)), tid);
+	}
+
+	/**
+	 * @return the start and end of every show of a theater on a date, in start order
+	 */
+	public List<TimeRange> showTimes(long tid, String sdate) throws SQLException {
+		date(sdate);
+		List<TimeRange> times = new ArrayList<TimeRange>();
+		for(int[] show : esql.getShowSchedule().shows(Long.toString(tid), sdate)){
+			times.add(new TimeRange(ShowSchedule.formatSeconds(show[0]), ShowSchedule.formatSeconds(show[1])));
+		}
+		return times;
+	}
+
+	/**
+	 * @return the ranges of start times at which a show of the given length fits
+	 */
+	public List<TimeRange> freeStartTimes(long tid, String sdate, int duration) throws SQLException {
+		date(sdate);
+		List<TimeRange> ranges = new ArrayList<TimeRange>();
+		for(int[] slot : esql.getShowSchedule().freeSlots(Long.toString(tid), sdate, duration)){
+			ranges.add(new TimeRange(ShowSchedule.formatSeconds(slot[0]), ShowSchedule.formatSeconds(slot[1] - duration)));
+		}
+		return ranges;
+	}
+
+	/**
+	 * Method to schedule a show of a movie in a theater.
+	 *
+	 * @return the new show ID
+	 * @throws ShowSchedule.ScheduleConflictException when it overlaps another show
+	 */
+	public long addShowing(long mvid, long tid, String sdate, String sttime) throws SQLException {
+		ShowSchedule.Showing showing = showing(mvid, movie(mvid).duration(), tid, sdate, sttime);
+		return esql.getShowSchedule().addShowings(Arrays.asList(showing)).get(0);
+	}
+
+	/**
+	 * Method to schedule several shows with one insert per table, the way
+	 * ShowSchedule.addShowings() does. Any conflict fails them all.
+	 *
+	 * @return the new show IDs, in the order of the shows
+	 * @throws ShowSchedule.ScheduleConflictException when any of them overlaps another show
+	 */
+	public List<Long> addShowings(List<NewShowing> shows) throws SQLException {
+		List<ShowSchedule.Showing> showings = new ArrayList<ShowSchedule.Showing>(shows.size());
+		for(NewShowing s : shows) showings.add(showing(s.mvid(), movie(s.mvid()).duration(), s.tid(), s.sdate(), s.sttime()));
+		return esql.getShowSchedule().addShowings(showings);
+	}
+
+	/**
+	 * Method to add a movie and its first show together: both are
+	 * inserted or, when the show does not fit, neither is.
+	 *
+	 * @throws ShowSchedule.ScheduleConflictException when the show overlaps another one
+	 */
+	public ShowingAdded addMovieShowing(final MovieShowing request) throws SQLException {
+		final NewMovie movie = request.movie();
+		validate(movie);
+		final long mvid = esql.nextId(IdAllocator.MOVIE_ID);
+		final ShowSchedule.Showing showing = showing(mvid, movie.duration(), request.tid(), request.sdate(), request.sttime());
+		List<ShowSchedule.Showing> conflicts = esql.getShowSchedule().validate(Arrays.asList(showing));
+		if(!conflicts.isEmpty()) throw new ShowSchedule.ScheduleConflictException(conflicts);
+		long sid = esql.executeInTransaction(() -> {
+			insertMovie(mvid, movie);
+			return esql.getShowSchedule().addShowings(Arrays.asList(showing)).get(0);
+		});
+		cacheMovie(mvid, movie);
+		return new ShowingAdded(mvid, sid);
+	}
+
+	//----------------------------------------------------------------
+	// 4. Cancel Pending Bookings
+	//----------------------------------------------------------------
+
+	/**
+	 * Method to cancel the pending bookings whose hold has run out and free
+	 * their seats. Holds younger than HoldExpiry.TTL_SEC are kept.
+	 *
+	 * @return the number of bookings cancelled
+	 */
+	public int cancelPendingBookings() throws SQLException {
+		return esql.getHoldExpiry().expire();
+	}
+
+	//----------------------------------------------------------------
+	// 5. Change Seats Reserved for a Booking
+	//----------------------------------------------------------------
+
+	//the date of a booking's show, kept in the booking; no row when there is no booking
+	static final String BOOKING_SHOW_DATE = "SELECT sdate FROM bookings WHERE bid = ?";
+	//one row per seat of the booking, one row with a null seat when it holds none, no row when there is no booking.
+	//The seats are read from the ShowSeats partition of the booking's date
+	static final String SEATS_OF_BOOKING = "SELECT C.sno FROM bookings B "
+		+ "LEFT JOIN showseats S ON S.bid = B.bid AND S.sdate = B.sdate LEFT JOIN cinemaseats C ON S.csid = C.csid "
+		+ "WHERE B.bid = ? ORDER BY C.sno ASC";
+	//one row per free seat of the same show and price, one row of nulls when there is none, no row when the seat is not held
+	static final String REPLACEMENT_SEATS = "SELECT S.ssid, C.sno, C.stype, S.price FROM showseats O JOIN cinemaseats OC ON O.csid = OC.csid "
+		+ "LEFT JOIN (showseats S JOIN cinemaseats C ON S.csid = C.csid) ON S.sid = O.sid AND S.sdate = O.sdate AND S.price = O.price AND S.bid IS NULL "
+		+ "WHERE OC.sno = ? AND O.bid = ? AND O.sdate = (SELECT sdate FROM bookings WHERE bid = ?)";
+	//locks the held seat and the wanted one and swaps their bid only when both qualify; returns no row when
+	//the seat is not held and a null new ssid when the wanted seat is taken or priced differently.
+	//Parameters: old seat number, booking ID, show date, new seat number, show date, show date
+	static final String CHANGE_SEAT = "WITH old AS (SELECT S.ssid, S.sid, S.price, S.bid FROM showseats S, cinemaseats C "
+		+ "WHERE S.csid = C.csid AND C.sno = ? AND S.bid = ? AND S.sdate = ?::date FOR UPDATE OF S), "
+		+ "new AS (SELECT S.ssid FROM showseats S, cinemaseats C, old "
+		+ "WHERE S.csid = C.csid AND C.sno = ? AND S.sdate = ?::date AND S.sid = old.sid AND S.price = old.price AND S.bid IS NULL FOR UPDATE OF S), "
+		+ "swap AS (UPDATE showseats S SET bid = CASE WHEN S.ssid = new.ssid THEN old.bid END FROM old, new "
+		+ "WHERE S.sdate = ?::date AND S.ssid IN (old.ssid, new.ssid)) "
+		+ "SELECT old.sid, old.price, old.ssid, new.ssid FROM old LEFT JOIN new ON true";
+	//cancels the booking, frees its seats and deletes its payment; one row per freed seat, one row with a null
+	//seat when it held none, no row when there is no booking. Parameters: booking ID, show date
+	static final String REMOVE_PAYMENT = "WITH booking AS (UPDATE bookings SET status = 'Cancelled' WHERE bid = ? RETURNING bid), "
+		+ "seats AS (UPDATE showseats SET bid = NULL WHERE sdate = ?::date AND bid IN (SELECT bid FROM booking) RETURNING sid, ssid), "
+		+ "payment AS (DELETE FROM payments WHERE bid IN (SELECT bid FROM booking)) "
+		+ "SELECT booking.bid, seats.sid, seats.ssid FROM booking LEFT JOIN seats ON true";
+
+	/**
+	 * @return the seat numbers held by a booking, in order
+	 * @throws NotFoundException when there is no such booking
+	 */
+	public List<Integer> seatNumbersOfBooking(long bid) throws SQLException {
+		final List<Integer> seat_numbers = new ArrayList<Integer>();
+		int rows = esql.executeQueryAndStream(SEATS_OF_BOOKING, rs -> {
+			int sno = rs.getInt(1);
+			if(!rs.wasNull()) seat_numbers.add(sno);
+		}, bid);
+		if(rows == 0) throw new NotFoundException("Invalid booking ID");
+		return seat_numbers;
+	}
+
+	/**
+	 * @return the free seats of the show that cost the same as the booked seat
+	 * @throws InvalidRequestException when the booking does not hold the seat
+	 */
+	public List<Seat> replacementSeats(long bid, int sno) throws SQLException {
+		final List<Seat> seats = new ArrayList<Seat>();
+		int rows = esql.executeQueryAndStream(REPLACEMENT_SEATS, rs -> {
+			long ssid = rs.getLong(1);
+			if(!rs.wasNull()) seats.add(new Seat(ssid, rs.getInt(2), rs.getString(3), rs.getFloat(4), true));
+		}, sno, bid, bid);
+		if(rows == 0) throw new InvalidRequestException("Booking " + bid + " does not hold seat " + sno);
+		return seats;
+	}
+
+	/**
+	 * Method to move a booking from one seat to a free seat of the same
+	 * show and price. The check and the swap are one statement, so the
+	 * booking holds exactly one of the two seats whatever runs alongside.
+	 *
+	 * @throws InvalidRequestException when the booking does not hold the old
+	 * seat or the new seat is not free at the same price
+	 */
+	public SeatChange changeSeat(long bid, int fromSno, int toSno) throws SQLException {
+		String sdate = showDateOfBooking(bid);
+		List<List<String>> swapped = sdate == null ? Collections.<List<String>>emptyList()
+			: esql.executeQueryAndReturnResult(CHANGE_SEAT, fromSno, bid, sdate, toSno, sdate, sdate);
+		if(swapped.isEmpty()) throw new InvalidRequestException("Booking " + bid + " does not hold seat " + fromSno);
+		List<String> seat = swapped.get(0);
+		if(seat.get(3) == null){
+			throw new InvalidRequestException("Invalid seat number. You must choose a seat that is available and the same price as your old one.");
+		}
+		long show_id = Long.parseLong(seat.get(0));
+		esql.getSeatInventory().markBooked(show_id, Arrays.asList(seat.get(3)));
+		esql.getSeatInventory().markFree(show_id, Arrays.asList(seat.get(2)));
+		return new SeatChange(bid, fromSno, toSno, Float.parseFloat(seat.get(1)));
+	}
+
+	/**
+	 * @return the date of the booking's show, which picks its ShowSeats
+	 * partition, or null when there is no booking
+	 */
+	private String showDateOfBooking(long bid) throws SQLException {
+		List<List<String>> show = esql.executeQueryAndReturnResult(BOOKING_SHOW_DATE, bid);
+		return show.isEmpty() ? null : show.get(0).get(0);
+	}
+
+	//----------------------------------------------------------------
+	// 6. Remove a Payment
+	//----------------------------------------------------------------
+
+	/**
+	 * Method to cancel a booking, release its seats and delete its payment,
+	 * all in one statement, so none of it happens without the rest.
+	 *
+	 * @throws NotFoundException when there is no such booking
+	 */
+	public void removePayment(long bid) throws SQLException {
+		List<List<String>> show = esql.executeQueryAndReturnResult(BOOKING_SHOW_DATE, bid);
+		if(show.isEmpty()) throw new NotFoundException("Invalid booking ID");
+		List<List<String>> released_seats = esql.executeQueryAndReturnResult(REMOVE_PAYMENT, bid, show.get(0).get(0));
+		if(released_seats.isEmpty()) throw new NotFoundException("Invalid booking ID");
+		for(List<String> seat : released_seats){
+			if(seat.get(1) != null) esql.getSeatInventory().markFree(Long.parseLong(seat.get(1)), Arrays.asList(seat.get(2)));
+		}
+	}
+
+	//----------------------------------------------------------------
+	// 7. Clear Cancelled Bookings
+	//----------------------------------------------------------------
+
+	/**
+	 * Method to move every cancelled booking, with its payment, to the
+	 * archive tables in batches.
+	 *
+	 * @return the number of bookings removed
+	 */
+	public int clearCancelledBookings() throws SQLException {
+		return (int) new BookingPurge(esql).purge("now", null).moved();
+	}
+
+	//----------------------------------------------------------------
+	// 8. Remove Shows on a Given Date
+	//----------------------------------------------------------------
+
+	public List<CatalogCache.Cinema> cinemas() throws SQLException {
+		return esql.getCatalog().cinemas();
+	}
+
+	public CatalogCache.Cinema cinema(long cid) throws SQLException {
+		CatalogCache.Cinema cinema = esql.getCatalog().cinema(cid);
+		if(cinema == null) throw new NotFoundException("No cinema with ID " + cid);
+		return cinema;
+	}
+
+	/**
+	 * @return the theaters of a cinema in theater ID order, from the catalog cache
+	 * @throws NotFoundException when there is no such cinema
+	 */
+	public List<CatalogCache.Theater> theatersOfCinema(long cid) throws SQLException {
+		cinema(cid);
+		return esql.getCatalog().theatersOfCinema(cid);
+	}
+
+	public CatalogCache.City city(long cityId) throws SQLException {
+		return esql.getCatalog().city(cityId);
+	}
+
+	static final String REMOVE_SHOWS_ON_DATE = "DELETE FROM plays P USING theaters T WHERE P.sdate = ? AND P.tid = T.tid AND T.cid = ?";
+
+	/**
+	 * Method to take every show of a cinema on a date off the schedule.
+	 *
+	 * @return the number of plays rows deleted
+	 */
+	public int removeShowsOnDate(long cid, String date) throws SQLException {
+		date(date);
+		int removed = esql.executeUpdate(REMOVE_SHOWS_ON_DATE, date, cid);
+		esql.getShowSchedule().invalidateDate(date);
+		return removed;
+	}
+
+	//----------------------------------------------------------------
+	// 9. List all Theaters in a Cinema Playing a Given Show
+	//----------------------------------------------------------------
+
+	static final String THEATERS_PLAYING_SHOW = "SELECT P.tid,T.tname,S.sdate,S.sttime,S.edtime,M.title FROM plays P, shows S, movies M, theaters T WHERE S.mvid = M.mvid AND P.sid = S.sid AND P.sdate = S.sdate AND P.tid = T.tid AND T.cid = ? AND M.mvid = ? ORDER BY P.tid";
+
+	public List<TheaterShow> theatersPlayingShow(long cid, long mvid) throws SQLException {
+		List<TheaterShow> shows = new ArrayList<TheaterShow>();
+		theatersPlayingShow(cid, mvid, shows::add);
+		return shows;
+	}
+
+	/**
+	 * Method to hand each theater of a cinema playing a movie to a
+	 * consumer as its row arrives, without collecting them.
+	 */
+	public void theatersPlayingShow(long cid, long mvid, Consumer<TheaterShow> each) throws SQLException {
+		movie(mvid);
+		esql.executeQueryAndStream(THEATERS_PLAYING_SHOW,
+			rs -> each.accept(new TheaterShow(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getString(5), rs.getString(6))),
+			cid, mvid);
+	}
+
+	//----------------------------------------------------------------
+	// 10. List all Shows that Start at a Given Time and Date
+	//----------------------------------------------------------------
+
+	static final String SHOWS_STARTING_AT = "SELECT C.cname, T.tname,S.sdate,S.sttime,S.edtime,M.title FROM shows S , movies M,plays P, theaters T, cinemas C WHERE S.sdate = ? AND S.sttime = ? AND S.mvid=M.mvid AND P.sid = S.sid AND P.sdate = S.sdate AND T.cid = C.cid AND P.tid = T.tid";
+
+	public List<ShowListing> showsStartingAt(String date, String time) throws SQLException {
+		List<ShowListing> shows = new ArrayList<ShowListing>();
+		showsStartingAt(date, time, shows::add);
+		return shows;
+	}
+
+	/**
+	 * Method to hand each show starting at a date and time to a consumer
+	 * as its row arrives, without collecting them.
+	 */
+	public void showsStartingAt(String date, String time, Consumer<ShowListing> each) throws SQLException {
+		date(date);
+		time(time);
+		esql.executeQueryAndStream(SHOWS_STARTING_AT,
+			rs -> each.accept(new ShowListing(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getString(5), rs.getString(6))),
+			date, time);
+	}
+
+	//----------------------------------------------------------------
+	// 11. List Movie Titles Containing "love" Released After 2010
+	//----------------------------------------------------------------
+
+	/**
+	 * Method to find movies released on or after a date whose title
+	 * contains the word in any case, as in "love", "Love" and "LOVE". Only
+	 * titles are matched, even when the title index holds descriptions.
+	 */
+	public List<MovieTitle> moviesTitled(String word, String releasedSince) throws SQLException {
+		List<MovieTitle> titles = new ArrayList<MovieTitle>();
+		moviesTitled(word, releasedSince, titles::add);
+		return titles;
+	}
+
+	/**
+	 * Method to hand each movie moviesTitled() finds to a consumer.
+	 */
+	public void moviesTitled(String word, String releasedSince, Consumer<MovieTitle> each) throws SQLException {
+		List<TitleIndex.Hit> hits = searchMovies(word, releasedSince, null, null, Integer.MAX_VALUE);
+		String needle = word.toLowerCase(Locale.ROOT);
+		for(TitleIndex.Hit hit : hits){
+			//a hit on the description alone is not a title containing the word
+			if(hit.title().toLowerCase(Locale.ROOT).contains(needle)) each.accept(new MovieTitle(hit.title(), hit.rdate()));
+		}
+	}
+
+	/**
+	 * Method to find the movies whose title, or description when the title
+	 * index holds them, contains a text, ignoring case, with the title index.
+	 *
+	 * @param releasedSince the earliest release date, or null
+	 * @param genre the genre, or null for any
+	 * @param lang the language code, or null for any
+	 * @param limit the most movies returned
+	 */
+	public List<TitleIndex.Hit> searchMovies(String text, String releasedSince, String genre, String lang, int limit) throws SQLException {
+		require(text, "word");
+		if(releasedSince != null) date(releasedSince);
+		if(limit <= 0) throw new InvalidRequestException("Invalid limit");
+		return esql.getTitleIndex().search(text, releasedSince, genre, lang, limit);
+	}
+
+	//----------------------------------------------------------------
+	// 12. List Users with a Pending Booking
+	//----------------------------------------------------------------
+
+	static final String USERS_WITH_PENDING_BOOKING = "SELECT fname,lname,U.email FROM users U, (SELECT * FROM bookings WHERE status = 'Pending') X WHERE X.email = U.email";
+
+	public List<UserSummary> usersWithPendingBooking() throws SQLException {
+		List<UserSummary> users = new ArrayList<UserSummary>();
+		usersWithPendingBooking(users::add);
+		return users;
+	}
+
+	/**
+	 * Method to hand each user with a pending booking to a consumer as its
+	 * row arrives, without collecting them.
+	 */
+	public void usersWithPendingBooking(Consumer<UserSummary> each) throws SQLException {
+		esql.executeQueryAndStream(USERS_WITH_PENDING_BOOKING,
+			rs -> each.accept(new UserSummary(rs.getString(1), rs.getString(2), rs.getString(3))));
+	}
+
+	//----------------------------------------------------------------
+	// 13. List Shows of a Movie at a Cinema During a Date Range
+	//----------------------------------------------------------------
+
+	static final String MOVIE_SHOWS_AT_CINEMA = "SELECT M.title, S.sdate,S.sttime,S.edtime,T.tid,T.tname FROM theaters T, plays P, shows S, movies M WHERE T.cid = ? AND S.mvid = M.mvid AND P.sid = S.sid AND P.sdate = S.sdate AND T.tid = P.tid and S.sdate BETWEEN ? AND ? AND P.sdate BETWEEN ? AND ? AND M.mvid = ?";
+
+	public List<CinemaShow> movieShowsAtCinema(long mvid, long cid, String from, String to) throws SQLException {
+		List<CinemaShow> shows = new ArrayList<CinemaShow>();
+		movieShowsAtCinema(mvid, cid, from, to, shows::add);
+		return shows;
+	}
+
+	/**
+	 * Method to hand each show of a movie at a cinema in a date range to a
+	 * consumer as its row arrives, without collecting them.
+	 */
+	public void movieShowsAtCinema(long mvid, long cid, String from, String to, Consumer<CinemaShow> each) throws SQLException {
+		movie(mvid);
+		cinema(cid);
+		date(from);
+		date(to);
+		esql.executeQueryAndStream(MOVIE_SHOWS_AT_CINEMA,
+			rs -> each.accept(new CinemaShow(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getLong(5), rs.getString(6))),
+			cid, from, to, from, to, mvid);
+	}
+
+	//----------------------------------------------------------------
+	// 14. List Booking Information for a User
+	//----------------------------------------------------------------
+
+	static final String BOOKINGS_OF_USER = "SELECT B.bid, S.sdate,S.sttime, S.edtime, M.title, T.tname FROM bookings B, shows S, movies M, theaters T,plays P WHERE S.sid = P.sid AND P.sdate = S.sdate AND P.tid = T.tid AND B.sid = S.sid AND S.mvid = M.mvid AND B.email = ?";
+
+	/**
+	 * @throws NotFoundException when there is no such user
+	 */
+	public List<BookingInfo> bookingsOfUser(String email) throws SQLException {
+		List<BookingInfo> bookings = new ArrayList<BookingInfo>();
+		bookingsOfUser(email, bookings::add);
+		return bookings;
+	}
+
+	/**
+	 * Method to hand each booking of a user to a consumer as its row
+	 * arrives, without collecting them.
+	 *
+	 * @throws NotFoundException when there is no such user
+	 */
+	public void bookingsOfUser(String email, Consumer<BookingInfo> each) throws SQLException {
+		if(!userExists(email)) throw new NotFoundException("User does not exist");
+		esql.executeQueryAndStream(BOOKINGS_OF_USER,
+			rs -> each.accept(new BookingInfo(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getString(5), rs.getString(6))),
+			email);
+	}
+
+	static final String USER_BOOKING = "SELECT * FROM bookings WHERE email = ? AND bid = ?";
+	//parameters: booking ID twice; the seats are read from the ShowSeats partition of the booking's date
+	static final String SEATS_OF_USER_BOOKING = "SELECT sno FROM showseats S, cinemaseats C WHERE S.csid = C.csid AND bid = ? "
+		+ "AND S.sdate = (SELECT sdate FROM bookings WHERE bid = ?) ORDER BY C.sno ASC";
+
+	/**
+	 * @return the seat numbers of one booking of the user, in order
+	 * @throws NotFoundException when the user has no such booking
+	 */
+	public List<Integer> seatNumbersOfUserBooking(String email, long bid) throws SQLException {
+		if(esql.executeQuery(USER_BOOKING, email, bid) == 0) throw new NotFoundException("Invalid booking ID");
+		return esql.executeQueryAndMap(SEATS_OF_USER_BOOKING, rs -> rs.getInt(1), bid, bid);
+	}
+
+	//----------------------------------------------------------------
+	// Helpers
+	//----------------------------------------------------------------
+
+	private void validate(NewMovie movie) throws SQLException {
+		require(movie.title(), "title");
+		date(movie.rdate());
+		if(movie.duration() <= 0) throw new InvalidRequestException("Invalid duration");
+		if(esql.getCatalog().movieByTitle(movie.title()) != null) throw new InvalidRequestException("Movie is already in database");
+	}
+
+	static final String INSERT_MOVIE = "INSERT into movies(mvid,title,rdate,country,description,duration,lang,genre) VALUES (?,?,?,?,?,?,?,?)";
+
+	private void insertMovie(long mvid, NewMovie movie) throws SQLException {
+		esql.executeUpdate(INSERT_MOVIE, movieRow(mvid, movie));
+	}
+
+	private static Object[] movieRow(long mvid, NewMovie movie){
+		return new Object[]{ mvid, movie.title(), movie.rdate(), movie.country(), movie.description(), movie.duration(), movie.lang(), movie.genre() };
+	}
+
+	/**
+	 * Adds a movie to the catalog and the title index once its insert is committed.
+	 */
+	private void cacheMovie(long mvid, NewMovie movie){
+		esql.getCatalog().addMovie(new CatalogCache.Movie(mvid, movie.title(), LocalDate.parse(movie.rdate()).toString(), movie.country(),
+			movie.description(), movie.duration(), movie.lang(), movie.genre()));
+		esql.getTitleIndex().add(mvid, movie.title(), movie.rdate(), movie.description(), movie.lang(), movie.genre());
+	}
+
+	private ShowSchedule.Showing showing(long mvid, Integer duration, long tid, String sdate, String sttime) throws SQLException {
+		if(esql.getCatalog().theater(tid) == null) throw new NotFoundException("No theater with ID " + tid);
+		if(duration == null) throw new InvalidRequestException("Movie " + mvid + " has no duration");
+		date(sdate);
+		time(sttime);
+		return new ShowSchedule.Showing(Long.toString(mvid), Long.toString(tid), sdate, sttime, duration);
+	}
+
+	/**
+	 * Method to hash a password the way stored passwords were hashed.
+	 */
+	static String hashPassword(String password) throws SQLException {
+		try{
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte [] sha_bytes = md.digest(password.getBytes(StandardCharsets.UTF_8));
+			BigInteger number = new BigInteger(1, sha_bytes);
+			StringBuilder hexString = new StringBuilder(number.toString(16));
+			while (hexString.length()<32){
+				hexString.insert(0,'0');
+			}
+			return hexString.toString();
+		}catch(NoSuchAlgorithmException e){
+			throw new SQLException(e);
+		}
+	}
+
+	private static void require(String value, String field) throws InvalidRequestException {
+		if(value == null || value.isEmpty()) throw new InvalidRequestException("Missing " + field);
+	}
+
+	/**
+	 * @throws InvalidRequestException unless the value is a yyyy-MM-dd date
+	 */
+	static void date(String value) throws InvalidRequestException {
+		try{
+			LocalDate.parse(value);
+		}catch(DateTimeParseException | NullPointerException e){
+			throw new InvalidRequestException("Invalid date " + value + ", expected yyyy-MM-dd");
+		}
+	}
+
+	/**
+	 * @throws InvalidRequestException unless the value is an H:mm:ss or HH:mm:ss time
+	 */
+	static void time(String value) throws InvalidRequestException {
+		try{
+			ShowSchedule.toSeconds(value);
+		}catch(DateTimeParseException | NullPointerException e){
+			throw new InvalidRequestException("Invalid time " + value + ", expected HH:mm:ss");
+		}
+	}
+}//end TicketmasterService
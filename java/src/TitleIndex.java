@@ -0,0 +1,242 @@
+/*
+ * Trigram index of movie titles
+ * ==============================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class searches movie titles for a piece of text, ignoring case,
+ * without a LIKE '%text%' scan of Movies. Every title is split into its
+ * trigrams, the runs of three characters of its lower-cased text, and
+ * each trigram keeps the sorted list of the movies containing it as an
+ * int array. A search intersects the lists of the trigrams of the text,
+ * shortest first, and checks the few candidates left against the whole
+ * text and the filters on release date, genre and language. Text shorter
+ * than three characters has no trigrams and is checked against every title.
+ *
+ * The index is loaded with one streaming scan of Movies on the first
+ * search and a movie added through TicketmasterService is added to it
+ * directly. With -Dticketmaster.titleIndex.descriptions=true descriptions
+ * are indexed and searched as well, at several times the memory.
+ */
+public class TitleIndex{
+	//whether descriptions are searched too, set with -Dticketmaster.titleIndex.descriptions
+	static final boolean DESCRIPTIONS = Boolean.getBoolean("ticketmaster.titleIndex.descriptions");
+
+	/**
+	 * A movie found by a search.
+	 */
+	public record Hit(long mvid, String title, String rdate, String genre, String lang){}
+
+	/**
+	 * The sorted positions of the movies containing one trigram.
+	 */
+	private static final class Postings{
+		int[] docs = new int[4];
+		int size;
+
+		void add(int doc){
+			//a trigram repeated in one text is listed once
+			if(size > 0 && docs[size - 1] == doc) return;
+			if(size == docs.length) docs = Arrays.copyOf(docs, size * 2);
+			docs[size++] = doc;
+		}
+	}
+
+	private final Ticketmaster esql;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	//the movies by position, guarded by lock
+	private boolean loaded;
+	private int size;
+	private long[] mvids = new long[0];
+	private String[] titles = new String[0];
+	private String[] texts = new String[0];
+	private int[] rdates = new int[0];
+	private String[] genres = new String[0];
+	private String[] langs = new String[0];
+	private final Map<Long, Postings> postings = new HashMap<Long, Postings>();
+
+	public TitleIndex(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Method to find the movies whose title, or description when those are
+	 * indexed, contains the text, ignoring case.
+	 *
+	 * @param text the text to look for
+	 * @param releasedSince the earliest release date, yyyy-MM-dd, or null
+	 * @param genre the genre, ignoring case, or null for any
+	 * @param lang the language code, ignoring case, or null for any
+	 * @param limit the most movies returned
+	 * @return the movies found in movie ID order, movies added since the load last
+	 */
+	public List<Hit> search(String text, String releasedSince, String genre, String lang, int limit) throws SQLException {
+		String needle = text.toLowerCase(Locale.ROOT);
+		int since = releasedSince == null ? Integer.MIN_VALUE : (int) LocalDate.parse(releasedSince).toEpochDay();
+		load();
+		lock.readLock().lock();
+		try{
+			List<Hit> hits = new ArrayList<Hit>();
+			int[] candidates = candidates(needle);
+			int count = candidates == null ? size : candidates.length;
+			for(int i = 0; i < count && hits.size() < limit; i++){
+				int doc = candidates == null ? i : candidates[i];
+				if(rdates[doc] < since) continue;
+				if(genre != null && !genre.equalsIgnoreCase(genres[doc])) continue;
+				if(lang != null && !lang.equalsIgnoreCase(langs[doc])) continue;
+				if(!texts[doc].contains(needle)) continue;
+				hits.add(hit(doc));
+			}
+			return hits;
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to add a movie that was just inserted. Before the first
+	 * search there is nothing to add to; the load will read it.
+	 */
+	public void add(long mvid, String title, String rdate, String description, String lang, String genre){
+		lock.writeLock().lock();
+		try{
+			if(loaded) put(mvid, title, (int) LocalDate.parse(rdate).toEpochDay(), description, lang, genre);
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to drop the index, for example after Movies was reloaded, so
+	 * the next search loads it again.
+	 */
+	public void invalidate(){
+		lock.writeLock().lock();
+		try{
+			loaded = false;
+			size = 0;
+			postings.clear();
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void load() throws SQLException {
+		lock.readLock().lock();
+		try{
+			if(loaded) return;
+		}finally{
+			lock.readLock().unlock();
+		}
+		lock.writeLock().lock();
+		try{
+			if(loaded) return;
+			esql.executeQueryAndStream("SELECT mvid, title, rdate, " + (DESCRIPTIONS ? "description" : "NULL")
+				+ ", lang, genre FROM movies ORDER BY mvid",
+				rs -> put(rs.getLong(1), rs.getString(2), (int) rs.getDate(3).toLocalDate().toEpochDay(), rs.getString(4), rs.getString(5), rs.getString(6)));
+			loaded = true;
+		}catch(SQLException e){
+			size = 0;
+			postings.clear();
+			throw e;
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Appends a movie and its trigrams; the caller holds the write lock.
+	 */
+	private void put(long mvid, String title, int rdate, String description, String lang, String genre){
+		if(size == mvids.length){
+			int capacity = Math.max(16, size * 2);
+			mvids = Arrays.copyOf(mvids, capacity);
+			titles = Arrays.copyOf(titles, capacity);
+			texts = Arrays.copyOf(texts, capacity);
+			rdates = Arrays.copyOf(rdates, capacity);
+			genres = Arrays.copyOf(genres, capacity);
+			langs = Arrays.copyOf(langs, capacity);
+		}
+		int doc = size++;
+		String text = title.toLowerCase(Locale.ROOT);
+		//the newline keeps a match from spanning the title and the description
+		if(DESCRIPTIONS && description != null) text = text + "\n" + description.toLowerCase(Locale.ROOT);
+		mvids[doc] = mvid;
+		titles[doc] = title;
+		texts[doc] = text;
+		rdates[doc] = rdate;
+		genres[doc] = genre == null ? null : genre.trim();
+		langs[doc] = lang == null ? null : lang.trim();
+		for(int i = 0; i + 3 <= text.length(); i++){
+			postings.computeIfAbsent(trigram(text, i), k -> new Postings()).add(doc);
+		}
+	}
+
+	/**
+	 * @return the positions holding every trigram of the text in order, or
+	 * null when the text is too short to have trigrams
+	 */
+	private int[] candidates(String needle){
+		if(needle.length() < 3) return null;
+		List<Postings> lists = new ArrayList<Postings>();
+		for(int i = 0; i + 3 <= needle.length(); i++){
+			Postings p = postings.get(trigram(needle, i));
+			if(p == null) return new int[0];
+			lists.add(p);
+		}
+		lists.sort(Comparator.comparingInt(p -> p.size));
+		int[] result = Arrays.copyOf(lists.get(0).docs, lists.get(0).size);
+		int count = result.length;
+		for(int l = 1; l < lists.size() && count > 0; l++){
+			count = intersect(result, count, lists.get(l));
+		}
+		return Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * Keeps the first count positions of result that are also in p. The
+	 * list is searched by galloping, so a long list costs the log of its
+	 * length per position kept rather than its length.
+	 *
+	 * @return the number of positions kept
+	 */
+	private static int intersect(int[] result, int count, Postings p){
+		int kept = 0, j = 0;
+		for(int i = 0; i < count && j < p.size; i++){
+			int doc = result[i];
+			int step = 1;
+			while(j + step < p.size && p.docs[j + step] < doc) step <<= 1;
+			int found = Arrays.binarySearch(p.docs, j, Math.min(j + step + 1, p.size), doc);
+			if(found >= 0){
+				result[kept++] = doc;
+				j = found + 1;
+			}else{
+				j = -found - 1;
+			}
+		}
+		return kept;
+	}
+
+	private static long trigram(String text, int at){
+		return ((long) text.charAt(at) << 32) | ((long) text.charAt(at + 1) << 16) | text.charAt(at + 2);
+	}
+
+	private Hit hit(int doc){
+		return new Hit(mvids[doc], titles[doc], LocalDate.ofEpochDay(rdates[doc]).toString(), genres[doc], langs[doc]);
+	}
+}//end TitleIndex
@@ -0,0 +1,20 @@
+/*
+ * Unit of work run inside a database transaction
+ * ===============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+
+/**
+ * A block of query helper calls that must commit or roll back together.
+ * See Ticketmaster.executeInTransaction().
+ *
+ * @param <T> the value produced by the work
+ */
+public interface TransactionWork<T>{
+	T run() throws SQLException;
+}//end TransactionWork
@@ -1,3 +1,8 @@
+DROP TABLE IF EXISTS schema_migrations;
+DROP TABLE IF EXISTS ShowSales;
+DROP TABLE IF EXISTS PurgeProgress;
+DROP TABLE IF EXISTS PaymentsArchive;
+DROP TABLE IF EXISTS BookingsArchive;
 DROP TABLE IF EXISTS Plays;
 DROP TABLE IF EXISTS ShowSeats;
 DROP TABLE IF EXISTS Payments;
@@ -9,6 +14,10 @@ DROP TABLE IF EXISTS CinemaSeats;
 DROP TABLE IF EXISTS Theaters;
 DROP TABLE IF EXISTS Cinemas;
 DROP TABLE IF EXISTS Cities;
+DROP SEQUENCE IF EXISTS bookings_bid_seq;
+DROP SEQUENCE IF EXISTS movies_mvid_seq;
+DROP SEQUENCE IF EXISTS shows_sid_seq;
+DROP FUNCTION IF EXISTS showsales_track();
 
 -- Entities
 
@@ -68,15 +77,27 @@ CREATE TABLE Users (
     PRIMARY KEY(email)
 );
 
+-- Shows, ShowSeats and Plays are partitioned by show date: one partition
+-- per day for the days PartitionMaintenance prepares, and a default
+-- partition for the rest. A day's partitions are dropped as a whole once
+-- the day is past retention. The partition key must be part of every key,
+-- so ShowSeats and Plays carry the date of their show.
+--
+-- Postgres cannot make sid or ssid unique on their own across partitions.
+-- Both still are: sid is only drawn from shows_sid_seq through IdAllocator,
+-- and ssid only comes from the data files. Nothing else may insert either.
+
 CREATE TABLE Shows (
     sid BIGINT NOT NULL,  -- Show ID
     mvid BIGINT NOT NULL,  -- Movie ID
     sdate DATE NOT NULL,  -- Show date
     sttime TIME NOT NULL,  -- Start time
     edtime TIME NOT NULL,  -- End time
-    PRIMARY KEY(sid),
+    PRIMARY KEY(sid, sdate),  -- sid alone is unique, drawn from shows_sid_seq
     FOREIGN KEY(mvid) REFERENCES Movies(mvid)
-);
+) PARTITION BY RANGE (sdate);
+
+CREATE TABLE Shows_default PARTITION OF Shows DEFAULT;
 
 CREATE TABLE Bookings (
     bid BIGINT NOT NULL,  -- Booking ID
@@ -86,7 +107,9 @@ CREATE TABLE Bookings (
     sid BIGINT NOT NULL,  -- Show ID
     email VARCHAR(64) NOT NULL,  -- User account
     PRIMARY KEY(bid),
-    FOREIGN KEY(sid) REFERENCES Shows(sid) ON DELETE CASCADE,
+    -- The foreign key to Shows, whose key includes the date, is added with the
+    -- show date by sql/migrations/V005; PartitionMaintenance archives the
+    -- bookings of a day before it removes the day's shows
     FOREIGN KEY(email) REFERENCES Users(email)    
     -- A booking has at most one payment is enforced in Payments via UNIQUE
 );
@@ -109,12 +132,15 @@ CREATE TABLE ShowSeats (
     csid BIGINT NOT NULL, -- Cinema seat ID
     bid BIGINT, -- Booking ID
     price REAL NOT NULL,
-    PRIMARY KEY(ssid),
-    FOREIGN KEY(sid) REFERENCES Shows(sid),
+    sdate DATE NOT NULL,  -- Show date, the partition key
+    PRIMARY KEY(ssid, sdate),
+    FOREIGN KEY(sid, sdate) REFERENCES Shows(sid, sdate),
     FOREIGN KEY(csid) REFERENCES CinemaSeats(csid),
     FOREIGN KEY(bid) REFERENCES Bookings(bid) ON DELETE SET NULL,
-    UNIQUE(sid, csid)  -- The same seat can only be booked once for the same show
-);
+    UNIQUE(sid, csid, sdate)  -- The same seat can only be booked once for the same show
+) PARTITION BY RANGE (sdate);
+
+CREATE TABLE ShowSeats_default PARTITION OF ShowSeats DEFAULT;
 
 
 -- Relations
@@ -122,10 +148,13 @@ CREATE TABLE ShowSeats (
 CREATE TABLE Plays (
     sid BIGINT NOT NULL,  -- Show ID
     tid BIGINT NOT NULL,  -- Theater ID
-    PRIMARY KEY(sid, tid),
-    FOREIGN KEY(sid) REFERENCES Shows(sid),
+    sdate DATE NOT NULL,  -- Show date, the partition key
+    PRIMARY KEY(sid, tid, sdate),
+    FOREIGN KEY(sid, sdate) REFERENCES Shows(sid, sdate),
     FOREIGN KEY(tid) REFERENCES Theaters(tid)
-);
+) PARTITION BY RANGE (sdate);
+
+CREATE TABLE Plays_default PARTITION OF Plays DEFAULT;
 
 
 ----------------------------
@@ -223,7 +252,11 @@ COPY Payments (
 FROM 'Payments.csv'
 WITH DELIMITER ',';
 
-COPY ShowSeats (
+-- ShowSeats.csv and Plays.csv have no show date; it is taken from Shows
+
+CREATE TEMP TABLE ShowSeatsCsv AS SELECT ssid, sid, csid, bid, price FROM ShowSeats WITH NO DATA;
+
+COPY ShowSeatsCsv (
     ssid,
     sid,
     csid,
@@ -233,9 +266,35 @@ COPY ShowSeats (
 FROM 'ShowSeats.csv'
 WITH DELIMITER ',' NULL AS '';
 
-COPY Plays (
+INSERT INTO ShowSeats (ssid, sid, csid, bid, price, sdate)
+SELECT X.ssid, X.sid, X.csid, X.bid, X.price, S.sdate FROM ShowSeatsCsv X JOIN Shows S ON S.sid = X.sid;
+
+CREATE TEMP TABLE PlaysCsv AS SELECT sid, tid FROM Plays WITH NO DATA;
+
+COPY PlaysCsv (
     sid,
     tid
 )
 FROM 'Plays.csv'
 WITH DELIMITER ',';
+
+INSERT INTO Plays (sid, tid, sdate)
+SELECT X.sid, X.tid, S.sdate FROM PlaysCsv X JOIN Shows S ON S.sid = X.sid;
+
+
+-------------------
+-- KEY SEQUENCES --
+-------------------
+
+-- Consumed in blocks by IdAllocator: one nextval() reserves the keys
+-- (value - INCREMENT, value], so INCREMENT BY is the block size.
+-- setval() moves each sequence past the keys loaded above.
+
+CREATE SEQUENCE bookings_bid_seq INCREMENT BY 50 MINVALUE 0 OWNED BY Bookings.bid;
+SELECT setval('bookings_bid_seq', (SELECT COALESCE(MAX(bid), 0) FROM Bookings));
+
+CREATE SEQUENCE movies_mvid_seq INCREMENT BY 20 MINVALUE 0 OWNED BY Movies.mvid;
+SELECT setval('movies_mvid_seq', (SELECT COALESCE(MAX(mvid), 0) FROM Movies));
+
+CREATE SEQUENCE shows_sid_seq INCREMENT BY 20 MINVALUE 0 OWNED BY Shows.sid;
+SELECT setval('shows_sid_seq', (SELECT COALESCE(MAX(sid), 0) FROM Shows));
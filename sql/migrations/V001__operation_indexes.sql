@@ -0,0 +1,37 @@
+-- Indexes for the predicates of the 14 menu operations.
+-- create.sql only declares primary keys and unique constraints; every
+-- index below backs a WHERE or join column that the operations use.
+-- INCLUDE columns need Postgres 11 or later.
+
+-- Free seats of a show, by price (AddBooking, ChangeSeatsForBooking)
+CREATE INDEX showseats_free_idx ON ShowSeats(sid, price) INCLUDE (csid, ssid) WHERE bid IS NULL;
+
+-- Seats of a booking (ChangeSeatsForBooking, RemovePayment, ListBookingInfoForUser)
+CREATE INDEX showseats_bid_idx ON ShowSeats(bid) INCLUDE (csid, sid) WHERE bid IS NOT NULL;
+
+-- Pending and cancelled bookings, oldest first (CancelPendingBookings,
+-- ClearCancelledBookings, ListUsersWithPendingBooking)
+CREATE INDEX bookings_status_idx ON Bookings(status, bdatetime) INCLUDE (email);
+
+-- Bookings of a user (ListBookingInfoForUser)
+CREATE INDEX bookings_email_idx ON Bookings(email) INCLUDE (sid);
+
+-- Bookings of a show, for the ON DELETE CASCADE from Shows
+CREATE INDEX bookings_sid_idx ON Bookings(sid);
+
+-- Shows by date and start time (ListShowsStartingOnTimeAndDate, RemoveShowsOnDate)
+CREATE INDEX shows_sdate_idx ON Shows(sdate, sttime) INCLUDE (mvid, edtime);
+
+-- Shows of a movie, by date (AddBooking, ListMovieAndShowInfoAtCinemaInDateRange)
+CREATE INDEX shows_mvid_idx ON Shows(mvid, sdate);
+
+-- Shows of a theater; the primary key only serves lookups by sid
+CREATE INDEX plays_tid_idx ON Plays(tid, sid);
+
+-- Theaters of a cinema
+CREATE INDEX theaters_cid_idx ON Theaters(cid);
+
+-- Seats of a theater in seat number order
+CREATE INDEX cinemaseats_tid_idx ON CinemaSeats(tid, sno);
+
+ANALYZE;
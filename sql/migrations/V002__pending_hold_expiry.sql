@@ -0,0 +1,7 @@
+-- Pending bookings in hold expiry order (HoldExpiry, CancelPendingBookings).
+-- The expiry walks pending bookings by (bdatetime, bid); the partial index
+-- holds only pending rows, so it stays small however many bookings are
+-- confirmed or cancelled.
+CREATE INDEX bookings_pending_idx ON Bookings(bdatetime, bid) WHERE status = 'Pending';
+
+ANALYZE Bookings;
@@ -0,0 +1,40 @@
+-- Archive of purged cancelled bookings and their payments (BookingPurge,
+-- ClearCancelledBookings). The archive keeps the columns of Bookings and
+-- Payments without their foreign keys, so shows and users can be removed
+-- after their bookings are archived.
+CREATE TABLE BookingsArchive (
+    bid BIGINT NOT NULL,  -- Booking ID
+    status VARCHAR(16) NOT NULL,
+    bdatetime TIMESTAMPTZ NOT NULL,  -- Booking date and time
+    seats INTEGER NOT NULL,  -- Number of seats booked
+    sid BIGINT NOT NULL,  -- Show ID
+    email VARCHAR(64) NOT NULL,  -- User account
+    archived TIMESTAMPTZ NOT NULL DEFAULT now(),
+    PRIMARY KEY(bid)
+);
+
+CREATE TABLE PaymentsArchive (
+    pid BIGINT NOT NULL,  -- Payment ID
+    bid BIGINT NOT NULL,  -- Booking ID
+    pmethod VARCHAR(32) NOT NULL,
+    pdatetime TIMESTAMPTZ NOT NULL,  -- Payment date and time
+    amount REAL NOT NULL,
+    trid BIGINT,  -- Transaction ID
+    PRIMARY KEY(pid)
+);
+
+-- Where an interrupted purge resumes: one row per purge in progress
+CREATE TABLE PurgeProgress (
+    job VARCHAR(64) NOT NULL,
+    cutoff TIMESTAMPTZ NOT NULL,  -- Bookings made before this are purged
+    last_bdatetime TIMESTAMPTZ NOT NULL,  -- Keyset position of the last batch
+    last_bid BIGINT NOT NULL,
+    moved BIGINT NOT NULL,  -- Bookings archived so far
+    started TIMESTAMPTZ NOT NULL,
+    PRIMARY KEY(job)
+);
+
+-- Cancelled bookings in purge order
+CREATE INDEX bookings_cancelled_idx ON Bookings(bdatetime, bid) WHERE status = 'Cancelled';
+
+ANALYZE Bookings;
@@ -0,0 +1,70 @@
+-- Free seats, sold seats and revenue of each show (TicketmasterService.showSales,
+-- AddBooking). A seat is sold while it is held by a booking, pending or
+-- paid, and the revenue is the sum of the prices of the sold seats.
+-- Statement triggers on ShowSeats keep the counts: every statement that
+-- claims, releases, adds or deletes seats adds its change per show, so
+-- reading a show's counts is one primary key lookup instead of a count of
+-- its seats. The row of a show is locked by a booking of it until that
+-- transaction ends.
+-- The triggers do not see statements run on a partition directly, such as
+-- the ON DELETE SET NULL from Bookings, so a path deleting bookings frees
+-- their seats itself. Dropping a day's partitions fires no trigger either;
+-- PartitionMaintenance deletes the day's rows by sdate.
+CREATE TABLE ShowSales (
+    sid BIGINT NOT NULL,  -- Show ID
+    sdate DATE NOT NULL,  -- Show date, for removing a day
+    free_seats INTEGER NOT NULL,
+    sold_seats INTEGER NOT NULL,
+    revenue NUMERIC(14,2) NOT NULL,  -- Sum of the prices of the sold seats
+    PRIMARY KEY(sid)
+);
+
+CREATE INDEX showsales_sdate_idx ON ShowSales(sdate);
+
+-- No seat changes between the count below and the triggers taking over
+LOCK TABLE ShowSeats IN SHARE MODE;
+
+-- Transition tables need one trigger per event; each branch adds the
+-- inserted rows and subtracts the deleted ones, an update being both
+CREATE FUNCTION showsales_track() RETURNS trigger LANGUAGE plpgsql AS $$
+BEGIN
+    IF TG_OP = 'INSERT' THEN
+        INSERT INTO ShowSales AS T (sid, sdate, free_seats, sold_seats, revenue)
+        SELECT sid, sdate, count(*) FILTER (WHERE bid IS NULL), count(*) FILTER (WHERE bid IS NOT NULL),
+            COALESCE(sum(price::numeric) FILTER (WHERE bid IS NOT NULL), 0)
+        FROM new_rows GROUP BY sid, sdate
+        ON CONFLICT (sid) DO UPDATE SET free_seats = T.free_seats + EXCLUDED.free_seats,
+            sold_seats = T.sold_seats + EXCLUDED.sold_seats, revenue = T.revenue + EXCLUDED.revenue;
+    ELSIF TG_OP = 'DELETE' THEN
+        UPDATE ShowSales T SET free_seats = T.free_seats - D.free, sold_seats = T.sold_seats - D.sold, revenue = T.revenue - D.revenue
+        FROM (SELECT sid, count(*) FILTER (WHERE bid IS NULL) AS free, count(*) FILTER (WHERE bid IS NOT NULL) AS sold,
+            COALESCE(sum(price::numeric) FILTER (WHERE bid IS NOT NULL), 0) AS revenue
+            FROM old_rows GROUP BY sid) D
+        WHERE T.sid = D.sid;
+    ELSE
+        UPDATE ShowSales T SET free_seats = T.free_seats + D.free, sold_seats = T.sold_seats + D.sold, revenue = T.revenue + D.revenue
+        FROM (SELECT sid, sum(free) AS free, sum(sold) AS sold, sum(revenue) AS revenue
+            FROM (SELECT sid, (bid IS NULL)::int AS free, (bid IS NOT NULL)::int AS sold,
+                    CASE WHEN bid IS NULL THEN 0 ELSE price::numeric END AS revenue FROM new_rows
+                UNION ALL
+                SELECT sid, -(bid IS NULL)::int, -(bid IS NOT NULL)::int,
+                    CASE WHEN bid IS NULL THEN 0 ELSE -price::numeric END FROM old_rows) C
+            GROUP BY sid
+            HAVING sum(free) <> 0 OR sum(sold) <> 0 OR sum(revenue) <> 0) D
+        WHERE T.sid = D.sid;
+    END IF;
+    RETURN NULL;
+END
+$$;
+
+CREATE TRIGGER showsales_insert AFTER INSERT ON ShowSeats
+    REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE FUNCTION showsales_track();
+CREATE TRIGGER showsales_update AFTER UPDATE ON ShowSeats
+    REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE FUNCTION showsales_track();
+CREATE TRIGGER showsales_delete AFTER DELETE ON ShowSeats
+    REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE FUNCTION showsales_track();
+
+INSERT INTO ShowSales (sid, sdate, free_seats, sold_seats, revenue)
+SELECT sid, sdate, count(*) FILTER (WHERE bid IS NULL), count(*) FILTER (WHERE bid IS NOT NULL),
+    COALESCE(sum(price::numeric) FILTER (WHERE bid IS NOT NULL), 0)
+FROM ShowSeats GROUP BY sid, sdate;
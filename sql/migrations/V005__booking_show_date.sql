@@ -0,0 +1,19 @@
+-- Show date of each booking (AddBooking, ChangeSeatsForBooking, RemovePayment,
+-- CancelPendingBookings, ClearCancelledBookings, PartitionMaintenance).
+-- Partitioning Shows by date made its key (sid, sdate), so Bookings lost its
+-- foreign key to Shows and the ON DELETE CASCADE with it. Bookings keeps the
+-- date of its show, which restores both and names the one ShowSeats
+-- partition that holds the booking's seats.
+ALTER TABLE Bookings ADD COLUMN sdate DATE;
+
+UPDATE Bookings B SET sdate = S.sdate FROM Shows S WHERE S.sid = B.sid;
+
+-- Fails on a booking whose show does not exist, which the old key did not allow
+ALTER TABLE Bookings ALTER COLUMN sdate SET NOT NULL;
+
+ALTER TABLE Bookings ADD CONSTRAINT bookings_show_fkey FOREIGN KEY(sid, sdate) REFERENCES Shows(sid, sdate) ON DELETE CASCADE;
+
+-- Bookings of a day, which PartitionMaintenance archives before it removes the day
+CREATE INDEX bookings_sdate_idx ON Bookings(sdate, sid);
+
+ANALYZE Bookings;
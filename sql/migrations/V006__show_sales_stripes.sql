@@ -0,0 +1,50 @@
+-- Spread the counts of each show over stripes (AddBooking).
+-- With one ShowSales row per show, every claim of a show's seats updated
+-- that row and held its lock until the booking committed, so the bookers
+-- of one show waited for each other however few seats they shared.
+-- Each statement now adds its change to the stripe of its connection,
+-- pg_backend_pid() % 16; concurrent bookings run on different connections
+-- and so mostly on different rows. The counts of a show are the sum of its
+-- stripes, and a stripe may hold a negative change.
+ALTER TABLE ShowSales ADD COLUMN stripe SMALLINT NOT NULL DEFAULT 0;
+
+ALTER TABLE ShowSales DROP CONSTRAINT showsales_pkey;
+
+ALTER TABLE ShowSales ADD PRIMARY KEY(sid, stripe);
+
+ALTER TABLE ShowSales ALTER COLUMN stripe DROP DEFAULT;
+
+-- Every event adds its change to the stripe, creating the stripe row when
+-- this connection has not touched the show before
+CREATE OR REPLACE FUNCTION showsales_track() RETURNS trigger LANGUAGE plpgsql AS $$
+BEGIN
+    IF TG_OP = 'INSERT' THEN
+        INSERT INTO ShowSales AS T (sid, stripe, sdate, free_seats, sold_seats, revenue)
+        SELECT sid, pg_backend_pid() % 16, sdate, count(*) FILTER (WHERE bid IS NULL), count(*) FILTER (WHERE bid IS NOT NULL),
+            COALESCE(sum(price::numeric) FILTER (WHERE bid IS NOT NULL), 0)
+        FROM new_rows GROUP BY sid, sdate
+        ON CONFLICT (sid, stripe) DO UPDATE SET free_seats = T.free_seats + EXCLUDED.free_seats,
+            sold_seats = T.sold_seats + EXCLUDED.sold_seats, revenue = T.revenue + EXCLUDED.revenue;
+    ELSIF TG_OP = 'DELETE' THEN
+        INSERT INTO ShowSales AS T (sid, stripe, sdate, free_seats, sold_seats, revenue)
+        SELECT sid, pg_backend_pid() % 16, sdate, -count(*) FILTER (WHERE bid IS NULL), -count(*) FILTER (WHERE bid IS NOT NULL),
+            -COALESCE(sum(price::numeric) FILTER (WHERE bid IS NOT NULL), 0)
+        FROM old_rows GROUP BY sid, sdate
+        ON CONFLICT (sid, stripe) DO UPDATE SET free_seats = T.free_seats + EXCLUDED.free_seats,
+            sold_seats = T.sold_seats + EXCLUDED.sold_seats, revenue = T.revenue + EXCLUDED.revenue;
+    ELSE
+        INSERT INTO ShowSales AS T (sid, stripe, sdate, free_seats, sold_seats, revenue)
+        SELECT sid, pg_backend_pid() % 16, sdate, sum(free), sum(sold), sum(revenue)
+        FROM (SELECT sid, sdate, (bid IS NULL)::int AS free, (bid IS NOT NULL)::int AS sold,
+                CASE WHEN bid IS NULL THEN 0 ELSE price::numeric END AS revenue FROM new_rows
+            UNION ALL
+            SELECT sid, sdate, -(bid IS NULL)::int, -(bid IS NOT NULL)::int,
+                CASE WHEN bid IS NULL THEN 0 ELSE -price::numeric END FROM old_rows) C
+        GROUP BY sid, sdate
+        HAVING sum(free) <> 0 OR sum(sold) <> 0 OR sum(revenue) <> 0
+        ON CONFLICT (sid, stripe) DO UPDATE SET free_seats = T.free_seats + EXCLUDED.free_seats,
+            sold_seats = T.sold_seats + EXCLUDED.sold_seats, revenue = T.revenue + EXCLUDED.revenue;
+    END IF;
+    RETURN NULL;
+END
+$$;